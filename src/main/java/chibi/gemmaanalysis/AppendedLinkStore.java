@@ -0,0 +1,137 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+/**
+ * A {@link LinkStore} that extends the experiment dimension of an existing store with a side segment holding the bits
+ * of experiments added later. Bit indices below the base's {@link #getBitNum()} go to the base; the following ones go
+ * to the segment. This lets experiments be appended to a (possibly read-only, memory-mapped) matrix, and only the
+ * segment be saved, without rewriting the base.
+ *
+ * @see LinkMatrix#appendExperiments(java.util.Collection)
+ */
+public class AppendedLinkStore implements LinkStore {
+
+    private LinkStore base;
+    private LinkStore segment;
+    private int baseBits;
+
+    /**
+     * @param base
+     * @param segment must have the same rows and columns as the base.
+     */
+    public AppendedLinkStore( LinkStore base, LinkStore segment ) {
+        if ( base.rows() != segment.rows() || base.columns() != segment.columns() ) {
+            throw new IllegalArgumentException( "Appended segment is " + segment.rows() + " x " + segment.columns()
+                    + ", matrix is " + base.rows() + " x " + base.columns() );
+        }
+        this.base = base;
+        this.segment = segment;
+        this.baseBits = base.getBitNum();
+    }
+
+    @Override
+    public int bitCount( int row, int col ) {
+        return base.bitCount( row, col ) + segment.bitCount( row, col );
+    }
+
+    @Override
+    public int columns() {
+        return base.columns();
+    }
+
+    @Override
+    public boolean get( int row, int col, int index ) {
+        if ( index < baseBits ) return base.get( row, col, index );
+        return segment.get( row, col, index - baseBits );
+    }
+
+    @Override
+    public long[] getAllBits( int row, int col ) {
+        long[] mask = new long[LinkMatrix.maskLength( getBitNum() )];
+        long[] baseMask = base.getAllBits( row, col );
+        System.arraycopy( baseMask, 0, mask, 0, Math.min( baseMask.length, mask.length ) );
+        long[] segmentMask = segment.getAllBits( row, col );
+        int wordShift = baseBits / Long.SIZE;
+        int bitShift = baseBits % Long.SIZE;
+        for ( int k = 0; k < segmentMask.length; k++ ) {
+            if ( segmentMask[k] == 0 ) continue;
+            mask[k + wordShift] |= segmentMask[k] << bitShift;
+            if ( bitShift != 0 && k + wordShift + 1 < mask.length ) {
+                mask[k + wordShift + 1] |= segmentMask[k] >>> ( Long.SIZE - bitShift );
+            }
+        }
+        return mask;
+    }
+
+    public LinkStore getBase() {
+        return base;
+    }
+
+    @Override
+    public int getBitNum() {
+        return baseBits + segment.getBitNum();
+    }
+
+    @Override
+    public int getColIndexByName( long name ) {
+        return base.getColIndexByName( name );
+    }
+
+    @Override
+    public long getColName( int i ) {
+        return base.getColName( i );
+    }
+
+    @Override
+    public int getRowIndexByName( long name ) {
+        return base.getRowIndexByName( name );
+    }
+
+    @Override
+    public long getRowName( int i ) {
+        return base.getRowName( i );
+    }
+
+    public LinkStore getSegment() {
+        return segment;
+    }
+
+    @Override
+    public int nextColumn( int row, int fromCol ) {
+        int b = base.nextColumn( row, fromCol );
+        int s = segment.nextColumn( row, fromCol );
+        if ( b < 0 ) return s;
+        if ( s < 0 ) return b;
+        return Math.min( b, s );
+    }
+
+    @Override
+    public int rows() {
+        return base.rows();
+    }
+
+    @Override
+    public void set( int row, int col, int index ) {
+        if ( index < baseBits ) {
+            base.set( row, col, index );
+        } else {
+            segment.set( row, col, index - baseBits );
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import cern.colt.list.ObjectArrayList;
+
+/**
+ * Bookkeeping of {@link LinkGraphClustering} so a merge does not have to scan all the clusters:
+ * <ul>
+ * <li>the candidate merges, one per cluster, in a heap ordered as the clustering picks them: most experiments in
+ * common with the closest cluster, then highest level, then position in the cluster list. Entries are not updated in
+ * place; when the closest cluster of a cluster changes, a new entry is pushed and the old one is skipped when it comes
+ * up;
+ * <li>for each cluster, the clusters that have it as their closest one, which are the ones to update after a merge;
+ * <li>the position of each cluster in the list of clusters, which is ordered by decreasing number of experiments and
+ * then by creation, so clusters are found and inserted by binary search rather than by sorting the list again.
+ * </ul>
+ */
+class ClusterMergeQueue {
+
+    /**
+     * A cluster in the queue.
+     */
+    private static class State {
+        private TreeNode node;
+        private int seq;
+        private int version = 0;
+        private boolean eligible = true;
+        private Set<TreeNode> pointedBy = Collections.newSetFromMap( new IdentityHashMap<TreeNode, Boolean>() );
+        private TreeNode closest = null;
+
+        private State( TreeNode node, int seq ) {
+            this.node = node;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * A merge of a cluster with its closest one, as it was when pushed.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        private State state;
+        private int version;
+        private int commonBits;
+        private int level;
+        private int maskBits;
+
+        private Candidate( State state ) {
+            this.state = state;
+            this.version = state.version;
+            this.commonBits = state.node.getCommonBits();
+            this.level = state.node.getLevel();
+            this.maskBits = state.node.getMaskBits();
+        }
+
+        @Override
+        public int compareTo( Candidate o ) {
+            if ( commonBits != o.commonBits ) return commonBits > o.commonBits ? -1 : 1;
+            if ( level != o.level ) return level > o.level ? -1 : 1;
+            if ( maskBits != o.maskBits ) return maskBits > o.maskBits ? -1 : 1;
+            return state.seq < o.state.seq ? -1 : ( state.seq == o.state.seq ? 0 : 1 );
+        }
+
+        private boolean isValid() {
+            return state.eligible && state.version == version;
+        }
+    }
+
+    private Map<TreeNode, State> states = new IdentityHashMap<>();
+    private PriorityQueue<Candidate> candidates = new PriorityQueue<>();
+    private int nextSeq = 0;
+
+    /**
+     * Orders clusters as in the list of clusters.
+     */
+    private Comparator<TreeNode> listOrder = new Comparator<TreeNode>() {
+        @Override
+        public int compare( TreeNode o1, TreeNode o2 ) {
+            int bits1 = o1.getMaskBits(), bits2 = o2.getMaskBits();
+            if ( bits1 != bits2 ) return bits1 > bits2 ? -1 : 1;
+            int seq1 = states.get( o1 ).seq, seq2 = states.get( o2 ).seq;
+            return seq1 < seq2 ? -1 : ( seq1 == seq2 ? 0 : 1 );
+        }
+    };
+
+    /**
+     * Add a cluster, created after all the ones already added.
+     *
+     * @param node
+     */
+    public void add( TreeNode node ) {
+        State state = new State( node, nextSeq++ );
+        states.put( node, state );
+        point( state, node.getClosestNode() );
+        candidates.add( new Candidate( state ) );
+    }
+
+    /**
+     * To call after the closest cluster of a cluster was set.
+     *
+     * @param node
+     */
+    public void closestChanged( TreeNode node ) {
+        State state = states.get( node );
+        if ( state == null || !state.eligible ) return;
+        unpoint( state );
+        point( state, node.getClosestNode() );
+        state.version++;
+        candidates.add( new Candidate( state ) );
+    }
+
+    /**
+     * @param list of clusters, in list order
+     * @param node in the list
+     * @return the position of the cluster in the list.
+     */
+    public int indexOf( ObjectArrayList list, TreeNode node ) {
+        int lo = 0, hi = list.size() - 1;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            int c = listOrder.compare( ( TreeNode ) list.getQuick( mid ), node );
+            if ( c < 0 )
+                lo = mid + 1;
+            else if ( c > 0 )
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        throw new IllegalStateException( "Cluster is not in the list" );
+    }
+
+    /**
+     * @param list of clusters, in list order
+     * @param node not in the list
+     * @return where the cluster goes in the list.
+     */
+    public int insertionPoint( ObjectArrayList list, TreeNode node ) {
+        int lo = 0, hi = list.size();
+        while ( lo < hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            if ( listOrder.compare( ( TreeNode ) list.getQuick( mid ), node ) < 0 )
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the order of the list of clusters.
+     */
+    public Comparator<TreeNode> listOrder() {
+        return listOrder;
+    }
+
+    /**
+     * @return the cluster to merge next with its closest one; null if there are no clusters.
+     */
+    public TreeNode peek() {
+        while ( !candidates.isEmpty() && !candidates.peek().isValid() )
+            candidates.poll();
+        return candidates.isEmpty() ? null : candidates.peek().state.node;
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return the clusters, other than a and b, whose closest cluster is a or b, in list order.
+     */
+    public List<TreeNode> pointingAt( TreeNode a, TreeNode b ) {
+        List<TreeNode> res = new ArrayList<>();
+        for ( TreeNode target : new TreeNode[] { a, b } ) {
+            State state = states.get( target );
+            if ( state == null ) continue;
+            for ( TreeNode node : state.pointedBy )
+                if ( node != a && node != b ) res.add( node );
+        }
+        Collections.sort( res, listOrder );
+        return res;
+    }
+
+    /**
+     * Remove a cluster, once merged.
+     *
+     * @param node
+     */
+    public void remove( TreeNode node ) {
+        State state = states.remove( node );
+        if ( state == null ) return;
+        state.eligible = false;
+        unpoint( state );
+    }
+
+    private void point( State state, TreeNode closest ) {
+        State target = closest == null ? null : states.get( closest );
+        if ( target != null ) {
+            target.pointedBy.add( state.node );
+            state.closest = closest;
+        }
+    }
+
+    private void unpoint( State state ) {
+        if ( state.closest == null ) return;
+        State target = states.get( state.closest );
+        if ( target != null ) target.pointedBy.remove( state.node );
+        state.closest = null;
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binned correlation strength of each link in each experiment, alongside the bits of a {@link LinkStore}. Each value
+ * is the absolute correlation quantized to 4 or 8 bits, 0 meaning the link was not seen; the values of a cell are
+ * packed 16 or 8 to a long in experiment order, so a cell takes 4 or 8 times the space of its experiment bits, instead
+ * of the 64 bits per experiment of a double matrix. Only cells that were given a value are stored.
+ * <p>
+ * The static kernels work on packed values a long at a time (SWAR): lanes are spread over wider fields with a guard
+ * bit, so the per-lane comparison and sum of a whole long take a handful of arithmetic operations and no branches.
+ * <p>
+ * Like the stores, values are set by one thread per row at a time (see {@link LinkMatrixBuilder}); for a symmetric
+ * matrix (row, col) and (col, row) are the same cell.
+ *
+ * @see LinkMatrix#setCorrelationBits(int)
+ */
+public class CorrelationPlane {
+
+    private static final int MAGIC = 0x434F5252; // "CORR"
+
+    private static final long NIBBLES_LOW = 0x0F0F0F0F0F0F0F0FL;
+    private static final long NIBBLES_GUARD = 0x8080808080808080L;
+    private static final long BYTES_LOW = 0x00FF00FF00FF00FFL;
+    private static final long BYTES_GUARD = 0x0100010001000100L;
+    private static final long BYTE_SUM = 0x0101010101010101L;
+    private static final long SHORT_SUM = 0x0001000100010001L;
+
+    /**
+     * Values of the cells of one row.
+     */
+    private static class Row {
+        private LongIntHashMap slots = new LongIntHashMap();
+        private long[][] values = new long[4][];
+    }
+
+    /**
+     * @param a packed values
+     * @param b packed values
+     * @param bits 4 or 8
+     * @param dest may be one of the inputs
+     * @return dest, holding the smaller value of each lane; as long as the shorter input.
+     */
+    public static long[] min( long[] a, long[] b, int bits, long[] dest ) {
+        int n = Math.min( a.length, b.length );
+        for ( int k = 0; k < n; k++ )
+            dest[k] = bits == 4 ? minNibbles( a[k], b[k] ) : minBytes( a[k], b[k] );
+        for ( int k = n; k < dest.length; k++ )
+            dest[k] = 0L;
+        return dest;
+    }
+
+    /**
+     * @param a packed values
+     * @param bits 4 or 8
+     * @return the sum of the values.
+     */
+    public static int weight( long[] a, int bits ) {
+        int sum = 0;
+        for ( long word : a )
+            sum += bits == 4 ? sumBytes( word & NIBBLES_LOW ) + sumBytes( ( word >>> 4 ) & NIBBLES_LOW )
+                    : sumShorts( word & BYTES_LOW ) + sumShorts( ( word >>> 8 ) & BYTES_LOW );
+        return sum;
+    }
+
+    /**
+     * Weighted overlap of two links: the sum over the experiments of the smaller of their two values, i.e. the size of
+     * the fuzzy intersection. For values of 0 and 1 this is the number of experiments in common.
+     *
+     * @param a packed values
+     * @param b packed values
+     * @param bits 4 or 8
+     * @return the weighted overlap.
+     */
+    public static int weightedOverlap( long[] a, long[] b, int bits ) {
+        int n = Math.min( a.length, b.length );
+        int sum = 0;
+        if ( bits == 4 ) {
+            for ( int k = 0; k < n; k++ ) {
+                long m = minNibbles( a[k], b[k] );
+                sum += sumBytes( m & NIBBLES_LOW ) + sumBytes( ( m >>> 4 ) & NIBBLES_LOW );
+            }
+        } else {
+            for ( int k = 0; k < n; k++ ) {
+                long m = minBytes( a[k], b[k] );
+                sum += sumShorts( m & BYTES_LOW ) + sumShorts( ( m >>> 8 ) & BYTES_LOW );
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Lane-wise minimum of 8-bit values, on the even and odd bytes spread over 16-bit fields.
+     */
+    private static long minBytes( long a, long b ) {
+        return minFields( a & BYTES_LOW, b & BYTES_LOW, BYTES_GUARD, 8, 0xFFFFL )
+                | ( minFields( ( a >>> 8 ) & BYTES_LOW, ( b >>> 8 ) & BYTES_LOW, BYTES_GUARD, 8, 0xFFFFL ) << 8 );
+    }
+
+    /**
+     * Lane-wise minimum of values held in the low half of each field: a - b with a guard bit above each field tells
+     * where a &gt;= b, without borrows crossing fields.
+     */
+    private static long minFields( long a, long b, long guard, int guardShift, long fieldMask ) {
+        long aAtLeastB = ( ( ( a | guard ) - b ) & guard ) >>> guardShift;
+        long select = aAtLeastB * fieldMask;
+        return ( b & select ) | ( a & ~select );
+    }
+
+    /**
+     * Lane-wise minimum of 4-bit values, on the even and odd nibbles spread over 8-bit fields.
+     */
+    private static long minNibbles( long a, long b ) {
+        return minFields( a & NIBBLES_LOW, b & NIBBLES_LOW, NIBBLES_GUARD, 7, 0xFFL )
+                | ( minFields( ( a >>> 4 ) & NIBBLES_LOW, ( b >>> 4 ) & NIBBLES_LOW, NIBBLES_GUARD, 7, 0xFFL ) << 4 );
+    }
+
+    /**
+     * @return the sum of the 8 byte fields, which must be below 256.
+     */
+    private static int sumBytes( long fields ) {
+        return ( int ) ( ( fields * BYTE_SUM ) >>> 56 );
+    }
+
+    /**
+     * @return the sum of the 4 short fields, which must be below 65536.
+     */
+    private static int sumShorts( long fields ) {
+        return ( int ) ( ( fields * SHORT_SUM ) >>> 48 );
+    }
+
+    private int bits;
+    private int maxLevel;
+    private int valuesPerLong;
+    private int bitNum;
+    private boolean symmetric;
+    private Row[] rows;
+
+    /**
+     * @param rows number of rows of the link matrix
+     * @param bitNum number of experiments
+     * @param bits 4 or 8 bits per value
+     * @param symmetric whether (row, col) and (col, row) are the same cell
+     */
+    public CorrelationPlane( int rows, int bitNum, int bits, boolean symmetric ) {
+        if ( bits != 4 && bits != 8 ) {
+            throw new IllegalArgumentException( "Correlations are quantized to 4 or 8 bits, not " + bits );
+        }
+        this.bits = bits;
+        this.maxLevel = ( 1 << bits ) - 1;
+        this.valuesPerLong = Long.SIZE / bits;
+        this.bitNum = bitNum;
+        this.symmetric = symmetric;
+        this.rows = new Row[rows];
+    }
+
+    /**
+     * @param row
+     * @param col
+     * @return the packed values of the cell, a new array of {@link #getLength()} longs; all 0 if it has none.
+     */
+    public long[] get( int row, int col ) {
+        long[] res = new long[getLength()];
+        long[] values = find( row, col );
+        if ( values != null ) System.arraycopy( values, 0, res, 0, Math.min( values.length, res.length ) );
+        return res;
+    }
+
+    /**
+     * @param row
+     * @param col
+     * @param index of the expression experiment
+     * @return the absolute correlation of the link in the experiment, to the precision of the bins; 0 if not seen.
+     */
+    public double getCorrelation( int row, int col, int index ) {
+        return ( double ) getLevel( row, col, index ) / maxLevel;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public int getBitNum() {
+        return bitNum;
+    }
+
+    /**
+     * @return the number of longs of the packed values of a cell.
+     */
+    public int getLength() {
+        return ( bitNum + valuesPerLong - 1 ) / valuesPerLong;
+    }
+
+    /**
+     * @param row
+     * @param col
+     * @param index of the expression experiment
+     * @return the binned value, 0 to 2^bits - 1.
+     */
+    public int getLevel( int row, int col, int index ) {
+        long[] values = find( row, col );
+        int k = index / valuesPerLong;
+        if ( values == null || k >= values.length ) return 0;
+        return ( int ) ( values[k] >>> ( ( index % valuesPerLong ) * bits ) ) & maxLevel;
+    }
+
+    /**
+     * Make room for more experiments, e.g. after {@link LinkMatrix#appendExperiments(java.util.Collection)}. Cells
+     * are grown when they are next set.
+     *
+     * @param newBitNum
+     */
+    public void setBitNum( int newBitNum ) {
+        this.bitNum = Math.max( bitNum, newBitNum );
+    }
+
+    /**
+     * Record the correlation of the link in an experiment.
+     *
+     * @param row
+     * @param col
+     * @param index of the expression experiment
+     * @param correlation its absolute value is binned; a recorded link gets at least the lowest non-zero bin.
+     */
+    public void set( int row, int col, int index, double correlation ) {
+        int level = ( int ) Math.round( Math.min( 1.0, Math.abs( correlation ) ) * maxLevel );
+        setLevel( row, col, index, Math.max( 1, level ) );
+    }
+
+    /**
+     * @return the number of cells with values.
+     */
+    public long size() {
+        long n = 0;
+        for ( Row row : rows )
+            if ( row != null ) n += row.slots.size();
+        return n;
+    }
+
+    /**
+     * Save the values, in a simple binary layout.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write( File file ) throws IOException {
+        try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );) {
+            out.writeInt( MAGIC );
+            out.writeInt( rows.length );
+            out.writeInt( bitNum );
+            out.writeInt( bits );
+            out.writeBoolean( symmetric );
+            for ( int i = 0; i < rows.length; i++ ) {
+                Row row = rows[i];
+                if ( row == null ) continue;
+                for ( long col : row.slots.keys() ) {
+                    long[] values = row.values[row.slots.get( col )];
+                    out.writeInt( i );
+                    out.writeInt( ( int ) col );
+                    out.writeInt( values.length );
+                    for ( long word : values )
+                        out.writeLong( word );
+                }
+            }
+            out.writeInt( -1 );
+        }
+    }
+
+    /**
+     * @param file written by {@link #write(File)}
+     * @return
+     * @throws IOException
+     */
+    public static CorrelationPlane read( File file ) throws IOException {
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );) {
+            if ( in.readInt() != MAGIC ) throw new IOException( "Not a correlation file: " + file );
+            int rows = in.readInt();
+            int bitNum = in.readInt();
+            int bits = in.readInt();
+            CorrelationPlane plane = new CorrelationPlane( rows, bitNum, bits, in.readBoolean() );
+            for ( int row = in.readInt(); row >= 0; row = in.readInt() ) {
+                int col = in.readInt();
+                long[] values = new long[in.readInt()];
+                for ( int k = 0; k < values.length; k++ )
+                    values[k] = in.readLong();
+                plane.put( row, col, values );
+            }
+            return plane;
+        }
+    }
+
+    /**
+     * Stack the rows of planes kept for consecutive row blocks of one matrix, see
+     * {@link LinkMatrix#restrictToShard(int, int)}; the rows are shared with the given planes.
+     *
+     * @param planes with the same experiments and value size, not symmetric
+     * @return
+     */
+    public static CorrelationPlane concatenate( List<CorrelationPlane> planes ) {
+        CorrelationPlane first = planes.get( 0 );
+        int rows = 0;
+        for ( CorrelationPlane plane : planes ) {
+            if ( plane.symmetric || plane.bits != first.bits || plane.bitNum != first.bitNum ) {
+                throw new IllegalArgumentException( "Only planes of row blocks of the same matrix can be stacked" );
+            }
+            rows += plane.rows.length;
+        }
+        CorrelationPlane res = new CorrelationPlane( rows, first.bitNum, first.bits, false );
+        int offset = 0;
+        for ( CorrelationPlane plane : planes ) {
+            System.arraycopy( plane.rows, 0, res.rows, offset, plane.rows.length );
+            offset += plane.rows.length;
+        }
+        return res;
+    }
+
+    private long[] find( int row, int col ) {
+        if ( symmetric && col < row ) return find( col, row );
+        Row r = rows[row];
+        if ( r == null ) return null;
+        int slot = r.slots.get( col );
+        return slot < 0 ? null : r.values[slot];
+    }
+
+    private void put( int row, int col, long[] values ) {
+        Row r = rows[row];
+        if ( r == null ) {
+            r = new Row();
+            rows[row] = r;
+        }
+        int slot = r.slots.get( col );
+        if ( slot < 0 ) {
+            slot = r.slots.size();
+            r.slots.put( col, slot );
+            if ( slot == r.values.length ) r.values = Arrays.copyOf( r.values, slot * 2 );
+        }
+        r.values[slot] = values;
+    }
+
+    private void setLevel( int row, int col, int index, int level ) {
+        if ( symmetric && col < row ) {
+            setLevel( col, row, index, level );
+            return;
+        }
+        long[] values = find( row, col );
+        if ( values == null || values.length < getLength() ) {
+            values = values == null ? new long[getLength()] : Arrays.copyOf( values, getLength() );
+            put( row, col, values );
+        }
+        int k = index / valuesPerLong;
+        int shift = ( index % valuesPerLong ) * bits;
+        values[k] = ( values[k] & ~( ( long ) maxLevel << shift ) ) | ( ( long ) level << shift );
+    }
+
+}
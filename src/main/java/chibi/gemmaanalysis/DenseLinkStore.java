@@ -0,0 +1,104 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import ubic.basecode.dataStructure.matrix.CompressedBitMatrix;
+
+/**
+ * A {@link LinkStore} backed by a {@link CompressedBitMatrix}, i.e. the original in-memory representation.
+ */
+public class DenseLinkStore implements LinkStore {
+
+    private CompressedBitMatrix<Long, Long> matrix;
+
+    /**
+     * @param matrix
+     */
+    public DenseLinkStore( CompressedBitMatrix<Long, Long> matrix ) {
+        this.matrix = matrix;
+    }
+
+    @Override
+    public int bitCount( int row, int col ) {
+        return matrix.bitCount( row, col );
+    }
+
+    @Override
+    public int columns() {
+        return matrix.columns();
+    }
+
+    @Override
+    public boolean get( int row, int col, int index ) {
+        return matrix.get( row, col, index );
+    }
+
+    @Override
+    public long[] getAllBits( int row, int col ) {
+        return matrix.getAllBits( row, col );
+    }
+
+    @Override
+    public int getBitNum() {
+        return matrix.getBitNum();
+    }
+
+    @Override
+    public int getColIndexByName( long name ) {
+        if ( !matrix.containsColumnName( name ) ) return -1;
+        return matrix.getColIndexByName( name );
+    }
+
+    @Override
+    public long getColName( int i ) {
+        return matrix.getColName( i );
+    }
+
+    public CompressedBitMatrix<Long, Long> getMatrix() {
+        return matrix;
+    }
+
+    @Override
+    public int getRowIndexByName( long name ) {
+        if ( !matrix.containsRowName( name ) ) return -1;
+        return matrix.getRowIndexByName( name );
+    }
+
+    @Override
+    public long getRowName( int i ) {
+        return matrix.getRowName( i );
+    }
+
+    @Override
+    public int nextColumn( int row, int fromCol ) {
+        for ( int j = fromCol; j < matrix.columns(); j++ ) {
+            if ( matrix.bitCount( row, j ) > 0 ) return j;
+        }
+        return -1;
+    }
+
+    @Override
+    public int rows() {
+        return matrix.rows();
+    }
+
+    @Override
+    public void set( int row, int col, int index ) {
+        matrix.set( row, col, index );
+    }
+
+}
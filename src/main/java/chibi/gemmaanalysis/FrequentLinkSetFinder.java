@@ -141,15 +141,9 @@ public class FrequentLinkSetFinder {
         int index = rootNodeIndex + 1;
         while ( index < siblings.size() ) {
             TreeNode iter = ( TreeNode ) siblings.getQuick( index );
-            for ( int i = 0; i < childMask.length; i++ )
-                childMask[i] = iter.getMask()[i];
-            boolean mergedCondition = true;
-            for ( int i = 0; i < childMask.length; i++ ) {
-                if ( childMask[i] != ( childMask[i] & rootNode.getMask()[i] ) ) {
-                    childMask[i] = childMask[i] & rootNode.getMask()[i];
-                    mergedCondition = false;
-                }
-            }
+            LinkMatrix.AND( iter.getMask(), rootNode.getMask(), childMask );
+            // the sibling's experiments are all in the root's
+            boolean mergedCondition = LinkMatrix.compare( childMask, iter.getMask() );
             if ( LinkMatrix.countBits( childMask ) >= this.threshold ) {
                 if ( mergedCondition ) {
                     siblings.remove( index );
@@ -158,9 +152,7 @@ public class FrequentLinkSetFinder {
                     iter.setParent( rootNode );
                     merged = merged + 1;
                 } else {
-                    long mask[] = new long[childMask.length];
-                    for ( int i = 0; i < childMask.length; i++ )
-                        mask[i] = childMask[i];
+                    long mask[] = childMask.clone();
                     TreeNode newCreatedNode = new TreeNode( iter.getId(), mask, null );
                     newCreatedNode.setParent( rootNode );
                     newCreatedNode.setLevel( rootNode.getLevel() + 1 );
@@ -185,18 +177,7 @@ public class FrequentLinkSetFinder {
      * @return nodes which have support of at least threshold value.
      */
     private ObjectArrayList getValidNodes() {
-        ObjectArrayList validNodes = new ObjectArrayList();
-        for ( int i = 0; i < linkMatrix.getRawMatrix().rows(); i++ ) {
-            for ( int j = i + 1; j < linkMatrix.getRawMatrix().columns(); j++ ) {
-                if ( linkMatrix.getRawMatrix().bitCount( i, j ) >= this.threshold ) {
-                    TreeNode oneNode = new TreeNode( linkMatrix.generateId( i, j ), linkMatrix.getRawMatrix()
-                            .getAllBits( i, j ), null );
-                    oneNode.setMask( linkMatrix.getRawMatrix().getAllBits( i, j ) );
-                    validNodes.add( oneNode );
-                }
-            }
-        }
-        return validNodes;
+        return new LinkCandidateSource( linkMatrix, this.threshold ).toNodes();
     }
 
     /**
@@ -0,0 +1,165 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Serves {@link GeneNeighborhoodService} queries on a local (loopback) socket, one query per line:
+ *
+ * <pre>
+ * gene [topN [minSupport]]
+ * </pre>
+ *
+ * where gene is an official symbol or gene id. The answer is one line per partner,
+ * <code>partner&lt;TAB&gt;support</code>, most supported first, followed by an empty line; an unknown gene or a
+ * malformed query gets a single line starting with <code>ERROR</code> before the empty line. A client can send any
+ * number of queries on a connection, e.g.
+ *
+ * <pre>
+ * printf 'TP53 20 3\n' | nc localhost 7070
+ * </pre>
+ */
+public class GeneNeighborhoodServer implements Closeable {
+
+    private static Log log = LogFactory.getLog( GeneNeighborhoodServer.class.getName() );
+
+    private GeneNeighborhoodService service;
+    private int defaultTopN;
+    private int defaultMinSupport;
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    /**
+     * @param service
+     * @param defaultTopN used when a query does not give one
+     * @param defaultMinSupport used when a query does not give one
+     */
+    public GeneNeighborhoodServer( GeneNeighborhoodService service, int defaultTopN, int defaultMinSupport ) {
+        this.service = service;
+        this.defaultTopN = defaultTopN;
+        this.defaultMinSupport = defaultMinSupport;
+    }
+
+    /**
+     * Answer one query line.
+     *
+     * @param line
+     * @param out
+     * @throws IOException
+     */
+    public void answer( String line, Writer out ) throws IOException {
+        String[] fields = line.trim().split( "\\s+" );
+        try {
+            int topN = fields.length > 1 ? Integer.parseInt( fields[1] ) : defaultTopN;
+            int minSupport = fields.length > 2 ? Integer.parseInt( fields[2] ) : defaultMinSupport;
+            int row = service.getRow( fields[0] );
+            if ( row < 0 ) {
+                out.write( "ERROR gene not in the link matrix: " + fields[0] + "\n" );
+            } else {
+                for ( GeneNeighborhoodService.Neighbor neighbor : service.query( row, topN, minSupport ) )
+                    out.write( neighbor + "\n" );
+            }
+        } catch ( NumberFormatException e ) {
+            out.write( "ERROR expected: gene [topN [minSupport]]\n" );
+        }
+        out.write( "\n" );
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( executor != null ) executor.shutdownNow();
+        if ( serverSocket != null ) serverSocket.close();
+    }
+
+    /**
+     * @return the port being listened on, e.g. when started on port 0.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Listen on the loopback interface and answer connections on a pool of threads, until closed.
+     *
+     * @param port 0 for any free port
+     * @param numThreads number of connections served at the same time
+     * @throws IOException
+     */
+    public void start( int port, int numThreads ) throws IOException {
+        serverSocket = new ServerSocket( port, 50, InetAddress.getLoopbackAddress() );
+        executor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) + 1 );
+        executor.execute( new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        } );
+        log.info( "Answering gene neighborhood queries on port " + getPort() );
+    }
+
+    private void acceptConnections() {
+        while ( !serverSocket.isClosed() ) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        serve( socket );
+                    }
+                } );
+            } catch ( SocketException e ) {
+                // closed
+            } catch ( IOException e ) {
+                log.warn( "Could not accept a connection: " + e.getMessage() );
+            }
+        }
+    }
+
+    private void serve( Socket socket ) {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader( new InputStreamReader( s.getInputStream(),
+                        StandardCharsets.UTF_8 ) );
+                Writer out = new BufferedWriter( new OutputStreamWriter( s.getOutputStream(),
+                        StandardCharsets.UTF_8 ) );) {
+            for ( String line = in.readLine(); line != null; line = in.readLine() ) {
+                if ( line.trim().isEmpty() ) continue;
+                answer( line, out );
+            }
+        } catch ( IOException e ) {
+            log.warn( "Connection ended: " + e.getMessage() );
+        }
+    }
+
+}
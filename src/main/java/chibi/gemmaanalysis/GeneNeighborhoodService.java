@@ -0,0 +1,276 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ubic.gemma.model.genome.Gene;
+
+/**
+ * Answers "which genes are linked to this one, most supported first?" from a loaded link matrix. The partners of each
+ * row gene are sorted by support once, when the service is created, so a query only reads the first partners of its
+ * row; genes are looked up by official symbol or id in memory, without going to the database.
+ * <p>
+ * Thread-safe once created; see {@link GeneNeighborhoodServer} for a local socket endpoint.
+ */
+public class GeneNeighborhoodService {
+
+    /**
+     * A partner of a gene, with the number of experiments supporting their link.
+     */
+    public static class Neighbor {
+        private Gene gene;
+        private long geneId;
+        private int support;
+
+        private Neighbor( Gene gene, long geneId, int support ) {
+            this.gene = gene;
+            this.geneId = geneId;
+            this.support = support;
+        }
+
+        /**
+         * @return the gene, or null if the matrix has only its id.
+         */
+        public Gene getGene() {
+            return gene;
+        }
+
+        public long getGeneId() {
+            return geneId;
+        }
+
+        public int getSupport() {
+            return support;
+        }
+
+        @Override
+        public String toString() {
+            return getLabel( gene, geneId ) + "\t" + support;
+        }
+    }
+
+    private static final int ROWS_PER_BLOCK = 256;
+
+    private static Log log = LogFactory.getLog( GeneNeighborhoodService.class.getName() );
+
+    /**
+     * @param gene
+     * @param geneId
+     * @return the official symbol of the gene, or its id.
+     */
+    static String getLabel( Gene gene, long geneId ) {
+        if ( gene != null && gene.getOfficialSymbol() != null ) return gene.getOfficialSymbol();
+        return Long.toString( geneId );
+    }
+
+    private LinkMatrix linkMatrix;
+    private LinkStore store;
+
+    /**
+     * Partners (column indices) of each row, most supported first, ties in column order, and their support.
+     */
+    private int[] rowStart;
+    private int[] partners;
+    private char[] supports;
+
+    /**
+     * Row by upper-cased official symbol.
+     */
+    private Map<String, Integer> rowsBySymbol = new HashMap<>();
+
+    /**
+     * @param linkMatrix
+     * @param numThreads for sorting the partners
+     * @throws InterruptedException
+     */
+    public GeneNeighborhoodService( LinkMatrix linkMatrix, int numThreads ) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        this.linkMatrix = linkMatrix;
+        this.store = linkMatrix.getRawMatrix();
+        LinkSupport support = linkMatrix.getLinkSupport();
+        this.rowStart = new int[store.rows() + 1];
+        for ( int i = 0; i < store.rows(); i++ )
+            rowStart[i + 1] = rowStart[i] + support.cellsInRows( i, i + 1 );
+        this.partners = new int[rowStart[store.rows()]];
+        this.supports = new char[partners.length];
+        sortPartners( support, numThreads );
+
+        for ( int i = 0; i < store.rows(); i++ ) {
+            Gene gene = linkMatrix.getRowGene( i );
+            if ( gene == null || gene.getOfficialSymbol() == null ) continue;
+            String symbol = gene.getOfficialSymbol().toUpperCase();
+            if ( !rowsBySymbol.containsKey( symbol ) ) rowsBySymbol.put( symbol, i );
+        }
+        log.info( "Sorted " + partners.length + " partners of " + store.rows() + " genes in "
+                + ( System.currentTimeMillis() - start ) + "ms" );
+    }
+
+    /**
+     * @param row
+     * @param minSupport
+     * @return the number of partners of the row gene with at least that support.
+     */
+    public int getDegree( int row, int minSupport ) {
+        /*
+         * Supports decrease along the row: find the first one below minSupport.
+         */
+        int lo = rowStart[row], hi = rowStart[row + 1];
+        while ( lo < hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            if ( supports[mid] >= minSupport )
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo - rowStart[row];
+    }
+
+    /**
+     * @param query official symbol (any case) or gene id
+     * @return the row of the gene, or -1 if it is not a row gene of the matrix.
+     */
+    public int getRow( String query ) {
+        if ( StringUtils.isBlank( query ) ) return -1;
+        Integer row = rowsBySymbol.get( query.trim().toUpperCase() );
+        if ( row != null ) return row;
+        try {
+            return store.getRowIndexByName( Long.parseLong( query.trim() ) );
+        } catch ( NumberFormatException e ) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param row
+     * @param topN
+     * @param minSupport
+     * @return up to topN partners of the row gene with at least minSupport, most supported first.
+     */
+    public List<Neighbor> query( int row, int topN, int minSupport ) {
+        if ( row < 0 || row >= store.rows() ) return Collections.emptyList();
+        int n = Math.min( topN, getDegree( row, Math.max( 1, minSupport ) ) );
+        List<Neighbor> res = new ArrayList<>( n );
+        for ( int k = rowStart[row]; k < rowStart[row] + n; k++ ) {
+            int col = partners[k];
+            res.add( new Neighbor( linkMatrix.getColGene( col ), store.getColName( col ), supports[k] ) );
+        }
+        return res;
+    }
+
+    /**
+     * @param query official symbol (any case) or gene id
+     * @param topN
+     * @param minSupport
+     * @return up to topN partners of the gene with at least minSupport, most supported first; empty if the gene is
+     *         not in the matrix.
+     */
+    public List<Neighbor> query( String query, int topN, int minSupport ) {
+        return query( getRow( query ), topN, minSupport );
+    }
+
+    /**
+     * Answer a list of genes, one per line (symbol or id; blank lines and lines starting with # are skipped), writing
+     * one tab-delimited line per partner: query, partner, support. Genes not in the matrix are logged and skipped.
+     *
+     * @param genes
+     * @param out
+     * @param topN
+     * @param minSupport
+     * @return the number of genes answered.
+     * @throws IOException
+     */
+    public int queryBatch( BufferedReader genes, Writer out, int topN, int minSupport ) throws IOException {
+        int answered = 0;
+        out.write( "#query\tpartner\tsupport\n" );
+        for ( String line = genes.readLine(); line != null; line = genes.readLine() ) {
+            String query = line.trim();
+            if ( query.isEmpty() || query.startsWith( "#" ) ) continue;
+            int row = getRow( query );
+            if ( row < 0 ) {
+                log.warn( "Gene not in the link matrix: " + query );
+                continue;
+            }
+            for ( Neighbor neighbor : query( row, topN, minSupport ) )
+                out.write( query + "\t" + neighbor + "\n" );
+            answered++;
+        }
+        out.flush();
+        return answered;
+    }
+
+    private void sortPartners( final LinkSupport support, int numThreads ) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for ( int first = 0; first < store.rows(); first += ROWS_PER_BLOCK ) {
+                final int from = first;
+                final int to = Math.min( store.rows(), first + ROWS_PER_BLOCK );
+                futures.add( executor.submit( new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        sortRows( support, from, to );
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Object> future : futures )
+                future.get();
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sort each row on keys packing (max - support, column), so a plain ascending sort puts the most supported first.
+     */
+    private void sortRows( LinkSupport support, int from, int to ) {
+        long[] keys = new long[0];
+        for ( int i = from; i < to; i++ ) {
+            int n = rowStart[i + 1] - rowStart[i];
+            if ( keys.length < n ) keys = new long[Math.max( n, keys.length * 2 )];
+            int k = 0;
+            for ( int j = support.nextColumn( i, 0, 1 ); j >= 0; j = support.nextColumn( i, j + 1, 1 ) )
+                keys[k++] = ( ( long ) ( Character.MAX_VALUE - support.get( i, j ) ) << 32 ) | j;
+            Arrays.sort( keys, 0, n );
+            for ( k = 0; k < n; k++ ) {
+                partners[rowStart[i] + k] = ( int ) keys[k];
+                supports[rowStart[i] + k] = ( char ) ( Character.MAX_VALUE - ( keys[k] >>> 32 ) );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.Arrays;
+
+import ubic.basecode.ontology.model.OntologyTerm;
+
+/**
+ * Enrichment of one GO term among the genes of a set of links, against the genes of the whole link matrix, with the
+ * hypergeometric upper tail p-value. Also holds the counting helpers shared with
+ * {@link LinkMatrix#computeGOOverlap(LongOpenHashSet, int)}.
+ *
+ * @see LinkMatrix#computeGOEnrichment(LongOpenHashSet, int)
+ */
+public class GoEnrichment implements Comparable<GoEnrichment> {
+
+    /**
+     * Top k of counts with a bounded min-heap of term ids, O(n log k).
+     *
+     * @param counts per term id
+     * @param k
+     * @return the term ids of the k largest non-zero counts, largest first; ties with the k-th are included, so there
+     *         may be more than k.
+     */
+    public static int[] topK( int[] counts, int k ) {
+        if ( k <= 0 ) return new int[0];
+        int[] heap = new int[k];
+        int size = 0;
+        for ( int t = 0; t < counts.length; t++ ) {
+            if ( counts[t] == 0 ) continue;
+            if ( size < k ) {
+                heap[size] = t;
+                siftUp( heap, size++, counts );
+            } else if ( counts[t] > counts[heap[0]] ) {
+                heap[0] = t;
+                siftDown( heap, size, counts );
+            }
+        }
+        if ( size == 0 ) return new int[0];
+        int threshold = counts[heap[0]];
+        int n = 0;
+        for ( int t = 0; t < counts.length; t++ )
+            if ( counts[t] >= threshold && counts[t] > 0 ) n++;
+        int[] res = new int[n];
+        n = 0;
+        for ( int t = 0; t < counts.length; t++ )
+            if ( counts[t] >= threshold && counts[t] > 0 ) res[n++] = t;
+        sortByCountDescending( res, counts );
+        return res;
+    }
+
+    /**
+     * @param k number of sampled genes with the term
+     * @param n number of sampled genes
+     * @param termGenes number of genes in the universe with the term
+     * @param universe number of genes in the universe
+     * @param logFactorials ln(i!) for i up to at least universe, see {@link #logFactorials(int)}
+     * @return P(X &gt;= k) for X hypergeometric.
+     */
+    public static double upperTail( int k, int n, int termGenes, int universe, double[] logFactorials ) {
+        int max = Math.min( n, termGenes );
+        if ( k > max ) return 0.0;
+        int min = Math.max( 0, n - ( universe - termGenes ) );
+        if ( k <= min ) return 1.0;
+        double logDenominator = logChoose( universe, n, logFactorials );
+        double p = 0.0;
+        for ( int i = k; i <= max; i++ ) {
+            p += Math.exp( logChoose( termGenes, i, logFactorials )
+                    + logChoose( universe - termGenes, n - i, logFactorials ) - logDenominator );
+        }
+        return Math.min( 1.0, p );
+    }
+
+    /**
+     * @param max
+     * @return ln(i!) for i = 0..max.
+     */
+    public static double[] logFactorials( int max ) {
+        double[] res = new double[max + 1];
+        for ( int i = 2; i <= max; i++ )
+            res[i] = res[i - 1] + Math.log( i );
+        return res;
+    }
+
+    private static double logChoose( int n, int k, double[] logFactorials ) {
+        return logFactorials[n] - logFactorials[k] - logFactorials[n - k];
+    }
+
+    private static void siftDown( int[] heap, int size, int[] counts ) {
+        int i = 0;
+        while ( true ) {
+            int smallest = i;
+            int l = 2 * i + 1, r = l + 1;
+            if ( l < size && counts[heap[l]] < counts[heap[smallest]] ) smallest = l;
+            if ( r < size && counts[heap[r]] < counts[heap[smallest]] ) smallest = r;
+            if ( smallest == i ) return;
+            int tmp = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = tmp;
+            i = smallest;
+        }
+    }
+
+    private static void siftUp( int[] heap, int i, int[] counts ) {
+        while ( i > 0 ) {
+            int parent = ( i - 1 ) / 2;
+            if ( counts[heap[parent]] <= counts[heap[i]] ) return;
+            int tmp = heap[i];
+            heap[i] = heap[parent];
+            heap[parent] = tmp;
+            i = parent;
+        }
+    }
+
+    private static void sortByCountDescending( int[] termIds, int[] counts ) {
+        long[] keyed = new long[termIds.length];
+        for ( int i = 0; i < termIds.length; i++ )
+            keyed[i] = ( ( long ) ( Integer.MAX_VALUE - counts[termIds[i]] ) << 32 ) | termIds[i];
+        Arrays.sort( keyed );
+        for ( int i = 0; i < termIds.length; i++ )
+            termIds[i] = ( int ) keyed[i];
+    }
+
+    private OntologyTerm term;
+    private int count;
+    private int sampleSize;
+    private int termGenes;
+    private int universe;
+    private double pValue;
+
+    /**
+     * @param term
+     * @param count genes of the links with the term
+     * @param sampleSize genes of the links
+     * @param termGenes genes of the matrix with the term
+     * @param universe genes of the matrix
+     * @param pValue
+     */
+    public GoEnrichment( OntologyTerm term, int count, int sampleSize, int termGenes, int universe, double pValue ) {
+        this.term = term;
+        this.count = count;
+        this.sampleSize = sampleSize;
+        this.termGenes = termGenes;
+        this.universe = universe;
+        this.pValue = pValue;
+    }
+
+    /**
+     * Most significant first.
+     */
+    @Override
+    public int compareTo( GoEnrichment o ) {
+        int res = Double.compare( pValue, o.pValue );
+        if ( res == 0 ) res = Integer.compare( o.count, count );
+        return res;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of genes with the term expected in a random sample of the same size.
+     */
+    public double getExpected() {
+        return universe == 0 ? 0.0 : ( double ) sampleSize * termGenes / universe;
+    }
+
+    public double getPValue() {
+        return pValue;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public OntologyTerm getTerm() {
+        return term;
+    }
+
+    public int getTermGenes() {
+        return termGenes;
+    }
+
+    public int getUniverse() {
+        return universe;
+    }
+
+    @Override
+    public String toString() {
+        return term.getTerm() + " " + count + "/" + sampleSize + " vs " + termGenes + "/" + universe + " p=" + pValue;
+    }
+
+}
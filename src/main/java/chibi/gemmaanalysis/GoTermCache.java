@@ -0,0 +1,236 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ubic.basecode.ontology.model.OntologyTerm;
+import ubic.gemma.core.ontology.providers.GeneOntologyService;
+import ubic.gemma.model.genome.Gene;
+
+/**
+ * Caches the GO terms of genes, and the GO overlap of links, so that labelling and exporting links does not go back
+ * to the ontology for every link. Terms are interned to int ids and each gene's terms kept as a sorted
+ * <code>int[]</code>; the overlap of two genes is then the size of the intersection of two sorted arrays, which is
+ * what {@link GeneOntologyService#calculateGoTermOverlap(Gene, Gene)} computes from
+ * {@link GeneOntologyService#getGOTerms(Gene)}.
+ * <p>
+ * Both caches are bounded, dropping the least recently used entries; term ids are never dropped. All methods are
+ * thread-safe.
+ */
+public class GoTermCache {
+
+    /**
+     * Least recently used entries are dropped beyond the capacity.
+     */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+        private int capacity;
+
+        LruMap( int capacity ) {
+            super( 16, 0.75f, true );
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<K, V> eldest ) {
+            return size() > capacity;
+        }
+    }
+
+    public static final int DEFAULT_GENE_CAPACITY = 100000;
+
+    public static final int DEFAULT_LINK_CAPACITY = 1000000;
+
+    private static Log log = LogFactory.getLog( GoTermCache.class.getName() );
+
+    /**
+     * @param terms1 sorted
+     * @param terms2 sorted
+     * @return the number of terms in both.
+     */
+    public static int overlap( int[] terms1, int[] terms2 ) {
+        int n = 0;
+        for ( int i = 0, j = 0; i < terms1.length && j < terms2.length; ) {
+            if ( terms1[i] < terms2[j] ) {
+                i++;
+            } else if ( terms1[i] > terms2[j] ) {
+                j++;
+            } else {
+                n++;
+                i++;
+                j++;
+            }
+        }
+        return n;
+    }
+
+    private GeneOntologyService goService;
+
+    private Map<String, Integer> termIds = new HashMap<>();
+    private List<OntologyTerm> terms = new ArrayList<>();
+
+    private LruMap<Long, int[]> geneTerms;
+    private LruMap<Long, Integer> linkOverlaps;
+
+    /**
+     * @param goService
+     */
+    public GoTermCache( GeneOntologyService goService ) {
+        this( goService, DEFAULT_GENE_CAPACITY, DEFAULT_LINK_CAPACITY );
+    }
+
+    /**
+     * @param goService
+     * @param geneCapacity maximum number of genes whose terms are kept
+     * @param linkCapacity maximum number of link overlaps kept
+     */
+    public GoTermCache( GeneOntologyService goService, int geneCapacity, int linkCapacity ) {
+        this.goService = goService;
+        this.geneTerms = new LruMap<>( geneCapacity );
+        this.linkOverlaps = new LruMap<>( linkCapacity );
+    }
+
+    /**
+     * @param id
+     * @return the term with the given interned id.
+     */
+    public synchronized OntologyTerm getTerm( int id ) {
+        return terms.get( id );
+    }
+
+    /**
+     * @param gene
+     * @return the interned ids of the GO terms of the gene, sorted. Do not modify.
+     */
+    public int[] getTermIds( Gene gene ) {
+        synchronized ( this ) {
+            int[] ids = geneTerms.get( gene.getId() );
+            if ( ids != null ) return ids;
+        }
+        /*
+         * Ontology lookups can be slow; don't hold the lock. Two threads may look up the same gene, which is harmless.
+         */
+        Collection<OntologyTerm> goTerms = goService.getGOTerms( gene );
+        synchronized ( this ) {
+            int[] ids = new int[goTerms == null ? 0 : goTerms.size()];
+            int n = 0;
+            if ( goTerms != null ) {
+                for ( OntologyTerm term : goTerms )
+                    ids[n++] = intern( term );
+            }
+            Arrays.sort( ids );
+            geneTerms.put( gene.getId(), ids );
+            return ids;
+        }
+    }
+
+    /**
+     * @param gene
+     * @return the GO terms of the gene.
+     */
+    public Collection<OntologyTerm> getTerms( Gene gene ) {
+        int[] ids = getTermIds( gene );
+        Collection<OntologyTerm> res = new ArrayList<>( ids.length );
+        synchronized ( this ) {
+            for ( int id : ids )
+                res.add( terms.get( id ) );
+        }
+        return res;
+    }
+
+    /**
+     * @param linkId key for the link overlap cache
+     * @param gene1
+     * @param gene2
+     * @return the number of GO terms shared by the genes of the link.
+     */
+    public int linkOverlap( long linkId, Gene gene1, Gene gene2 ) {
+        synchronized ( this ) {
+            Integer overlap = linkOverlaps.get( linkId );
+            if ( overlap != null ) return overlap;
+        }
+        int overlap = overlap( getTermIds( gene1 ), getTermIds( gene2 ) );
+        synchronized ( this ) {
+            linkOverlaps.put( linkId, overlap );
+        }
+        return overlap;
+    }
+
+    /**
+     * @param genes
+     * @return for each interned term id, the number of the genes that have the term.
+     */
+    public int[] countTerms( Collection<Gene> genes ) {
+        int[][] termIds = new int[genes.size()][];
+        int g = 0;
+        for ( Gene gene : genes )
+            termIds[g++] = getTermIds( gene );
+        int[] counts = new int[numTerms()];
+        for ( int[] ids : termIds ) {
+            for ( int id : ids ) {
+                if ( id >= counts.length ) counts = Arrays.copyOf( counts, numTerms() );
+                counts[id]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of distinct terms seen so far; interned ids are below this.
+     */
+    public synchronized int numTerms() {
+        return terms.size();
+    }
+
+    /**
+     * Look up the terms of all the genes now, rather than one by one as links are labelled.
+     *
+     * @param genes
+     */
+    public void warm( Collection<Gene> genes ) {
+        long start = System.currentTimeMillis();
+        int n = 0;
+        for ( Gene gene : genes ) {
+            if ( gene == null ) continue;
+            getTermIds( gene );
+            if ( ++n % 5000 == 0 ) log.info( "Got GO terms for " + n + " genes" );
+        }
+        log.info( "Got GO terms for " + n + " genes (" + numTerms() + " terms) in "
+                + ( System.currentTimeMillis() - start ) / 1000 + "s" );
+    }
+
+    private int intern( OntologyTerm term ) {
+        Integer id = termIds.get( term.getUri() );
+        if ( id == null ) {
+            id = terms.size();
+            terms.add( term );
+            termIds.put( term.getUri(), id );
+        }
+        return id;
+    }
+
+}
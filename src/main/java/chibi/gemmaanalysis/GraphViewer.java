@@ -35,7 +35,6 @@ import java.io.OutputStream;
 import java.text.NumberFormat;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -390,7 +389,7 @@ public class GraphViewer implements PropertyChangeListener, ActionListener, Wind
             TreeNode root = ( TreeNode ) clusterRootNodes.get( currentIndex );
             LinkGraphClustering.collectTreeNodes( leafNodes, new ObjectArrayList(), root );
         }
-        Collection<Long> treeIds = new HashSet<>();
+        LongOpenHashSet treeIds = new LongOpenHashSet( leafNodes.size() );
         for ( int i = 0; i < leafNodes.size(); i++ ) {
             TreeNode treeNode = ( TreeNode ) leafNodes.get( i );
             treeIds.add( treeNode.getId() );
@@ -0,0 +1,501 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compressed set of non-negative long ids (here, link ids), organized like a roaring bitmap: ids are grouped into
+ * chunks of 2<sup>16</sup> by their high bits, and each chunk holds its low 16 bits either as a sorted
+ * <code>char[]</code> (sparse chunks) or as a 1024-word bitmap (chunks with more than {@link #ARRAY_MAX} ids). Adding
+ * ids in increasing order is constant time.
+ * <p>
+ * Not thread-safe.
+ */
+public class LinkBitmap {
+
+    /**
+     * Above this many ids, a chunk is stored as a bitmap, which is then the smaller of the two.
+     */
+    static final int ARRAY_MAX = 4096;
+
+    private static final int BITMAP_WORDS = 1 << 16 >>> 6;
+
+    /**
+     * @param bitmaps
+     * @param k
+     * @return the ids present in at least k of the bitmaps; for k of at most 1, in any of them.
+     */
+    public static LinkBitmap atLeast( List<LinkBitmap> bitmaps, int k ) {
+        k = Math.max( k, 1 );
+        LinkBitmap res = new LinkBitmap();
+        if ( bitmaps.size() < k ) return res;
+
+        /*
+         * Visit the chunks in key order, merging over all bitmaps; count the low bits of each chunk. Link ids carry the
+         * row in their high bits, so most chunks hold a handful of ids: for those, only the low bits that were seen are
+         * counted and reset. Counters over the whole chunk are only used when one of the containers is a bitmap. A
+         * chunk found in a single bitmap (which can only be kept for k = 1) is copied as it is.
+         */
+        int[] pos = new int[bitmaps.size()];
+        int[] counts = new int[1 << 16];
+        char[] touched = new char[1 << 16];
+        char[] hits = new char[1 << 16];
+        long[] words = new long[BITMAP_WORDS];
+        while ( true ) {
+            long key = Long.MAX_VALUE;
+            for ( int b = 0; b < pos.length; b++ ) {
+                LinkBitmap bm = bitmaps.get( b );
+                if ( pos[b] < bm.size ) key = Math.min( key, bm.keys[pos[b]] );
+            }
+            if ( key == Long.MAX_VALUE ) break;
+            int present = 0;
+            boolean dense = false;
+            for ( int b = 0; b < pos.length; b++ ) {
+                LinkBitmap bm = bitmaps.get( b );
+                if ( pos[b] < bm.size && bm.keys[pos[b]] == key ) {
+                    present++;
+                    if ( bm.containers[pos[b]] instanceof long[] ) dense = true;
+                }
+            }
+            if ( present == 1 && k == 1 ) {
+                for ( int b = 0; b < pos.length; b++ ) {
+                    LinkBitmap bm = bitmaps.get( b );
+                    if ( pos[b] < bm.size && bm.keys[pos[b]] == key ) {
+                        res.appendCopy( key, bm.containers[pos[b]], bm.cardinalities[pos[b]] );
+                    }
+                }
+            } else if ( k == 1 && dense ) {
+                Arrays.fill( words, 0 );
+                for ( int b = 0; b < pos.length; b++ ) {
+                    LinkBitmap bm = bitmaps.get( b );
+                    if ( pos[b] < bm.size && bm.keys[pos[b]] == key ) bm.orInto( words, pos[b] );
+                }
+                res.appendChunk( key, words );
+            } else if ( present >= k ) {
+                if ( dense ) {
+                    for ( int b = 0; b < pos.length; b++ ) {
+                        LinkBitmap bm = bitmaps.get( b );
+                        if ( pos[b] < bm.size && bm.keys[pos[b]] == key ) {
+                            Object c = bm.containers[pos[b]];
+                            if ( c instanceof char[] ) {
+                                char[] a = ( char[] ) c;
+                                for ( int i = 0; i < bm.cardinalities[pos[b]]; i++ )
+                                    counts[a[i]]++;
+                            } else {
+                                long[] w = ( long[] ) c;
+                                for ( int i = 0; i < w.length; i++ ) {
+                                    for ( long word = w[i]; word != 0; word &= word - 1 )
+                                        counts[( i << 6 ) + Long.numberOfTrailingZeros( word )]++;
+                                }
+                            }
+                        }
+                    }
+                    Arrays.fill( words, 0 );
+                    for ( int low = 0; low < counts.length; low++ ) {
+                        if ( counts[low] >= k ) words[low >>> 6] |= 1L << low;
+                    }
+                    Arrays.fill( counts, 0 );
+                    res.appendChunk( key, words );
+                } else {
+                    int nTouched = 0;
+                    int nHits = 0;
+                    for ( int b = 0; b < pos.length; b++ ) {
+                        LinkBitmap bm = bitmaps.get( b );
+                        if ( pos[b] < bm.size && bm.keys[pos[b]] == key ) {
+                            char[] a = ( char[] ) bm.containers[pos[b]];
+                            for ( int i = 0; i < bm.cardinalities[pos[b]]; i++ ) {
+                                int count = ++counts[a[i]];
+                                if ( count == 1 ) touched[nTouched++] = a[i];
+                                if ( count == k ) hits[nHits++] = a[i];
+                            }
+                        }
+                    }
+                    for ( int i = 0; i < nTouched; i++ )
+                        counts[touched[i]] = 0;
+                    if ( nHits > 0 ) {
+                        Arrays.sort( hits, 0, nHits );
+                        res.appendChunk( key, hits, nHits );
+                    }
+                }
+            }
+            for ( int b = 0; b < pos.length; b++ ) {
+                LinkBitmap bm = bitmaps.get( b );
+                if ( pos[b] < bm.size && bm.keys[pos[b]] == key ) pos[b]++;
+            }
+        }
+        return res;
+    }
+
+    private long[] keys = new long[4];
+    private Object[] containers = new Object[4];
+    private int[] cardinalities = new int[4];
+    private int size = 0;
+
+    /**
+     * @param id must not be negative.
+     */
+    public void add( long id ) {
+        long key = id >>> 16;
+        char low = ( char ) ( id & 0xFFFF );
+        int c;
+        if ( size > 0 && keys[size - 1] == key ) {
+            c = size - 1;
+        } else if ( size == 0 || keys[size - 1] < key ) {
+            c = insertChunk( size, key );
+        } else {
+            c = Arrays.binarySearch( keys, 0, size, key );
+            if ( c < 0 ) c = insertChunk( -c - 1, key );
+        }
+        Object container = containers[c];
+        if ( container instanceof long[] ) {
+            long[] w = ( long[] ) container;
+            long bit = 1L << low;
+            if ( ( w[low >>> 6] & bit ) == 0 ) {
+                w[low >>> 6] |= bit;
+                cardinalities[c]++;
+            }
+            return;
+        }
+        char[] a = ( char[] ) container;
+        int n = cardinalities[c];
+        int i;
+        if ( n == 0 || a[n - 1] < low ) {
+            i = n;
+        } else {
+            i = Arrays.binarySearch( a, 0, n, low );
+            if ( i >= 0 ) return;
+            i = -i - 1;
+        }
+        if ( n == ARRAY_MAX ) {
+            long[] w = toWords( a, n );
+            w[low >>> 6] |= 1L << low;
+            containers[c] = w;
+            cardinalities[c]++;
+            return;
+        }
+        if ( n == a.length ) {
+            a = Arrays.copyOf( a, Math.min( ARRAY_MAX, n * 2 ) );
+            containers[c] = a;
+        }
+        System.arraycopy( a, i, a, i + 1, n - i );
+        a[i] = low;
+        cardinalities[c]++;
+    }
+
+    /**
+     * @param other
+     * @return a new bitmap with the ids present in both.
+     */
+    public LinkBitmap and( LinkBitmap other ) {
+        LinkBitmap res = new LinkBitmap();
+        char[] lows = null;
+        int i = 0, j = 0;
+        while ( i < size && j < other.size ) {
+            if ( keys[i] < other.keys[j] ) {
+                i++;
+            } else if ( keys[i] > other.keys[j] ) {
+                j++;
+            } else {
+                Object x = containers[i];
+                Object y = other.containers[j];
+                if ( x instanceof long[] && y instanceof long[] ) {
+                    long[] v = ( long[] ) x;
+                    long[] w = ( long[] ) y;
+                    long[] words = new long[BITMAP_WORDS];
+                    for ( int k = 0; k < words.length; k++ )
+                        words[k] = v[k] & w[k];
+                    res.appendChunk( keys[i], words );
+                } else {
+                    if ( lows == null ) lows = new char[ARRAY_MAX];
+                    int n;
+                    if ( x instanceof char[] && y instanceof char[] ) {
+                        n = intersect( ( char[] ) x, cardinalities[i], ( char[] ) y, other.cardinalities[j], lows );
+                    } else if ( x instanceof char[] ) {
+                        n = filter( ( char[] ) x, cardinalities[i], ( long[] ) y, lows );
+                    } else {
+                        n = filter( ( char[] ) y, other.cardinalities[j], ( long[] ) x, lows );
+                    }
+                    if ( n > 0 ) res.appendChunk( keys[i], lows, n );
+                }
+                i++;
+                j++;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return number of ids.
+     */
+    public long cardinality() {
+        long n = 0;
+        for ( int c = 0; c < size; c++ )
+            n += cardinalities[c];
+        return n;
+    }
+
+    /**
+     * @param id
+     * @return
+     */
+    public boolean contains( long id ) {
+        if ( id < 0 ) return false;
+        int c = Arrays.binarySearch( keys, 0, size, id >>> 16 );
+        if ( c < 0 ) return false;
+        char low = ( char ) ( id & 0xFFFF );
+        Object container = containers[c];
+        if ( container instanceof long[] ) return ( ( ( long[] ) container )[low >>> 6] & ( 1L << low ) ) != 0;
+        return Arrays.binarySearch( ( char[] ) container, 0, cardinalities[c], low ) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param other
+     * @return a new bitmap with the ids present in either.
+     */
+    public LinkBitmap or( LinkBitmap other ) {
+        LinkBitmap res = new LinkBitmap();
+        char[] lows = null;
+        int i = 0, j = 0;
+        while ( i < size || j < other.size ) {
+            if ( j >= other.size || ( i < size && keys[i] < other.keys[j] ) ) {
+                res.appendCopy( keys[i], containers[i], cardinalities[i] );
+                i++;
+            } else if ( i >= size || other.keys[j] < keys[i] ) {
+                res.appendCopy( other.keys[j], other.containers[j], other.cardinalities[j] );
+                j++;
+            } else {
+                Object x = containers[i];
+                Object y = other.containers[j];
+                if ( x instanceof char[] && y instanceof char[] ) {
+                    if ( lows == null ) lows = new char[2 * ARRAY_MAX];
+                    int n = union( ( char[] ) x, cardinalities[i], ( char[] ) y, other.cardinalities[j], lows );
+                    res.appendChunk( keys[i], lows, n );
+                } else if ( x instanceof long[] ) {
+                    res.appendUnion( keys[i], ( long[] ) x, cardinalities[i], y, other.cardinalities[j] );
+                } else {
+                    res.appendUnion( keys[i], ( long[] ) y, other.cardinalities[j], x, cardinalities[i] );
+                }
+                i++;
+                j++;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return approximate memory used, in bytes.
+     */
+    public long sizeInBytes() {
+        long bytes = size * ( 8L + 4L + 16L );
+        for ( int c = 0; c < size; c++ ) {
+            Object container = containers[c];
+            bytes += container instanceof long[] ? BITMAP_WORDS * 8L : ( ( char[] ) container ).length * 2L;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the ids, in increasing order.
+     */
+    public long[] toArray() {
+        long[] res = new long[( int ) cardinality()];
+        int n = 0;
+        for ( int c = 0; c < size; c++ ) {
+            long high = keys[c] << 16;
+            Object container = containers[c];
+            if ( container instanceof char[] ) {
+                char[] a = ( char[] ) container;
+                for ( int i = 0; i < cardinalities[c]; i++ )
+                    res[n++] = high | a[i];
+            } else {
+                long[] w = ( long[] ) container;
+                for ( int i = 0; i < w.length; i++ ) {
+                    for ( long word = w[i]; word != 0; word &= word - 1 )
+                        res[n++] = high | ( ( i << 6 ) + Long.numberOfTrailingZeros( word ) );
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Append a chunk whose key is larger than all the current ones, in whichever form is smaller. Empty chunks are
+     * dropped.
+     */
+    private void appendChunk( long key, long[] words ) {
+        int n = 0;
+        for ( long w : words )
+            n += Long.bitCount( w );
+        if ( n == 0 ) return;
+        int c = insertChunk( size, key );
+        if ( n > ARRAY_MAX ) {
+            containers[c] = words.clone();
+        } else {
+            char[] a = new char[n];
+            int k = 0;
+            for ( int i = 0; i < words.length; i++ ) {
+                for ( long word = words[i]; word != 0; word &= word - 1 )
+                    a[k++] = ( char ) ( ( i << 6 ) + Long.numberOfTrailingZeros( word ) );
+            }
+            containers[c] = a;
+        }
+        cardinalities[c] = n;
+    }
+
+    /**
+     * Append a chunk whose key is larger than all the current ones, from its first n low bits, sorted and distinct.
+     */
+    private void appendChunk( long key, char[] lows, int n ) {
+        int c = insertChunk( size, key );
+        containers[c] = n > ARRAY_MAX ? toWords( lows, n ) : Arrays.copyOf( lows, n );
+        cardinalities[c] = n;
+    }
+
+    /**
+     * Append a copy of a container, with n ids, as a chunk whose key is larger than all the current ones.
+     */
+    private void appendCopy( long key, Object container, int n ) {
+        int c = insertChunk( size, key );
+        containers[c] = container instanceof long[] ? ( ( long[] ) container ).clone() : Arrays.copyOf(
+                ( char[] ) container, n );
+        cardinalities[c] = n;
+    }
+
+    /**
+     * Append the union of a bitmap container and another container as a chunk whose key is larger than all the current
+     * ones. Only the bits of an array container are counted; the union of two bitmaps is counted word by word.
+     */
+    private void appendUnion( long key, long[] bitmap, int n, Object other, int otherN ) {
+        long[] w = bitmap.clone();
+        if ( other instanceof long[] ) {
+            long[] v = ( long[] ) other;
+            n = 0;
+            for ( int k = 0; k < w.length; k++ ) {
+                w[k] |= v[k];
+                n += Long.bitCount( w[k] );
+            }
+        } else {
+            char[] a = ( char[] ) other;
+            for ( int i = 0; i < otherN; i++ ) {
+                long bit = 1L << a[i];
+                if ( ( w[a[i] >>> 6] & bit ) == 0 ) {
+                    w[a[i] >>> 6] |= bit;
+                    n++;
+                }
+            }
+        }
+        int c = insertChunk( size, key );
+        containers[c] = w;
+        cardinalities[c] = n;
+    }
+
+    /**
+     * @return the number of low bits of the array also set in the bitmap, which are put in res.
+     */
+    private static int filter( char[] a, int n, long[] w, char[] res ) {
+        int k = 0;
+        for ( int i = 0; i < n; i++ ) {
+            if ( ( w[a[i] >>> 6] & ( 1L << a[i] ) ) != 0 ) res[k++] = a[i];
+        }
+        return k;
+    }
+
+    /**
+     * @return the number of low bits in both sorted arrays, which are put in res.
+     */
+    private static int intersect( char[] a, int na, char[] b, int nb, char[] res ) {
+        int i = 0, j = 0, k = 0;
+        while ( i < na && j < nb ) {
+            if ( a[i] < b[j] ) {
+                i++;
+            } else if ( a[i] > b[j] ) {
+                j++;
+            } else {
+                res[k++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * @return the number of low bits in either sorted array, which are put in res, sorted.
+     */
+    private static int union( char[] a, int na, char[] b, int nb, char[] res ) {
+        int i = 0, j = 0, k = 0;
+        while ( i < na && j < nb ) {
+            if ( a[i] < b[j] ) {
+                res[k++] = a[i++];
+            } else if ( a[i] > b[j] ) {
+                res[k++] = b[j++];
+            } else {
+                res[k++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        while ( i < na )
+            res[k++] = a[i++];
+        while ( j < nb )
+            res[k++] = b[j++];
+        return k;
+    }
+
+    private int insertChunk( int c, long key ) {
+        if ( size == keys.length ) {
+            keys = Arrays.copyOf( keys, size * 2 );
+            containers = Arrays.copyOf( containers, size * 2 );
+            cardinalities = Arrays.copyOf( cardinalities, size * 2 );
+        }
+        System.arraycopy( keys, c, keys, c + 1, size - c );
+        System.arraycopy( containers, c, containers, c + 1, size - c );
+        System.arraycopy( cardinalities, c, cardinalities, c + 1, size - c );
+        keys[c] = key;
+        containers[c] = new char[4];
+        cardinalities[c] = 0;
+        size++;
+        return c;
+    }
+
+    private void orInto( long[] words, int c ) {
+        Object container = containers[c];
+        if ( container instanceof long[] ) {
+            long[] w = ( long[] ) container;
+            for ( int k = 0; k < w.length; k++ )
+                words[k] |= w[k];
+        } else {
+            char[] a = ( char[] ) container;
+            for ( int i = 0; i < cardinalities[c]; i++ )
+                words[a[i] >>> 6] |= 1L << a[i];
+        }
+    }
+
+    private long[] toWords( char[] a, int n ) {
+        long[] w = new long[BITMAP_WORDS];
+        for ( int i = 0; i < n; i++ )
+            w[a[i] >>> 6] |= 1L << a[i];
+        return w;
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cern.colt.list.ObjectArrayList;
+
+/**
+ * The links of a {@link LinkMatrix} with at least a given support, optionally filtered, in row order; each pair of
+ * genes once, in the cell counted by {@link LinkPairs} (above the diagonal when the rows and columns are the same genes
+ * in the same order). This is the scan that the clustering, the link set finder and
+ * {@link LinkMatrix#saveLinkMatrix(String)} start from; it walks the {@link LinkSupport} counts, so it works the same
+ * whatever the store is, and only reads the masks of the links it returns.
+ * <p>
+ * Sources are immutable and can be walked any number of times, each walk with its own {@link Cursor}. For parallel
+ * consumers, {@link #split(int)} cuts the rows into blocks of about the same number of cells.
+ */
+public class LinkCandidateSource {
+
+    /**
+     * Walk over the links of a source:
+     *
+     * <pre>
+     * Cursor cursor = source.cursor();
+     * while ( cursor.next() ) { ... cursor.getLinkId() ... cursor.getMask() ... }
+     * </pre>
+     */
+    public class Cursor {
+        private int row = fromRow;
+        private int col = -1;
+
+        /**
+         * @return the experiment bits of the current link; a new array each time.
+         */
+        public long[] getMask() {
+            return store.getAllBits( row, col );
+        }
+
+        public int getCol() {
+            return col;
+        }
+
+        public long getLinkId() {
+            return linkMatrix.generateId( row, col );
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        /**
+         * @return the number of experiments supporting the current link.
+         */
+        public int getSupport() {
+            return support.get( row, col );
+        }
+
+        /**
+         * Move to the next link.
+         *
+         * @return false if there are no more.
+         */
+        public boolean next() {
+            while ( row < toRow ) {
+                col = support.nextColumn( row, col < 0 ? pairs.firstColumn( row ) : col + 1, stringency );
+                while ( col >= 0 && col < maxCol
+                        && ( !pairs.isCounted( row, col ) || filter != null && filter.exclude( row, col ) ) )
+                    col = support.nextColumn( row, col + 1, stringency );
+                if ( col >= 0 && col < maxCol ) return true;
+                row++;
+                col = -1;
+            }
+            return false;
+        }
+
+        /**
+         * @return a leaf for the current link.
+         */
+        public TreeNode toNode() {
+            return new TreeNode( getLinkId(), getMask(), null );
+        }
+    }
+
+    /**
+     * Links to leave out, e.g. {@link LinkMatrix#filter(int, int)}.
+     */
+    public interface Filter {
+        /**
+         * @param row
+         * @param col
+         * @return true if the link should be skipped.
+         */
+        public boolean exclude( int row, int col );
+    }
+
+    private LinkMatrix linkMatrix;
+    private LinkStore store;
+    private LinkSupport support;
+    private LinkPairs pairs;
+    private int stringency;
+    private Filter filter;
+    private int fromRow;
+    private int toRow;
+    private int maxCol;
+
+    /**
+     * @param linkMatrix
+     * @param stringency minimum support
+     */
+    public LinkCandidateSource( LinkMatrix linkMatrix, int stringency ) {
+        this( linkMatrix, new LinkPairs( linkMatrix.getRawMatrix() ), stringency, null, 0, linkMatrix.getRawMatrix()
+                .rows(), linkMatrix.getRawMatrix().columns() );
+    }
+
+    private LinkCandidateSource( LinkMatrix linkMatrix, LinkPairs pairs, int stringency, Filter filter, int fromRow,
+            int toRow, int maxCol ) {
+        this.linkMatrix = linkMatrix;
+        this.store = linkMatrix.getRawMatrix();
+        this.support = linkMatrix.getLinkSupport();
+        this.pairs = pairs;
+        this.stringency = stringency;
+        this.filter = filter;
+        this.fromRow = fromRow;
+        this.toRow = Math.min( toRow, store.rows() );
+        this.maxCol = Math.min( maxCol, store.columns() );
+    }
+
+    /**
+     * @return the number of links; this walks the source.
+     */
+    public int count() {
+        int n = 0;
+        for ( Cursor cursor = cursor(); cursor.next(); )
+            n++;
+        return n;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public int getStringency() {
+        return stringency;
+    }
+
+    /**
+     * @param rows
+     * @param cols
+     * @return the links of this source in the first rows and columns.
+     */
+    public LinkCandidateSource limit( int rows, int cols ) {
+        return new LinkCandidateSource( linkMatrix, pairs, stringency, filter, fromRow, Math.min( toRow, rows ),
+                Math.min( maxCol, cols ) );
+    }
+
+    /**
+     * @param parts
+     * @return sources over consecutive row blocks, in order, which together hold the links of this one.
+     */
+    public List<LinkCandidateSource> split( int parts ) {
+        List<LinkCandidateSource> res = new ArrayList<>();
+        long cells = support.cellsInRows( fromRow, toRow );
+        int start = fromRow;
+        for ( int p = 1; p <= parts && start < toRow; p++ ) {
+            int end = toRow;
+            if ( p < parts ) {
+                long target = cells * p / parts;
+                end = start + 1;
+                while ( end < toRow && support.cellsInRows( fromRow, end ) < target )
+                    end++;
+            }
+            res.add( new LinkCandidateSource( linkMatrix, pairs, stringency, filter, start, end, maxCol ) );
+            start = end;
+        }
+        return res;
+    }
+
+    /**
+     * @return a leaf for each link, in row order.
+     */
+    public ObjectArrayList toNodes() {
+        ObjectArrayList nodes = new ObjectArrayList();
+        for ( Cursor cursor = cursor(); cursor.next(); )
+            nodes.add( cursor.toNode() );
+        return nodes;
+    }
+
+    /**
+     * As {@link #toNodes()}, reading the masks of row blocks in parallel.
+     *
+     * @param numThreads
+     * @return a leaf for each link, in row order.
+     */
+    public ObjectArrayList toNodes( int numThreads ) {
+        if ( numThreads <= 1 ) return toNodes();
+        ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+        try {
+            List<Future<ObjectArrayList>> futures = new ArrayList<>();
+            for ( final LinkCandidateSource block : split( numThreads * 4 ) ) {
+                futures.add( executor.submit( new Callable<ObjectArrayList>() {
+                    @Override
+                    public ObjectArrayList call() {
+                        return block.toNodes();
+                    }
+                } ) );
+            }
+            ObjectArrayList nodes = new ObjectArrayList();
+            for ( Future<ObjectArrayList> future : futures ) {
+                ObjectArrayList blockNodes = future.get();
+                for ( int i = 0; i < blockNodes.size(); i++ )
+                    nodes.add( blockNodes.getQuick( i ) );
+            }
+            return nodes;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param newFilter
+     * @return the links of this source not excluded by the filter.
+     */
+    public LinkCandidateSource withFilter( Filter newFilter ) {
+        return new LinkCandidateSource( linkMatrix, pairs, stringency, newFilter, fromRow, toRow, maxCol );
+    }
+
+}
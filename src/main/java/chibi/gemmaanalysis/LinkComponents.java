@@ -0,0 +1,262 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Connected components of the links that can end up in the same cluster of {@link LinkGraphClustering}: two links
+ * are connected when their masks share at least a given number of experiments. A cluster's mask is the AND of the
+ * masks of its links, so two clusters can only be merged if some link of one and some link of the other are
+ * connected, and clusters never span components.
+ * <p>
+ * Pairs sharing experiments are found with an inverted index from each experiment to the links confirmed in it, and
+ * joined with union-find.
+ */
+class LinkComponents {
+
+    private static final int NODES_PER_BLOCK = 4096;
+
+    /**
+     * @param nodes
+     * @param minBits number of experiments two links must share to be connected
+     * @param numThreads
+     * @return the components, numbered in the order of their first link.
+     * @throws InterruptedException
+     */
+    public static LinkComponents compute( TreeNode[] nodes, int minBits, int numThreads ) throws InterruptedException {
+        int n = nodes.length;
+        int[] parents = newForest( n );
+        if ( minBits <= 0 ) {
+            for ( int i = 1; i < n; i++ )
+                union( parents, 0, i );
+        } else {
+            Postings postings = new Postings( nodes, minBits );
+            if ( minBits == 1 ) {
+                postings.joinAll( parents );
+            } else {
+                postings.joinSharing( parents, numThreads );
+            }
+        }
+        return new LinkComponents( parents );
+    }
+
+    private static int find( int[] parents, int x ) {
+        int root = x;
+        while ( parents[root] != root )
+            root = parents[root];
+        while ( parents[x] != root ) {
+            int next = parents[x];
+            parents[x] = root;
+            x = next;
+        }
+        return root;
+    }
+
+    private static int[] newForest( int n ) {
+        int[] parents = new int[n];
+        for ( int i = 0; i < n; i++ )
+            parents[i] = i;
+        return parents;
+    }
+
+    /**
+     * Join the trees of x and y, under the smaller index so roots do not depend on the order of the unions.
+     */
+    private static void union( int[] parents, int x, int y ) {
+        int rx = find( parents, x ), ry = find( parents, y );
+        if ( rx < ry ) {
+            parents[ry] = rx;
+        } else if ( ry < rx ) {
+            parents[rx] = ry;
+        }
+    }
+
+    /**
+     * The links (positions in the node array) of each experiment, in increasing order; links with fewer experiments
+     * than needed to be connected are left out.
+     */
+    private static class Postings {
+        private int[] start;
+        private int[] links;
+        private TreeNode[] nodes;
+        private int minBits;
+
+        private Postings( TreeNode[] nodes, int minBits ) {
+            this.nodes = nodes;
+            this.minBits = minBits;
+            int bitNum = 0;
+            for ( TreeNode node : nodes )
+                bitNum = Math.max( bitNum, node.getMask().length * Long.SIZE );
+            this.start = new int[bitNum + 1];
+            for ( TreeNode node : nodes ) {
+                if ( node.getMaskBits() < minBits ) continue;
+                long[] mask = node.getMask();
+                for ( int w = 0; w < mask.length; w++ )
+                    for ( long word = mask[w]; word != 0; word &= word - 1 )
+                        start[w * Long.SIZE + Long.numberOfTrailingZeros( word ) + 1]++;
+            }
+            for ( int e = 0; e < bitNum; e++ )
+                start[e + 1] += start[e];
+            this.links = new int[start[bitNum]];
+            int[] next = start.clone();
+            for ( int i = 0; i < nodes.length; i++ ) {
+                if ( nodes[i].getMaskBits() < minBits ) continue;
+                long[] mask = nodes[i].getMask();
+                for ( int w = 0; w < mask.length; w++ )
+                    for ( long word = mask[w]; word != 0; word &= word - 1 )
+                        links[next[w * Long.SIZE + Long.numberOfTrailingZeros( word )]++] = i;
+            }
+        }
+
+        /**
+         * Connect all the links of each experiment.
+         */
+        private void joinAll( int[] parents ) {
+            for ( int e = 0; e + 1 < start.length; e++ )
+                for ( int k = start[e] + 1; k < start[e + 1]; k++ )
+                    union( parents, links[start[e]], links[k] );
+        }
+
+        /**
+         * Connect the links of blocks of nodes to the later links they share minBits experiments with, counting the
+         * shared experiments along the postings. Each thread joins in a forest of its own; the forests are then
+         * joined together.
+         */
+        private void joinSharing( int[] parents, int numThreads ) throws InterruptedException {
+            final int n = nodes.length;
+            final int numTasks = Math.max( 1, Math.min( numThreads, ( n + NODES_PER_BLOCK - 1 ) / NODES_PER_BLOCK ) );
+            ExecutorService executor = Executors.newFixedThreadPool( numTasks );
+            try {
+                List<Future<int[]>> futures = new ArrayList<>();
+                for ( int t = 0; t < numTasks; t++ ) {
+                    final int task = t;
+                    futures.add( executor.submit( new Callable<int[]>() {
+                        @Override
+                        public int[] call() {
+                            int[] forest = newForest( n );
+                            int[] shared = new int[n];
+                            int[] touched = new int[n];
+                            for ( int first = task * NODES_PER_BLOCK; first < n; first += numTasks * NODES_PER_BLOCK ) {
+                                for ( int i = first; i < Math.min( n, first + NODES_PER_BLOCK ); i++ ) {
+                                    joinSharing( i, forest, shared, touched );
+                                }
+                            }
+                            return forest;
+                        }
+                    } ) );
+                }
+                for ( Future<int[]> future : futures ) {
+                    int[] forest = future.get();
+                    for ( int i = 0; i < n; i++ ) {
+                        int root = find( forest, i );
+                        if ( root != i ) union( parents, i, root );
+                    }
+                }
+            } catch ( ExecutionException e ) {
+                throw new RuntimeException( e.getCause() );
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private void joinSharing( int i, int[] forest, int[] shared, int[] touched ) {
+            if ( nodes[i].getMaskBits() < minBits ) return;
+            int numTouched = 0;
+            long[] mask = nodes[i].getMask();
+            for ( int w = 0; w < mask.length; w++ ) {
+                for ( long word = mask[w]; word != 0; word &= word - 1 ) {
+                    int e = w * Long.SIZE + Long.numberOfTrailingZeros( word );
+                    for ( int k = firstAfter( e, i ); k < start[e + 1]; k++ ) {
+                        int j = links[k];
+                        if ( shared[j] == 0 ) touched[numTouched++] = j;
+                        if ( ++shared[j] == minBits ) union( forest, i, j );
+                    }
+                }
+            }
+            for ( int k = 0; k < numTouched; k++ )
+                shared[touched[k]] = 0;
+        }
+
+        /**
+         * @return the position of the first link after i in the postings of the experiment.
+         */
+        private int firstAfter( int e, int i ) {
+            int lo = start[e], hi = start[e + 1];
+            while ( lo < hi ) {
+                int mid = ( lo + hi ) >>> 1;
+                if ( links[mid] <= i )
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private int[] component;
+    private int[][] members;
+
+    private LinkComponents( int[] parents ) {
+        int n = parents.length;
+        this.component = new int[n];
+        int[] sizes = new int[n];
+        int count = 0;
+        for ( int i = 0; i < n; i++ ) {
+            int root = find( parents, i );
+            // roots are the smallest index of their tree, so a component is numbered at its first link
+            component[i] = root == i ? count++ : component[root];
+            sizes[component[i]]++;
+        }
+        this.members = new int[count][];
+        for ( int c = 0; c < count; c++ )
+            members[c] = new int[sizes[c]];
+        int[] filled = new int[count];
+        for ( int i = 0; i < n; i++ )
+            members[component[i]][filled[component[i]]++] = i;
+    }
+
+    /**
+     * @param node position in the node array
+     * @return the component of the link.
+     */
+    public int getComponent( int node ) {
+        return component[node];
+    }
+
+    /**
+     * @param c
+     * @return the positions of the links of the component, in increasing order.
+     */
+    public int[] getMembers( int c ) {
+        return members[c];
+    }
+
+    /**
+     * @return the number of components.
+     */
+    public int size() {
+        return members.length;
+    }
+
+}
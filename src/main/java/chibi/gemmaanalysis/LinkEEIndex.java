@@ -0,0 +1,134 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Inverted index of a {@link LinkStore}: for each expression experiment (bit index), the set of links confirmed in it,
+ * as a {@link LinkBitmap}. Questions about sets of experiments ("which links are in all / any / at least k of these")
+ * then become bitmap operations instead of scans over every cell of the matrix.
+ * <p>
+ * Links are identified by their {@link LinkId}; use {@link #getRow(long)} and {@link #getCol(long)} to get back to the
+ * matrix. Each pair of genes is indexed once, in the cell counted by {@link LinkPairs}, even when the matrix holds it in
+ * both orientations. The index is a snapshot: it does not see bits set in the store after it was built.
+ *
+ * @see LinkMatrix#getLinkEEIndex()
+ */
+public class LinkEEIndex {
+
+    private static Log log = LogFactory.getLog( LinkEEIndex.class.getName() );
+
+    private LinkBitmap[] bitmaps;
+
+    /**
+     * Build the index with one pass over the non-empty cells of the store.
+     *
+     * @param store
+     */
+    public LinkEEIndex( LinkStore store ) {
+        this.bitmaps = new LinkBitmap[store.getBitNum()];
+        for ( int e = 0; e < bitmaps.length; e++ )
+            bitmaps[e] = new LinkBitmap();
+        LinkPairs pairs = new LinkPairs( store );
+        for ( int i = 0; i < store.rows(); i++ ) {
+            for ( int j = store.nextColumn( i, pairs.firstColumn( i ) ); j >= 0; j = store.nextColumn( i, j + 1 ) ) {
+                if ( !pairs.isCounted( i, j ) ) continue;
+                long id = LinkId.pack( i, j );
+                long[] mask = store.getAllBits( i, j );
+                for ( int w = 0; w < mask.length; w++ ) {
+                    for ( long word = mask[w]; word != 0; word &= word - 1 ) {
+                        int e = w * Long.SIZE + Long.numberOfTrailingZeros( word );
+                        if ( e < bitmaps.length ) bitmaps[e].add( id );
+                    }
+                }
+            }
+        }
+        long bytes = 0;
+        for ( LinkBitmap b : bitmaps )
+            bytes += b.sizeInBytes();
+        log.info( "Indexed links of " + bitmaps.length + " experiments, " + bytes / 1024 + "kB" );
+    }
+
+    /**
+     * @param eeIndex
+     * @return the links confirmed in the experiment. Do not modify.
+     */
+    public LinkBitmap get( int eeIndex ) {
+        return bitmaps[eeIndex];
+    }
+
+    public int getCol( long linkId ) {
+        return LinkId.col( linkId );
+    }
+
+    /**
+     * @param eeIndex
+     * @return the number of links confirmed in the experiment.
+     */
+    public long getLinkCount( int eeIndex ) {
+        return bitmaps[eeIndex].cardinality();
+    }
+
+    public int getRow( long linkId ) {
+        return LinkId.row( linkId );
+    }
+
+    /**
+     * @param eeIndices
+     * @return links confirmed in every one of the experiments.
+     */
+    public LinkBitmap linksInAll( int[] eeIndices ) {
+        if ( eeIndices.length == 0 ) return new LinkBitmap();
+        LinkBitmap res = bitmaps[eeIndices[0]].or( new LinkBitmap() );
+        for ( int i = 1; i < eeIndices.length && !res.isEmpty(); i++ )
+            res = res.and( bitmaps[eeIndices[i]] );
+        return res;
+    }
+
+    /**
+     * @param eeIndices
+     * @return links confirmed in any of the experiments.
+     */
+    public LinkBitmap linksInAny( int[] eeIndices ) {
+        return linksInAtLeast( eeIndices, 1 );
+    }
+
+    /**
+     * @param eeIndices
+     * @param k
+     * @return links confirmed in at least k of the experiments.
+     */
+    public LinkBitmap linksInAtLeast( int[] eeIndices, int k ) {
+        List<LinkBitmap> selected = new ArrayList<>( eeIndices.length );
+        for ( int e : eeIndices )
+            selected.add( bitmaps[e] );
+        return LinkBitmap.atLeast( selected, k );
+    }
+
+    /**
+     * @return number of experiments indexed.
+     */
+    public int size() {
+        return bitmaps.length;
+    }
+
+}
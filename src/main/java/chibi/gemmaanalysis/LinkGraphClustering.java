@@ -20,12 +20,21 @@ package chibi.gemmaanalysis;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cern.colt.list.ObjectArrayList;
 
@@ -37,6 +46,76 @@ import cern.colt.list.ObjectArrayList;
  */
 public class LinkGraphClustering {
 
+    /**
+     * System property choosing the default {@link Engine}: "scan", "queue" or "nn_chain".
+     */
+    public static final String ENGINE_PROPERTY = "gemmaanalysis.clusteringEngine";
+
+    /**
+     * How the next pair of clusters to merge is found. SCAN and QUEUE build the same tree.
+     */
+    public enum Engine {
+        /**
+         * Scan all the clusters at every merge, and sort them again after it.
+         */
+        SCAN,
+        /**
+         * Keep the candidate merges in a priority queue, and for each cluster the ones that have it as their closest,
+         * see {@link ClusterMergeQueue}.
+         */
+        QUEUE,
+        /**
+         * Follow chains of nearest neighbours and merge the two clusters at the end of a chain when they are each
+         * other's closest; no closest cluster is kept for the other clusters. Time is quadratic in the number of links
+         * and memory linear. This is sound because a merged cluster never has more experiments in common with a third
+         * one than either of its children; the tree is not the one of the other engines, which break ties and pick
+         * closest clusters their own way.
+         */
+        NN_CHAIN
+    }
+
+    /**
+     * Searches for the closest cluster split the list of clusters down to blocks of this many.
+     */
+    private static final int NODES_PER_BLOCK = 1024;
+
+    /**
+     * Stack size of the thread reading serialized trees.
+     */
+    private static final long SERIALIZED_TREE_STACK_BYTES = 1L << 30;
+
+    /**
+     * Search for the closest cluster of a cluster in part of the list of clusters, splitting it in blocks searched in
+     * parallel. Blocks are combined in list order keeping the earlier one on ties, so the result is the one of the
+     * serial search.
+     */
+    private class ClosestSearch extends RecursiveTask<TreeNode> {
+        private static final long serialVersionUID = 1L;
+        private TreeNode curNode;
+        private int from;
+        private int to;
+        private AtomicInteger minBits;
+
+        private ClosestSearch( TreeNode curNode, int from, int to, AtomicInteger minBits ) {
+            this.curNode = curNode;
+            this.from = from;
+            this.to = to;
+            this.minBits = minBits;
+        }
+
+        @Override
+        protected TreeNode compute() {
+            if ( to - from <= NODES_PER_BLOCK ) return findClosest( curNode, from, to, minBits );
+            int mid = ( from + to ) >>> 1;
+            ClosestSearch first = new ClosestSearch( curNode, from, mid, minBits );
+            ClosestSearch second = new ClosestSearch( curNode, mid, to, minBits );
+            second.fork();
+            TreeNode closest = first.compute();
+            TreeNode other = second.join();
+            return isCloser( curNode, other, closest ) ? other : closest;
+        }
+    }
+
     /**
      * @param leafNodes
      * @param internalNodes
@@ -68,15 +147,42 @@ public class LinkGraphClustering {
         return;
     }
 
+    /**
+     * @param name of an engine, any case, e.g. "nn_chain" or "nnchain"; may be null
+     * @param defaultEngine
+     * @return the engine, or the default one if the name is null or not an engine.
+     */
+    public static Engine parseEngine( String name, Engine defaultEngine ) {
+        if ( name == null ) return defaultEngine;
+        String key = name.trim().replaceAll( "[-_]", "" );
+        for ( Engine engine : Engine.values() ) {
+            if ( engine.name().replace( "_", "" ).equalsIgnoreCase( key ) ) return engine;
+        }
+        return defaultEngine;
+    }
+
     private ObjectArrayList eligibleNodes = new ObjectArrayList();
     private ObjectArrayList closedNodes = new ObjectArrayList();
     private int Threshold;
     private TreeNode fake = null;
     private int order = 0;
     private int nodeUpdates = 0;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool pool = null;
+    private boolean partitioned = false;
+    private boolean verbose = true;
+
+    private Engine engine = parseEngine( System.getProperty( ENGINE_PROPERTY ), Engine.QUEUE );
+    private ClusterMergeQueue queue = null;
 
     private LinkMatrix linkMatrix = null;
 
+    /**
+     * Trees read from a file, while they are left in the file: the {@link TreeNode}s of a tree are only created when it
+     * is selected. Null once the trees are all in the list of clusters.
+     */
+    private MappedDendrogram dendrogram = null;
+
     /**
      * @param threshold
      * @param linkMatrixUtil
@@ -88,16 +194,61 @@ public class LinkGraphClustering {
     }
 
     /**
+     * Convert a tree file saved with Java serialization to a {@link MappedDendrogram}, and keep its trees.
+     *
+     * @param serializedFileName
      * @param fileName
+     * @throws IOException
      */
-    public void readTreeFromFile( String fileName ) {
-        try (FileInputStream istream = new FileInputStream( fileName );
-                ObjectInputStream q = new ObjectInputStream( istream )) {
-            /* Create a file to write the serialized tree to. */
-            /* Open the file and set to read objects from it. */
+    public void convertTreeFile( String serializedFileName, String fileName ) throws IOException {
+        this.dendrogram = null;
+        this.eligibleNodes = readSerializedTree( serializedFileName );
+        MappedDendrogram.write( this.eligibleNodes, new File( fileName ) );
+        System.err.println( "Converted " + serializedFileName + " to " + fileName );
+    }
 
-            /* Read a tree object, and all the subtrees */
-            this.eligibleNodes = ( ObjectArrayList ) q.readObject();
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /**
+     * @return the roots of the trees, after {@link #run()} or {@link #readTreeFromFile(String)}; trees still in the
+     *         file are created.
+     */
+    ObjectArrayList getRoots() {
+        if ( dendrogram != null ) {
+            this.eligibleNodes = dendrogram.getRoots();
+            this.dendrogram = null;
+        }
+        return eligibleNodes;
+    }
+
+    /**
+     * Read trees saved by {@link #saveToFile(String)}, or saved with Java serialization by earlier versions. Trees saved
+     * by {@link #saveToFile(String)} stay in the memory-mapped file; the selections below only create the trees they
+     * return. Serialized files written before link ids were bit-packed have no {@link LinkId#MARKER}; their ids are
+     * converted using the legacy shift of the link matrix.
+     *
+     * @param fileName
+     */
+    public void readTreeFromFile( String fileName ) {
+        try {
+            File file = new File( fileName );
+            if ( MappedDendrogram.isDendrogram( file ) ) {
+                this.dendrogram = new MappedDendrogram( file );
+                this.eligibleNodes = null;
+            } else {
+                this.dendrogram = null;
+                this.eligibleNodes = readSerializedTree( fileName );
+            }
         } catch ( Exception e ) {
             e.printStackTrace();
         }
@@ -107,8 +258,20 @@ public class LinkGraphClustering {
      *
      */
     public void run() {
-        this.init();
-        run( ( ( 2 ) * this.Threshold ) );
+        getRoots();
+        pool = numThreads > 1 ? new ForkJoinPool( numThreads ) : null;
+        try {
+            if ( partitioned ) {
+                addLeaves( linkMatrix.getRawMatrix().rows(), linkMatrix.getRawMatrix().columns() );
+                clusterComponents();
+            } else {
+                this.init();
+                merge();
+            }
+        } finally {
+            if ( pool != null ) pool.shutdown();
+            pool = null;
+        }
     }
 
     /**
@@ -125,17 +288,13 @@ public class LinkGraphClustering {
     }
 
     /**
+     * Save the trees as a {@link MappedDendrogram}.
+     *
      * @param fileName
      */
     public void saveToFile( String fileName ) {
-        try ( /* Create a file to write the serialized tree to. */
-                FileOutputStream ostream = new FileOutputStream( fileName );
-                /* Create the output stream */
-                ObjectOutputStream p = new ObjectOutputStream( ostream );) {
-
-            p.writeObject( this.eligibleNodes ); // Write the tree to the stream.
-            p.flush();
-            ostream.close(); // close the file.
+        try {
+            MappedDendrogram.write( getRoots(), new File( fileName ) );
         } catch ( Exception ex ) {
             ex.printStackTrace();
         }
@@ -182,8 +341,8 @@ public class LinkGraphClustering {
             cdtOut.write( "\n" );
             for ( int i = 0; i < leafNodes.size(); i++ ) {
                 TreeNode child = ( TreeNode ) leafNodes.get( i );
-                cdtOut.write( nodeNames.get( child ) + "\t" + linkMatrix.getLinkName( child.getId() ) + "\t"
-                        + linkMatrix.getLinkName( child.getId() ) + "\t" + 1 );
+                String linkName = linkMatrix.getLinkName( child.getId() );
+                cdtOut.write( nodeNames.get( child ) + "\t" + linkName + "\t" + linkName + "\t" + 1 );
                 for ( int j = 0; j < linkMatrix.getRawMatrix().getBitNum(); j++ ) {
                     if ( LinkMatrix.checkBits( missingMask, j ) ) {
                         if ( linkMatrix.checkEEConfirmation( child.getId(), j ) )
@@ -219,6 +378,11 @@ public class LinkGraphClustering {
      */
     public ObjectArrayList selectClusterBasedOnSize( int clusterNum ) {
         ObjectArrayList res = new ObjectArrayList();
+        if ( dendrogram != null ) {
+            for ( int root : highestRoots( clusterNum ) )
+                res.add( dendrogram.getNode( root ) );
+            return res;
+        }
         /*
          * TreeNode res = (TreeNode)this.eligibleNodes.get(0); int level = res.level; for(int i = 1; i <
          * this.eligibleNodes.size(); i++){ TreeNode iter = (TreeNode)this.eligibleNodes.get(i); if(iter.level > level){
@@ -253,6 +417,21 @@ public class LinkGraphClustering {
      * @return
      */
     public TreeNode selectClusterWithMaximalBits( int level ) {
+        if ( dendrogram != null ) {
+            /*
+             * Same search on the arrays of the file: the leaf of a merged tree with the most experiments in common with
+             * its closest node, first in depth-first order.
+             */
+            int best = -1;
+            for ( int node = 0; node < dendrogram.getNodeCount(); node++ ) {
+                if ( dendrogram.getChildCount( node ) > 0 || dendrogram.getParent( node ) < 0 ) continue;
+                if ( best < 0 || dendrogram.getCommonBits( node ) > dendrogram.getCommonBits( best ) ) best = node;
+            }
+            if ( best < 0 ) throw new IllegalStateException( "No merged clusters" );
+            while ( dendrogram.getParent( best ) >= 0 )
+                best = dendrogram.getParent( best );
+            return dendrogram.getNode( best );
+        }
         /** *Get all leaf nodes and add them into the closed table******** */
         /** if maintaining the closed table to save all merged nodes, this search wouldn't be needed** */
         for ( int i = 0; i < this.eligibleNodes.size(); i++ ) {
@@ -279,6 +458,7 @@ public class LinkGraphClustering {
      * @return
      */
     public TreeNode selectMaximalCluster() {
+        if ( dendrogram != null ) return dendrogram.getNode( highestRoots( 1 )[0] );
         TreeNode.setSorting( TreeNode.LEVEL );
         this.eligibleNodes.sort();
         TreeNode.reSetSorting();
@@ -287,6 +467,29 @@ public class LinkGraphClustering {
         return res;
     }
 
+    /**
+     * @param engine used by the next {@link #run()}
+     */
+    public void setEngine( Engine engine ) {
+        this.engine = engine;
+    }
+
+    /**
+     * @param numThreads used to search for the closest clusters; 1 to search serially. The tree does not depend on
+     *        it. Defaults to the number of processors.
+     */
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @param partitioned if true, the next {@link #run()} first splits the links into groups that can never be merged
+     *        with each other (see {@link LinkComponents}) and clusters the groups separately, in parallel.
+     */
+    public void setPartitioned( boolean partitioned ) {
+        this.partitioned = partitioned;
+    }
+
     /**
      *
      */
@@ -303,10 +506,11 @@ public class LinkGraphClustering {
      * @return
      */
     private int cluster() {
+        if ( queue != null ) return clusterWithQueue();
         int indexOfNodeForMerging = this.findMergeNode();
         TreeNode nodeForMerging = ( TreeNode ) this.eligibleNodes.get( indexOfNodeForMerging );
-        TreeNode parent = mergeNodes( nodeForMerging );
         if ( nodeForMerging.getCommonBits() < this.Threshold ) return nodeForMerging.getCommonBits();
+        TreeNode parent = mergeNodes( nodeForMerging );
         TreeNode pairedNode = nodeForMerging.getClosestNode();
         Integer indexOfPairedNode = -1;
 
@@ -340,33 +544,222 @@ public class LinkGraphClustering {
         return parent.getMaskBits();
     }
 
+    /**
+     * As {@link #cluster()}, merging the same clusters in the same order, without scanning and sorting all the
+     * clusters.
+     *
+     * @return
+     */
+    private int clusterWithQueue() {
+        TreeNode nodeForMerging = queue.peek();
+        if ( nodeForMerging.getCommonBits() < this.Threshold ) return nodeForMerging.getCommonBits();
+        TreeNode parent = mergeNodes( nodeForMerging );
+        TreeNode pairedNode = nodeForMerging.getClosestNode();
+
+        List<TreeNode> affectedNodes = queue.pointingAt( nodeForMerging, pairedNode );
+
+        // remove child nodes
+        closedNodes.add( nodeForMerging );
+        closedNodes.add( pairedNode );
+        this.eligibleNodes.remove( queue.indexOf( this.eligibleNodes, nodeForMerging ) );
+        this.eligibleNodes.remove( queue.indexOf( this.eligibleNodes, pairedNode ) );
+        queue.remove( nodeForMerging );
+        queue.remove( pairedNode );
+        queue.add( parent );
+        this.eligibleNodes.beforeInsert( queue.insertionPoint( this.eligibleNodes, parent ), parent );
+
+        affectedNodes.add( parent );
+        Collections.sort( affectedNodes, queue.listOrder() );
+        ObjectArrayList allAffectedNodes = new ObjectArrayList();
+        for ( TreeNode node : affectedNodes )
+            allAffectedNodes.add( node );
+        this.update( allAffectedNodes );
+        return parent.getMaskBits();
+    }
+
+    /**
+     * Cluster each connected component of the links on its own, concurrently, and gather their trees. Components of a
+     * single link are roots already. When all the merges have at least twice the threshold experiments in common, the
+     * merges are those of clustering all the links together, numbered component by component. Otherwise the trees
+     * differ where that run stops every component at the first merge below twice the threshold anywhere, while each
+     * component here stops at its own, and where it revisits a link whose closest cluster was in another component
+     * (with fewer than threshold experiments in common) when that cluster is merged.
+     */
+    private void clusterComponents() {
+        TreeNode[] leaves = new TreeNode[eligibleNodes.size()];
+        for ( int i = 0; i < leaves.length; i++ )
+            leaves[i] = ( TreeNode ) eligibleNodes.get( i );
+        final LinkComponents components;
+        try {
+            components = LinkComponents.compute( leaves, this.Threshold, numThreads );
+        } catch ( InterruptedException e ) {
+            throw new RuntimeException( e );
+        }
+
+        final LinkGraphClustering[] parts = new LinkGraphClustering[components.size()];
+        List<Integer> largestFirst = new ArrayList<>();
+        for ( int c = 0; c < components.size(); c++ ) {
+            int[] members = components.getMembers( c );
+            if ( members.length < 2 ) continue;
+            LinkGraphClustering part = new LinkGraphClustering( this.Threshold, linkMatrix );
+            part.engine = engine;
+            part.pool = pool;
+            part.verbose = false;
+            part.fake = newFake( leaves[0].getMask().length );
+            for ( int m : members ) {
+                leaves[m].setClosestNode( part.fake );
+                part.eligibleNodes.add( leaves[m] );
+            }
+            parts[c] = part;
+            largestFirst.add( c );
+        }
+        Collections.sort( largestFirst, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer o1, Integer o2 ) {
+                return Integer.compare( components.getMembers( o2 ).length, components.getMembers( o1 ).length );
+            }
+        } );
+        System.err.println( components.size() + " components, " + largestFirst.size() + " to cluster, largest "
+                + ( largestFirst.isEmpty() ? 1 : components.getMembers( largestFirst.get( 0 ) ).length ) + " links" );
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for ( int c : largestFirst ) {
+            final LinkGraphClustering part = parts[c];
+            Runnable job = new Runnable() {
+                @Override
+                public void run() {
+                    part.prepare();
+                    part.merge();
+                }
+            };
+            if ( pool == null ) {
+                job.run();
+            } else {
+                tasks.add( pool.submit( job ) );
+            }
+        }
+        for ( ForkJoinTask<?> task : tasks )
+            task.join();
+
+        /*
+         * Gather the trees in component order, numbering the merges of each component after those of the previous
+         * ones.
+         */
+        ObjectArrayList roots = new ObjectArrayList();
+        Map<TreeNode, Boolean> renumbered = new IdentityHashMap<>();
+        for ( int c = 0; c < components.size(); c++ ) {
+            LinkGraphClustering part = parts[c];
+            if ( part == null ) {
+                roots.add( leaves[components.getMembers( c )[0]] );
+                continue;
+            }
+            List<TreeNode> merged = new ArrayList<>();
+            for ( int i = 0; i < part.closedNodes.size(); i++ )
+                merged.add( ( TreeNode ) part.closedNodes.get( i ) );
+            for ( int i = 0; i < part.eligibleNodes.size(); i++ )
+                merged.add( ( TreeNode ) part.eligibleNodes.get( i ) );
+            for ( TreeNode node : merged ) {
+                TreeNode parent = node.getParent();
+                if ( parent != null && renumbered.put( parent, Boolean.TRUE ) == null ) {
+                    parent.setOrder( parent.getOrder() + this.order );
+                }
+            }
+            this.order = this.order + part.order;
+            this.nodeUpdates = this.nodeUpdates + part.nodeUpdates;
+            closedNodes.addAllOfFromTo( part.closedNodes, 0, part.closedNodes.size() - 1 );
+            roots.addAllOfFromTo( part.eligibleNodes, 0, part.eligibleNodes.size() - 1 );
+        }
+        this.eligibleNodes = roots;
+        this.eligibleNodes.sort();
+        System.err.println( "Total Updates = " + this.nodeUpdates );
+    }
+
+    /**
+     * @param num
+     * @return the num roots of the mapped trees with the highest levels, highest first, the earlier root first on
+     *         ties; without creating the trees.
+     */
+    private int[] highestRoots( int num ) {
+        int[] top = new int[Math.min( num, dendrogram.getRootCount() )];
+        int size = 0;
+        for ( int k = 0; k < dendrogram.getRootCount(); k++ ) {
+            int root = dendrogram.getRoot( k );
+            int level = dendrogram.getLevel( root );
+            if ( size == top.length && ( size == 0 || level <= dendrogram.getLevel( top[size - 1] ) ) ) continue;
+            int pos = size < top.length ? size++ : size - 1;
+            for ( ; pos > 0 && dendrogram.getLevel( top[pos - 1] ) < level; pos-- )
+                top[pos] = top[pos - 1];
+            top[pos] = root;
+        }
+        return top;
+    }
+
     /**
      * @param oneNode
      */
     private void findClosestOnes( TreeNode oneNode ) {
         if ( oneNode.getClosestNode() != fake ) return;
         TreeNode curNode = oneNode;
+        TreeNode closestNode;
+        if ( pool != null && eligibleNodes.size() > NODES_PER_BLOCK ) {
+            closestNode = pool.invoke( new ClosestSearch( curNode, 0, eligibleNodes.size(), new AtomicInteger() ) );
+        } else {
+            closestNode = findClosest( curNode, 0, eligibleNodes.size(), null );
+        }
+        setClosestNode( curNode, closestNode );
+        this.nodeUpdates = this.nodeUpdates + 1;
+    }
+
+    /**
+     * @param curNode
+     * @param from first position in the list of clusters to search
+     * @param to end of the positions to search
+     * @param minBits experiments in common with a cluster already found elsewhere in the list, raised when a closer one
+     *        is found here; clusters with fewer are skipped. Null when searching the whole list.
+     * @return the closest cluster in that part of the list, fake if none.
+     */
+    private TreeNode findClosest( TreeNode curNode, int from, int to, AtomicInteger minBits ) {
         TreeNode closestNode = fake;
         int bits = 0;
-        for ( int i = 0; i < eligibleNodes.size(); i++ ) {
+        int weight = -1;
+        for ( int i = from; i < to; i++ ) {
             TreeNode pairedNode = ( TreeNode ) eligibleNodes.get( i );
-            if ( pairedNode.getMaskBits() < bits ) break; // No need to iterate further
+            int atLeast = minBits == null ? bits : Math.max( bits, minBits.get() );
+            if ( pairedNode.getMaskBits() < atLeast ) break; // No need to iterate further
             if ( pairedNode.equals( curNode ) ) continue;
+            int pairedBits = LinkMatrix.overlapBits( curNode.getMask(), pairedNode.getMask(), atLeast );
+            if ( pairedBits < 0 ) continue;
 
-            int pairedBits = LinkMatrix.overlapBits( curNode.getMask(), pairedNode.getMask() );
+            /*
+             * With correlations, ties in the experiments in common go to the pair with the stronger correlations.
+             */
+            int pairedWeight = -1;
+            if ( pairedBits == bits && curNode.getWeights() != null && pairedNode.getWeights() != null ) {
+                int weightBits = linkMatrix.getCorrelationPlane().getBits();
+                if ( weight < 0 && closestNode.getWeights() != null ) {
+                    weight = CorrelationPlane.weightedOverlap( curNode.getWeights(), closestNode.getWeights(),
+                            weightBits );
+                }
+                pairedWeight = CorrelationPlane.weightedOverlap( curNode.getWeights(), pairedNode.getWeights(),
+                        weightBits );
+                if ( pairedWeight < weight ) continue;
+            }
 
-            if ( pairedBits > bits || ( pairedBits == bits && pairedNode.getLevel() > closestNode.getLevel() ) ) {
+            if ( pairedBits > bits || ( pairedBits == bits && pairedWeight > weight )
+                    || ( pairedBits == bits && pairedWeight == weight && pairedNode.getLevel() > closestNode
+                            .getLevel() ) ) {
                 if ( pairedBits > pairedNode.getCommonBits()
                         || ( pairedBits == pairedNode.getCommonBits() && pairedNode.getClosestNode().equals( curNode ) )
                         || ( pairedBits == pairedNode.getCommonBits() && curNode.getLevel() > pairedNode
                                 .getClosestNode().getLevel() ) ) {
                     closestNode = pairedNode;
                     bits = pairedBits;
+                    weight = pairedWeight;
+                    if ( minBits != null ) raise( minBits, bits );
                 }
             }
         }
-        curNode.setClosestNode( closestNode );
-        this.nodeUpdates = this.nodeUpdates + 1;
+        return closestNode;
     }
 
     /**
@@ -397,7 +790,7 @@ public class LinkGraphClustering {
         long[] missingMask = new long[oneNode.getMask().length];
         for ( int i = 0; i < leafNodes.size(); i++ ) {
             oneNode = ( TreeNode ) leafNodes.get( i );
-            missingMask = LinkMatrix.OR( missingMask, oneNode.getMask() );
+            LinkMatrix.OR( missingMask, oneNode.getMask(), missingMask );
         }
         return missingMask;
     }
@@ -414,29 +807,81 @@ public class LinkGraphClustering {
      * @param cols
      */
     private void init( int rows, int cols ) {
-        for ( int i = 0; i < rows; i++ )
-            for ( int j = i + 1; j < cols; j++ ) {
-                if ( linkMatrix.getRawMatrix().bitCount( i, j ) >= this.Threshold && !linkMatrix.filter( i, j ) ) {
-                    long[] mask = linkMatrix.getRawMatrix().getAllBits( i, j );
-                    TreeNode oneNode = new TreeNode( linkMatrix.generateId( i, j ), mask, null );
-                    if ( this.fake == null ) {
-                        long[] fakeMask = new long[mask.length];
-                        for ( int ii = 0; ii < fakeMask.length; ii++ )
-                            fakeMask[ii] = 0;
-                        this.fake = new TreeNode( 0, fakeMask, null );
-                        this.fake.setClosestNode( fake );
+        addLeaves( rows, cols );
+        prepare();
+    }
+
+    /**
+     * Add a cluster for each link of the first rows and columns of the matrix.
+     *
+     * @param rows
+     * @param cols
+     */
+    private void addLeaves( int rows, int cols ) {
+        LinkCandidateSource candidates = new LinkCandidateSource( linkMatrix, this.Threshold ).limit( rows, cols )
+                .withFilter( new LinkCandidateSource.Filter() {
+                    @Override
+                    public boolean exclude( int row, int col ) {
+                        return linkMatrix.filter( row, col );
                     }
-                    oneNode.setClosestNode( fake );
-                    eligibleNodes.add( oneNode );
-                }
-            }
+                } );
+        CorrelationPlane correlations = linkMatrix.getCorrelationPlane();
+        for ( LinkCandidateSource.Cursor cursor = candidates.cursor(); cursor.next(); ) {
+            TreeNode oneNode = cursor.toNode();
+            if ( correlations != null ) oneNode.setWeights( correlations.get( cursor.getRow(), cursor.getCol() ) );
+            if ( this.fake == null ) this.fake = newFake( oneNode.getMask().length );
+            oneNode.setClosestNode( fake );
+            eligibleNodes.add( oneNode );
+        }
+    }
+
+    /**
+     * Find the closest cluster of each cluster, as needed by the engine.
+     */
+    private void prepare() {
+        queue = null;
+        if ( engine == Engine.QUEUE ) {
+            queue = new ClusterMergeQueue();
+            for ( int i = 0; i < eligibleNodes.size(); i++ )
+                queue.add( ( TreeNode ) eligibleNodes.get( i ) );
+        }
         eligibleNodes.sort();
+        if ( engine == Engine.NN_CHAIN ) return; // closest clusters are found along the chains
         for ( int i = 0; i < eligibleNodes.size(); i++ ) {
             TreeNode curNode = ( TreeNode ) eligibleNodes.get( i );
             this.findClosestOnes( curNode );
         }
     }
 
+    /**
+     * @param curNode
+     * @param node
+     * @param than
+     * @return true if node would be picked over than as the closest cluster of curNode by
+     *         {@link #findClosest(TreeNode, int, int, AtomicInteger)}: more experiments in common, then stronger
+     *         correlations, then higher level.
+     */
+    private boolean isCloser( TreeNode curNode, TreeNode node, TreeNode than ) {
+        int bits = LinkMatrix.overlapBits( curNode.getMask(), node.getMask() );
+        int thanBits = LinkMatrix.overlapBits( curNode.getMask(), than.getMask() );
+        if ( bits != thanBits ) return bits > thanBits;
+        int weight = weightedOverlap( curNode, node );
+        int thanWeight = weightedOverlap( curNode, than );
+        if ( weight != thanWeight ) return weight > thanWeight;
+        return node.getLevel() > than.getLevel();
+    }
+
+    /**
+     * Merge clusters until they have fewer than twice the threshold experiments in common.
+     */
+    private void merge() {
+        if ( engine == Engine.NN_CHAIN ) {
+            runNearestNeighborChains( ( ( 2 ) * this.Threshold ) );
+        } else {
+            run( ( ( 2 ) * this.Threshold ) );
+        }
+    }
+
     /**
      * @param nodeForMerging
      * @return
@@ -448,6 +893,11 @@ public class LinkGraphClustering {
         childNodes.add( closestNode );
         long mask[] = LinkMatrix.AND( nodeForMerging.getMask(), closestNode.getMask() );
         TreeNode parent = new TreeNode( 0, mask, childNodes );
+        if ( nodeForMerging.getWeights() != null && closestNode.getWeights() != null ) {
+            long[] weights = new long[nodeForMerging.getWeights().length];
+            parent.setWeights( CorrelationPlane.min( nodeForMerging.getWeights(), closestNode.getWeights(),
+                    linkMatrix.getCorrelationPlane().getBits(), weights ) );
+        }
         parent.setClosestNode( fake );
         nodeForMerging.setParent( parent );
         closestNode.setParent( parent );
@@ -467,32 +917,222 @@ public class LinkGraphClustering {
         return parent;
     }
 
+    /**
+     * @param words
+     * @return a cluster with no experiments, standing for "no closest cluster".
+     */
+    private TreeNode newFake( int words ) {
+        long[] fakeMask = new long[words];
+        for ( int ii = 0; ii < fakeMask.length; ii++ )
+            fakeMask[ii] = 0;
+        TreeNode newFake = new TreeNode( 0, fakeMask, null );
+        newFake.setClosestNode( newFake );
+        return newFake;
+    }
+
+    /**
+     * @param minBits
+     * @param bits
+     */
+    private void raise( AtomicInteger minBits, int bits ) {
+        while ( true ) {
+            int cur = minBits.get();
+            if ( cur >= bits || minBits.compareAndSet( cur, bits ) ) return;
+        }
+    }
+
+    /**
+     * Deserialization recurses along the parent and child pointers of the nodes, so it is run on a thread with a
+     * large stack.
+     *
+     * @param fileName
+     * @return the roots of the trees.
+     * @throws IOException
+     */
+    private ObjectArrayList readSerializedTree( final String fileName ) throws IOException {
+        final ObjectArrayList[] roots = new ObjectArrayList[1];
+        final Throwable[] error = new Throwable[1];
+        Thread reader = new Thread( null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    roots[0] = readSerializedTreeOnThisThread( fileName );
+                } catch ( Exception | StackOverflowError e ) {
+                    error[0] = e;
+                }
+            }
+        }, "tree-reader", SERIALIZED_TREE_STACK_BYTES );
+        reader.start();
+        try {
+            reader.join();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while reading " + fileName );
+        }
+        if ( error[0] instanceof IOException ) throw ( IOException ) error[0];
+        if ( error[0] != null ) throw new IOException( "Could not read " + fileName, error[0] );
+        return roots[0];
+    }
+
+    /**
+     * @param fileName
+     * @return the roots of the trees.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private ObjectArrayList readSerializedTreeOnThisThread( String fileName ) throws IOException,
+            ClassNotFoundException {
+        try (FileInputStream istream = new FileInputStream( fileName );
+                ObjectInputStream q = new ObjectInputStream( istream )) {
+            /* Read a tree object, and all the subtrees */
+            Object first = q.readObject();
+            if ( LinkId.MARKER.equals( first ) ) {
+                return ( ObjectArrayList ) q.readObject();
+            } else if ( first instanceof String ) {
+                throw new IOException( "Unsupported tree file version " + first + ": " + fileName );
+            }
+            ObjectArrayList roots = ( ObjectArrayList ) first;
+            int shift = linkMatrix.getLegacyShift();
+            System.err.println( "Converting link ids of " + fileName + " from the old encoding (shift " + shift + ")" );
+            ObjectArrayList leafNodes = new ObjectArrayList();
+            for ( int i = 0; i < roots.size(); i++ ) {
+                collectTreeNodes( leafNodes, new ObjectArrayList(), ( TreeNode ) roots.get( i ) );
+            }
+            for ( int i = 0; i < leafNodes.size(); i++ ) {
+                TreeNode leaf = ( TreeNode ) leafNodes.get( i );
+                leaf.setId( LinkId.fromLegacy( leaf.getId(), shift ) );
+            }
+            return roots;
+        }
+    }
+
     /**
      * @param stopStringency
      */
     private void run( int stopStringency ) {
         int i = 0;
         while ( true ) {
-            if ( i % 60 == 0 ) {
+            if ( verbose && i % 60 == 0 ) {
                 System.err.println();
                 System.err.print( i + "\t" + this.eligibleNodes.size() + "\t" );
             }
             int bits = this.cluster();
             if ( bits < stopStringency ) break;
-            System.err.print( bits + " " );
+            if ( verbose ) System.err.print( bits + " " );
             i++;
         }
+        if ( !verbose ) return;
         System.err.println();
         System.err.println( "Total Updates = " + this.nodeUpdates );
     }
 
+    /**
+     * Cluster with nearest-neighbour chains, merging all the pairs with at least stopStringency experiments in common.
+     * The closest cluster of the top of the chain is pushed on the chain, until the top and the one below it are each
+     * other's closest and get merged. Ties in the experiments in common go to the stronger correlations, then to the
+     * cluster below the top (so the chain cannot cycle), then to the higher level. A cluster with no other cluster close
+     * enough becomes a root.
+     *
+     * @param stopStringency
+     */
+    private void runNearestNeighborChains( int stopStringency ) {
+        int n = eligibleNodes.size();
+        TreeNode[] active = new TreeNode[n];
+        for ( int i = 0; i < n; i++ )
+            active[i] = ( TreeNode ) eligibleNodes.get( i );
+        TreeNode[] chain = new TreeNode[n];
+        int chainSize = 0;
+        ObjectArrayList roots = new ObjectArrayList();
+        int merges = 0;
+
+        while ( n > 0 ) {
+            if ( chainSize == 0 ) chain[chainSize++] = active[0];
+            TreeNode top = chain[chainSize - 1];
+            TreeNode below = chainSize > 1 ? chain[chainSize - 2] : null;
+
+            TreeNode closestNode = null;
+            int bits = stopStringency - 1;
+            int weight = -1;
+            for ( int i = 0; i < n; i++ ) {
+                TreeNode pairedNode = active[i];
+                if ( pairedNode == top || pairedNode.getMaskBits() < bits ) continue;
+                int pairedBits = LinkMatrix.overlapBits( top.getMask(), pairedNode.getMask(), Math.max( bits,
+                        stopStringency ) );
+                if ( pairedBits < 0 ) continue;
+                int pairedWeight = weightedOverlap( top, pairedNode );
+                if ( closestNode != null && pairedBits == bits ) {
+                    if ( pairedWeight < weight ) continue;
+                    if ( pairedWeight == weight && ( closestNode == below || pairedNode != below
+                            && pairedNode.getLevel() <= closestNode.getLevel() ) ) continue;
+                }
+                closestNode = pairedNode;
+                bits = pairedBits;
+                weight = pairedWeight;
+            }
+            this.nodeUpdates = this.nodeUpdates + 1;
+
+            if ( closestNode == null ) {
+                // nothing close enough: only the bottom of the chain can get here, as the one below is close enough
+                roots.add( top );
+                n = removeActive( active, n, top );
+                chainSize--;
+            } else if ( closestNode == below ) {
+                setClosestNode( top, below );
+                setClosestNode( below, top );
+                TreeNode parent = mergeNodes( top );
+                closedNodes.add( top );
+                closedNodes.add( below );
+                n = removeActive( active, n, top );
+                n = removeActive( active, n, below );
+                active[n++] = parent;
+                chainSize -= 2;
+                merges++;
+                if ( verbose && merges % 1000 == 0 ) System.err.print( bits + " " );
+            } else {
+                chain[chainSize++] = closestNode;
+            }
+        }
+        if ( verbose ) {
+            System.err.println();
+            System.err.println( "Merges = " + merges + ", Total Updates = " + this.nodeUpdates );
+        }
+        this.eligibleNodes = roots;
+        this.eligibleNodes.sort();
+    }
+
+    /**
+     * @param active
+     * @param n
+     * @param node
+     * @return the number of active clusters once the node is replaced by the last one.
+     */
+    private int removeActive( TreeNode[] active, int n, TreeNode node ) {
+        for ( int i = 0; i < n; i++ ) {
+            if ( active[i] == node ) {
+                active[i] = active[n - 1];
+                active[n - 1] = null;
+                return n - 1;
+            }
+        }
+        throw new IllegalStateException( "Cluster is not active" );
+    }
+
+    /**
+     * @param node
+     * @param closestNode
+     */
+    private void setClosestNode( TreeNode node, TreeNode closestNode ) {
+        node.setClosestNode( closestNode );
+        if ( queue != null ) queue.closestChanged( node );
+    }
+
     /**
      * @param affectedNodes
      */
     private void update( ObjectArrayList affectedNodes ) {
         for ( int i = 0; i < affectedNodes.size(); i++ ) {
             TreeNode curNode = ( TreeNode ) affectedNodes.get( i );
-            curNode.setClosestNode( this.fake );
+            setClosestNode( curNode, this.fake );
         }
         for ( int i = 0; i < affectedNodes.size(); i++ ) {
             TreeNode curNode = ( TreeNode ) affectedNodes.get( i );
@@ -500,4 +1140,15 @@ public class LinkGraphClustering {
         }
     }
 
+    /**
+     * @param curNode
+     * @param node
+     * @return the correlation-weighted overlap of the clusters, -1 if either has no correlations.
+     */
+    private int weightedOverlap( TreeNode curNode, TreeNode node ) {
+        if ( curNode.getWeights() == null || node.getWeights() == null ) return -1;
+        return CorrelationPlane.weightedOverlap( curNode.getWeights(), node.getWeights(), linkMatrix
+                .getCorrelationPlane().getBits() );
+    }
+
 }
@@ -0,0 +1,66 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+/**
+ * Link ids: the row index of the link in the upper 32 bits and the column index in the lower 32 bits. Decoding is a
+ * shift and a mask, and the encoding does not depend on the dimensions of the matrix.
+ * <p>
+ * Earlier versions encoded links as <code>row * shift + col</code>, with a shift that depended on how the matrix was
+ * created; trees saved with those ids are written without the {@link #MARKER} and are converted with
+ * {@link #fromLegacy(long, int)} when read.
+ *
+ * @see LinkMatrix#generateId(int, int)
+ */
+public final class LinkId {
+
+    /**
+     * Version of the link id encoding; 1 was the decimal shift.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Written ahead of serialized objects that hold link ids in this encoding.
+     */
+    public static final String MARKER = LinkId.class.getName() + "/" + VERSION;
+
+    private static final long LOW = 0xFFFFFFFFL;
+
+    public static int col( long id ) {
+        return ( int ) ( id & LOW );
+    }
+
+    /**
+     * @param id a link id in the old <code>row * shift + col</code> encoding
+     * @param shift the shift it was encoded with
+     * @return the same link in the current encoding.
+     */
+    public static long fromLegacy( long id, int shift ) {
+        return pack( ( int ) ( id / shift ), ( int ) ( id % shift ) );
+    }
+
+    public static long pack( int row, int col ) {
+        return ( ( long ) row << 32 ) | ( col & LOW );
+    }
+
+    public static int row( long id ) {
+        return ( int ) ( id >>> 32 );
+    }
+
+    private LinkId() {
+    }
+}
@@ -19,22 +19,33 @@
 package chibi.gemmaanalysis;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import cern.colt.list.ObjectArrayList;
+import chibi.gemmaanalysis.SignedLinkStore.Sign;
 import ubic.basecode.dataStructure.matrix.CompressedBitMatrix;
 import ubic.basecode.ontology.model.OntologyTerm;
 import ubic.gemma.core.genome.gene.service.GeneService;
@@ -66,10 +77,17 @@ public class LinkMatrix {
      * @return
      */
     public static long[] AND( long[] mask1, long[] mask2 ) {
-        long res[] = new long[mask1.length];
-        for ( int i = 0; i < mask1.length; i++ )
-            res[i] = mask1[i] & mask2[i];
-        return res;
+        return MaskKernels.and( mask1, mask2, new long[mask1.length] );
+    }
+
+    /**
+     * @param mask1
+     * @param mask2
+     * @param dest receives the result; may be one of the inputs.
+     * @return dest
+     */
+    public static long[] AND( long[] mask1, long[] mask2, long[] dest ) {
+        return MaskKernels.and( mask1, mask2, dest );
     }
 
     /**
@@ -96,10 +114,15 @@ public class LinkMatrix {
      * @return
      */
     public static int countBits( long[] mask ) {
-        int bits = 0;
-        for ( int i = 0; i < mask.length; i++ )
-            bits = bits + Long.bitCount( mask[i] );
-        return bits;
+        return MaskKernels.count( mask );
+    }
+
+    /**
+     * @param bitNum number of expression experiments
+     * @return the number of longs in the mask of a link.
+     */
+    public static int maskLength( int bitNum ) {
+        return bitNum / CompressedBitMatrix.BITS_PER_ELEMENT + 1;
     }
 
     /**
@@ -108,10 +131,28 @@ public class LinkMatrix {
      * @return
      */
     public static long[] OR( long[] mask1, long[] mask2 ) {
-        long res[] = new long[mask1.length];
-        for ( int i = 0; i < mask1.length; i++ )
-            res[i] = mask1[i] | mask2[i];
-        return res;
+        return MaskKernels.or( mask1, mask2, new long[mask1.length] );
+    }
+
+    /**
+     * @param mask1
+     * @param mask2
+     * @param dest receives the result; may be one of the inputs.
+     * @return dest
+     */
+    public static long[] OR( long[] mask1, long[] mask2, long[] dest ) {
+        return MaskKernels.or( mask1, mask2, dest );
+    }
+
+    /**
+     * @param mask1
+     * @param mask2
+     * @param k
+     * @return true if the masks have at least k bits in common; cheaper than {@link #overlapBits(long[], long[])}
+     *         when most pairs fall short.
+     */
+    public static boolean overlapAtLeast( long[] mask1, long[] mask2, int k ) {
+        return MaskKernels.overlapAtLeast( mask1, mask2, k );
     }
 
     /**
@@ -120,23 +161,135 @@ public class LinkMatrix {
      * @return
      */
     public static int overlapBits( long[] mask1, long[] mask2 ) {
-        int bits = 0;
-        for ( int i = 0; i < mask1.length; i++ )
-            bits = bits + Long.bitCount( mask1[i] & mask2[i] );
-        return bits;
+        return MaskKernels.overlap( mask1, mask2 );
     }
 
     /**
-     * This value is adjusted when necessary.
+     * @param mask1
+     * @param mask2
+     * @param atLeast
+     * @return the number of bits the masks have in common, or -1 if it is fewer than atLeast; gives up early on the
+     *         pairs that fall short.
+     */
+    public static int overlapBits( long[] mask1, long[] mask2, int atLeast ) {
+        return MaskKernels.overlapIfAtLeast( mask1, mask2, atLeast );
+    }
+
+    /**
+     * Present the shards built by separate processes as one matrix, without copying them: the matrix file becomes a
+     * manifest listing the shard files (see {@link ShardedLinkStore}), which are memory-mapped as needed when the
+     * matrix is read. The shards must have been saved with {@link #toFile(String, String)} under the names given by
+     * {@link #SHARD_SUFFIX}, with the same experiments. Saving the merged matrix again with
+     * {@link #toFile(String, String)} copies it into a single file.
+     *
+     * @param matrixFile
+     * @param eeMapFile
+     * @param numShards
+     * @throws IOException if a shard is missing or the shards do not fit together.
+     */
+    public static void mergeShards( String matrixFile, String eeMapFile, int numShards ) throws IOException {
+        List<File> positive = new ArrayList<>();
+        List<File> negative = new ArrayList<>();
+        List<CorrelationPlane> correlations = new ArrayList<>();
+        Set<String> eeMapLines = null;
+        for ( int k = 0; k < numShards; k++ ) {
+            String shardFile = matrixFile + SHARD_SUFFIX + k;
+            String shardEEMapFile = eeMapFile + SHARD_SUFFIX + k;
+            if ( !new File( shardFile ).exists() ) throw new IOException( "Missing shard " + shardFile );
+            if ( new File( shardFile + DELTA_SUFFIX + 1 ).exists() ) {
+                throw new IOException( "Shard " + shardFile + " has appended experiments; save it again first" );
+            }
+            Set<String> lines = new HashSet<>( Files.readAllLines( new File( shardEEMapFile ).toPath(),
+                    StandardCharsets.UTF_8 ) );
+            if ( eeMapLines == null ) {
+                eeMapLines = lines;
+            } else if ( !eeMapLines.equals( lines ) ) {
+                throw new IOException( shardEEMapFile + " does not map the experiments as " + eeMapFile
+                        + SHARD_SUFFIX + 0 );
+            }
+            positive.add( new File( shardFile ) );
+            if ( new File( shardFile + NEGATIVE_SUFFIX ).exists() ) {
+                negative.add( new File( shardFile + NEGATIVE_SUFFIX ) );
+            }
+            if ( new File( shardFile + CORRELATION_SUFFIX ).exists() ) {
+                correlations.add( CorrelationPlane.read( new File( shardFile + CORRELATION_SUFFIX ) ) );
+            }
+        }
+        if ( !negative.isEmpty() && negative.size() != numShards ) {
+            throw new IOException( "Only some of the shards of " + matrixFile + " are signed" );
+        }
+
+        ShardedLinkStore.writeManifest( new File( matrixFile ), positive );
+        deleteDeltas( matrixFile );
+        if ( negative.isEmpty() ) {
+            new File( matrixFile + NEGATIVE_SUFFIX ).delete();
+        } else {
+            ShardedLinkStore.writeManifest( new File( matrixFile + NEGATIVE_SUFFIX ), negative );
+        }
+        deleteDeltas( matrixFile + NEGATIVE_SUFFIX );
+        if ( correlations.size() == numShards ) {
+            CorrelationPlane.concatenate( correlations ).write( new File( matrixFile + CORRELATION_SUFFIX ) );
+        } else {
+            if ( !correlations.isEmpty() ) {
+                log.warn( "Only some of the shards of " + matrixFile + " kept correlations; dropping them" );
+            }
+            new File( matrixFile + CORRELATION_SUFFIX ).delete();
+        }
+        Files.copy( new File( eeMapFile + SHARD_SUFFIX + 0 ).toPath(), new File( eeMapFile ).toPath(),
+                StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * Suffix (followed by a sequence number) of the files holding experiments appended to a saved matrix.
+     */
+    public static final String DELTA_SUFFIX = ".delta";
+
+    /**
+     * Suffix of the file holding the negative links of a signed matrix; the matrix file holds the positive ones.
+     */
+    public static final String NEGATIVE_SUFFIX = ".neg";
+
+    /**
+     * Suffix of the file holding the {@link CorrelationPlane} of a matrix, if it has one.
+     */
+    public static final String CORRELATION_SUFFIX = ".corr";
+
+    /**
+     * Suffix (followed by the shard number) of the matrix and experiment map files of a shard, see
+     * {@link #restrictToShard(int, int)}.
+     */
+    public static final String SHARD_SUFFIX = ".shard";
+
+    /**
+     * The shift of the old <code>row * shift + col</code> link ids, as the old code would have used it for this
+     * matrix; only needed to convert trees saved with those ids.
      */
-    private int shift = 50000; // to encode two geneid into one long id
+    private int legacyShift = 50000;
+
+    private LinkStore linkCountMatrix = null;
 
-    private CompressedBitMatrix<Long, Long> linkCountMatrix = null;
+    /**
+     * Number of experiment bits already in the file the matrix was read from or last saved to; the experiments from
+     * this index on are written by {@link #appendToFile(String, String)}.
+     */
+    private int savedBits = 0;
 
-    private Map<Long, Integer> eeIndexMap = null;
-    private Map<Integer, ExpressionExperiment> eeMap = null;
+    private LinkEEIndex linkEEIndex = null;
 
-    private Map<Long, Gene> geneMap = null;
+    private LinkSupport linkSupport = null;
+
+    private LongIntHashMap eeIndexMap = null;
+
+    /**
+     * Experiments by bit index.
+     */
+    private ExpressionExperiment[] eeMap = null;
+
+    /**
+     * Genes by row and column index.
+     */
+    private Gene[] rowGenes = null;
+    private Gene[] colGenes = null;
 
     private Collection<Gene> targetGenes = null;
 
@@ -146,8 +299,33 @@ public class LinkMatrix {
 
     private int stringency = 2;
 
+    /**
+     * If true, the rows and columns are the same genes and only the upper triangle is stored.
+     */
+    private boolean symmetric = false;
+
+    /**
+     * If true, positive and negative links are kept apart in a {@link SignedLinkStore}.
+     */
+    private boolean signed = false;
+
+    /**
+     * Bits per quantized correlation value, or 0 to keep only the experiment bits.
+     */
+    private int correlationBits = 0;
+
+    private CorrelationPlane correlationPlane = null;
+
     private GeneOntologyService goService;
 
+    private GoTermCache goTermCache = null;
+
+    /**
+     * Number of matrix genes per GO term id, and the number of matrix genes, for enrichment.
+     */
+    private int[] universeTermCounts = null;
+    private int universeGenes = 0;
+
     /**
      * @param genes
      */
@@ -156,7 +334,11 @@ public class LinkMatrix {
     }
 
     /**
-     * Create from a matrix stored in a file.
+     * Create from a matrix stored in a file, either in the binary format written by {@link #toFile(String, String)}
+     * (which is memory-mapped rather than read into memory), as a manifest of shards written by
+     * {@link #mergeShards(String, String, int)}, or in the older tab-delimited text format. If there is a file of
+     * negative links next to it, the matrix is signed; if the binary file holds only the upper triangle, it is
+     * symmetric.
      *
      * @param matrixFile
      * @param eeMapFile
@@ -167,100 +349,29 @@ public class LinkMatrix {
     public LinkMatrix( String matrixFile, String eeMapFile, ExpressionExperimentService eeService,
             GeneService geneService, GeneOntologyService goService ) throws IOException {
         this.goService = goService;
-        try (BufferedReader in = new BufferedReader( new FileReader( new File( matrixFile ) ) );) {
-            String row = null;
-            int i;
-            boolean hasConfig = false, hasRowNames = false, hasColNames = false;
-            Collection<Long> geneIds = new HashSet<>();
-            while ( ( row = in.readLine() ) != null ) {
-                row = row.trim();
-                if ( StringUtils.isBlank( row ) ) continue;
-                String[] subItems = row.split( "\t" );
-                for ( i = 0; i < subItems.length; i++ )
-                    if ( StringUtils.isBlank( subItems[i] ) ) break;
-                if ( i != subItems.length ) {
-                    String mesg = "The empty Element is not allowed: " + row;
-                    log.info( mesg );
-                    in.close();
-                    throw new IOException( mesg );
-                }
-                if ( !hasConfig ) {
-                    if ( subItems.length != 3 ) {
-                        String mesg = "Data File Format Error for configuration " + row;
-                        log.info( mesg );
-                        throw new IOException( mesg );
-                    }
-                    linkCountMatrix = new CompressedBitMatrix<>( Integer.valueOf( subItems[0] ),
-                            Integer.valueOf( subItems[1] ), Integer.valueOf( subItems[2] ) );
-                    hasConfig = true;
-                } else if ( !hasRowNames ) {
-                    if ( subItems.length != linkCountMatrix.rows() ) {
-                        String mesg = "Data File Format Error for Row Names " + row;
-                        log.info( mesg );
-                        throw new IOException( mesg );
-                    }
-                    for ( i = 0; i < subItems.length; i++ ) {
-                        linkCountMatrix.addRowName( new Long( subItems[i].trim() ) );
-                        geneIds.add( new Long( subItems[i].trim() ) );
-                    }
-                    hasRowNames = true;
-                } else if ( !hasColNames ) {
-                    if ( subItems.length != linkCountMatrix.columns() ) {
-                        String mesg = "Data File Format Error for Col Names " + row;
-                        log.info( mesg );
-                        throw new IOException( mesg );
-                    }
-                    for ( i = 0; i < subItems.length; i++ ) {
-                        linkCountMatrix.addColumnName( new Long( subItems[i].trim() ) );
-                        geneIds.add( new Long( subItems[i].trim() ) );
-                    }
-                    hasColNames = true;
-                } else {
-                    int rowIndex = Integer.valueOf( subItems[0] );
-                    int colIndex = Integer.valueOf( subItems[1] );
-                    double values[] = new double[subItems.length - 2];
-                    for ( i = 2; i < subItems.length; i++ )
-                        values[i - 2] = Double.longBitsToDouble( Long.parseLong( subItems[i], 16 ) );
-                    linkCountMatrix.set( rowIndex, colIndex, values );
-                }
-            }
-
-            Collection<Gene> allGenes = geneService.load( geneIds );
-            for ( Gene gene : allGenes ) {
-                geneMap.put( gene.getId(), gene );
-            }
-            if ( eeMapFile != null ) {
-                try (BufferedReader in2 = new BufferedReader( new FileReader( new File( eeMapFile ) ) );) {
-                    this.eeIndexMap = new HashMap<>();
-                    int vectorSize = 0;
-                    while ( ( row = in2.readLine() ) != null ) {
-                        row = row.trim();
-                        if ( StringUtils.isBlank( row ) ) continue;
-                        String[] subItems = row.split( "\t" );
-                        if ( subItems.length != 2 ) continue;
-                        for ( i = 0; i < subItems.length; i++ )
-                            if ( StringUtils.isBlank( subItems[i] ) ) break;
-                        if ( i != subItems.length ) {
-                            String mesg = "Data File Format Error for ee Map " + row;
-                            log.info( mesg );
-                            in2.close();
-                            throw new IOException( mesg );
-                        }
-                        this.eeIndexMap.put( new Long( subItems[0].trim() ), new Integer( subItems[1].trim() ) );
-                        if ( Integer.valueOf( subItems[1].trim() ).intValue() > vectorSize )
-                            vectorSize = Integer.valueOf( subItems[1].trim() ).intValue();
-                    }
-                    eeMap = new HashMap<>();
-                    for ( Long iter : this.eeIndexMap.keySet() ) {
-                        ExpressionExperiment ee = eeService.load( iter );
-                        eeMap.put( this.eeIndexMap.get( iter ), ee );
-                    }
-                    log.info( "Got " + this.eeIndexMap.size() + " in EE MAP" );
+        File file = new File( matrixFile );
+        symmetric = MappedLinkStore.isBinary( file ) && MappedLinkStore.isSymmetric( file );
+        linkCountMatrix = readStore( matrixFile );
+        if ( new File( matrixFile + NEGATIVE_SUFFIX ).exists() ) {
+            signed = true;
+            linkCountMatrix = new SignedLinkStore( linkCountMatrix, readStore( matrixFile + NEGATIVE_SUFFIX ) );
+        }
+        savedBits = linkCountMatrix.getBitNum();
+        if ( new File( matrixFile + CORRELATION_SUFFIX ).exists() ) {
+            correlationPlane = CorrelationPlane.read( new File( matrixFile + CORRELATION_SUFFIX ) );
+            correlationBits = correlationPlane.getBits();
+        }
 
-                }
-            }
-            computeShift();
+        Collection<Long> geneIds = new HashSet<>();
+        for ( int i = 0; i < linkCountMatrix.rows(); i++ )
+            geneIds.add( linkCountMatrix.getRowName( i ) );
+        for ( int i = 0; i < linkCountMatrix.columns(); i++ )
+            geneIds.add( linkCountMatrix.getColName( i ) );
+        initGenes( geneService.load( geneIds ) );
+        if ( eeMapFile != null ) {
+            readEEMap( eeMapFile, eeService );
         }
+        computeLegacyShift();
     }
 
     /**
@@ -269,11 +380,115 @@ public class LinkMatrix {
      * @param taxon
      */
     public LinkMatrix( Taxon taxon ) {
-        Collection<Gene> allGenes = geneService.getGenesByTaxon( taxon );
+        init( taxon );
+    }
 
-        log.info( "Got " + allGenes.size() + " genes" );
-        if ( allGenes.size() == 0 ) return;
-        init( allGenes );
+    /**
+     * Initialize with all genes and expression experiments for the given taxon; the bits can then be filled in with
+     * a {@link LinkMatrixBuilder}.
+     *
+     * @param taxon
+     * @param symmetric see {@link #setSymmetric(boolean)}
+     * @param eeService
+     * @param geneService
+     * @param goService
+     */
+    public LinkMatrix( Taxon taxon, boolean symmetric, ExpressionExperimentService eeService,
+            GeneService geneService, GeneOntologyService goService ) {
+        this( taxon, symmetric, false, eeService, geneService, goService );
+    }
+
+    /**
+     * As {@link #LinkMatrix(Taxon, boolean, ExpressionExperimentService, GeneService, GeneOntologyService)}.
+     *
+     * @param taxon
+     * @param symmetric see {@link #setSymmetric(boolean)}
+     * @param signed see {@link #setSigned(boolean)}
+     * @param eeService
+     * @param geneService
+     * @param goService
+     */
+    public LinkMatrix( Taxon taxon, boolean symmetric, boolean signed, ExpressionExperimentService eeService,
+            GeneService geneService, GeneOntologyService goService ) {
+        this.eeService = eeService;
+        this.geneService = geneService;
+        this.goService = goService;
+        this.symmetric = symmetric;
+        this.signed = signed;
+        init( taxon );
+    }
+
+    /**
+     * Add experiments to the matrix, giving them the next bit indices. Their bits go to a new segment on top of the
+     * current store, which is left as it is; fill them in with {@link LinkMatrixBuilder#build(Collection)} and save
+     * them with {@link #appendToFile(String, String)}. Experiments already in the matrix are skipped.
+     *
+     * @param ees
+     * @return the experiments that were added.
+     */
+    public Collection<ExpressionExperiment> appendExperiments( Collection<ExpressionExperiment> ees ) {
+        Collection<ExpressionExperiment> added = new ArrayList<>();
+        for ( ExpressionExperiment ee : ees ) {
+            if ( !eeIndexMap.containsKey( ee.getId() ) ) added.add( ee );
+        }
+        if ( added.isEmpty() ) return added;
+
+        long[] rowIds = new long[linkCountMatrix.rows()];
+        for ( int i = 0; i < rowIds.length; i++ )
+            rowIds[i] = linkCountMatrix.getRowName( i );
+        long[] colIds = new long[linkCountMatrix.columns()];
+        for ( int j = 0; j < colIds.length; j++ )
+            colIds[j] = linkCountMatrix.getColName( j );
+
+        int index = linkCountMatrix.getBitNum();
+        linkEEIndex = null;
+        invalidateLinkSupport();
+        if ( linkCountMatrix instanceof SignedLinkStore ) {
+            SignedLinkStore planes = ( SignedLinkStore ) linkCountMatrix;
+            linkCountMatrix = new SignedLinkStore( new AppendedLinkStore( planes.getPlane( Sign.POSITIVE ),
+                    newPlane( rowIds, colIds, added.size() ) ), new AppendedLinkStore(
+                    planes.getPlane( Sign.NEGATIVE ), newPlane( rowIds, colIds, added.size() ) ) );
+        } else {
+            linkCountMatrix = new AppendedLinkStore( linkCountMatrix,
+                    newPlane( rowIds, colIds, added.size() ) );
+        }
+        for ( ExpressionExperiment ee : added ) {
+            putEE( ee, index++ );
+        }
+        if ( correlationPlane != null ) correlationPlane.setBitNum( index );
+        log.info( "Appended " + added.size() + " experiments, matrix now has " + linkCountMatrix.getBitNum() );
+        return added;
+    }
+
+    /**
+     * Save the experiments added by {@link #appendExperiments(Collection)} since the matrix was read from, or last
+     * saved to, the file (with {@link #toFile(String, String)} or this method): their bits are written to one new
+     * delta file, which is picked up when the matrix is read back, and their indices are added to the experiment map
+     * file.
+     *
+     * @param matrixFile
+     * @param eeMapFile
+     * @throws IOException
+     * @throws IllegalStateException if no experiments were appended since then.
+     */
+    public void appendToFile( String matrixFile, String eeMapFile ) throws IOException {
+        if ( linkCountMatrix instanceof SignedLinkStore ) {
+            SignedLinkStore planes = ( SignedLinkStore ) linkCountMatrix;
+            LinkStore positive = unsavedSegments( planes.getPlane( Sign.POSITIVE ) );
+            LinkStore negative = unsavedSegments( planes.getPlane( Sign.NEGATIVE ) );
+            appendPlaneToFile( positive, matrixFile );
+            appendPlaneToFile( negative, matrixFile + NEGATIVE_SUFFIX );
+        } else {
+            appendPlaneToFile( unsavedSegments( linkCountMatrix ), matrixFile );
+        }
+        if ( correlationPlane != null ) correlationPlane.write( new File( matrixFile + CORRELATION_SUFFIX ) );
+        try (FileWriter out = new FileWriter( new File( eeMapFile ), true );) {
+            for ( long eeId : this.eeIndexMap.keys() ) {
+                int index = this.eeIndexMap.get( eeId );
+                if ( index >= savedBits ) out.write( eeId + "\t" + index + "\n" );
+            }
+        }
+        savedBits = linkCountMatrix.getBitNum();
     }
 
     /**
@@ -282,55 +497,46 @@ public class LinkMatrix {
      * @return
      */
     public boolean checkEEConfirmation( long id, int eeIndex ) {
-        int rows = ( int ) ( id / shift );
-        int cols = ( int ) ( id % shift );
-        return linkCountMatrix.get( rows, cols, eeIndex );
+        return linkCountMatrix.get( LinkId.row( id ), LinkId.col( id ), eeIndex );
     }
 
     /**
-     * @param treeIds
-     * @param rank the number of top ranked GO terms to return
-     * @return
+     * GO terms enriched among the genes of the links, by hypergeometric test against all the genes of the matrix.
+     * The term frequencies of the matrix genes are computed on the first call and kept.
+     *
+     * @param linkIds
+     * @param rank the number of most significant terms to return
+     * @return most significant first.
      */
-    public Map<OntologyTerm, Integer> computeGOOverlap( Collection<Long> treeIds, int rank ) {
-        Collection<Gene> genes = new HashSet<>();
-        for ( Long treeId : treeIds ) {
-            int row = ( int ) ( treeId / this.shift );
-            int col = ( int ) ( treeId % this.shift );
-            genes.add( getRowGene( row ) );
-            genes.add( getColGene( col ) );
-        }
-        Map<OntologyTerm, Integer> res = new HashMap<>();
-        ObjectArrayList counter = new ObjectArrayList( rank );
-        for ( int i = 0; i < counter.size(); i++ )
-            counter.add( new Integer( 0 ) );
-        for ( Gene gene : genes ) {
-            Collection<OntologyTerm> goEntries = goService.getGOTerms( gene );
-            for ( OntologyTerm goEntry : goEntries ) {
-                Integer goNum = new Integer( 1 );
-                if ( res.containsKey( goEntry ) ) {
-                    goNum = res.get( goEntry );
-                    goNum = goNum + 1;
-                    res.put( goEntry, goNum );
-                } else {
-                    res.put( goEntry, goNum );
-                }
-            }
-        }
-        if ( rank >= res.keySet().size() ) return res;
-        for ( OntologyTerm ontologyTerm : res.keySet() ) {
-            Integer goNum = res.get( ontologyTerm );
-            counter.add( goNum );
-        }
-        counter.sort();
-        Integer threshold = ( Integer ) counter.get( counter.size() - rank );
-        Collection<OntologyTerm> removed = new HashSet<>();
-        for ( OntologyTerm ontologyTerm : res.keySet() ) {
-            Integer goNum = res.get( ontologyTerm );
-            if ( goNum < threshold ) removed.add( ontologyTerm );
+    public List<GoEnrichment> computeGOEnrichment( LongOpenHashSet linkIds, int rank ) {
+        Collection<Gene> genes = getLinkGenes( linkIds );
+        int[] counts = getGoTermCache().countTerms( genes );
+        int[] universeCounts = getUniverseTermCounts();
+        int universe = universeGenes;
+        double[] logFactorials = GoEnrichment.logFactorials( universe );
+        List<GoEnrichment> res = new ArrayList<>();
+        for ( int t = 0; t < counts.length; t++ ) {
+            if ( counts[t] == 0 ) continue;
+            int termGenes = t < universeCounts.length ? universeCounts[t] : counts[t];
+            double p = GoEnrichment.upperTail( counts[t], genes.size(), termGenes, universe, logFactorials );
+            res.add( new GoEnrichment( getGoTermCache().getTerm( t ), counts[t], genes.size(), termGenes, universe, p ) );
         }
-        for ( OntologyTerm ontologyTerm : removed )
-            res.remove( ontologyTerm );
+        Collections.sort( res );
+        return rank < res.size() ? new ArrayList<>( res.subList( 0, rank ) ) : res;
+    }
+
+    /**
+     * @param treeIds link ids
+     * @param rank the number of top ranked GO terms to return
+     * @return the GO terms most frequent among the genes of the links (with ties at the last rank), with their number
+     *         of genes, most frequent first.
+     */
+    public Map<OntologyTerm, Integer> computeGOOverlap( LongOpenHashSet treeIds, int rank ) {
+        int[] counts = getGoTermCache().countTerms( getLinkGenes( treeIds ) );
+        int[] top = GoEnrichment.topK( counts, rank );
+        Map<OntologyTerm, Integer> res = new LinkedHashMap<>();
+        for ( int t : top )
+            res.put( getGoTermCache().getTerm( t ), counts[t] );
         return res;
     }
 
@@ -339,18 +545,18 @@ public class LinkMatrix {
      * @return
      */
     public int computeGOOverlap( long packedId ) {
-        int row = ( int ) ( packedId / shift );
-        int col = ( int ) ( packedId % shift );
-        return goService.calculateGoTermOverlap( getRowGene( row ), getColGene( col ) ).size();
+        return getGoTermCache().linkOverlap( packedId, getRowGene( LinkId.row( packedId ) ),
+                getColGene( LinkId.col( packedId ) ) );
     }
 
     /**
      * @param row
      * @param col
-     * @return
+     * @return the link id, see {@link LinkId}.
      */
     public long generateId( int row, int col ) {
-        return ( long ) row * ( long ) shift + col;
+        if ( symmetric && row > col ) return generateId( col, row );
+        return LinkId.pack( row, col );
     }
 
     /**
@@ -358,8 +564,7 @@ public class LinkMatrix {
      * @return
      */
     public Gene getColGene( int i ) {
-        Object geneId = linkCountMatrix.getColName( i );
-        return geneMap.get( geneId );
+        return colGenes[i];
     }
 
     /**
@@ -367,7 +572,8 @@ public class LinkMatrix {
      * @return
      */
     public ExpressionExperiment getEE( int i ) {
-        return eeMap.get( new Integer( i ) );
+        if ( i < 0 || i >= eeMap.length ) return null;
+        return eeMap[i];
     }
 
     /**
@@ -375,9 +581,18 @@ public class LinkMatrix {
      * @return
      */
     public int getEEIndex( long eeId ) {
-        Integer eeIndex = eeIndexMap.get( eeId );
-        if ( eeIndex == null ) return -1;
-        return eeIndex;
+        return eeIndexMap.get( eeId );
+    }
+
+    /**
+     * @return the expression experiments of the matrix.
+     */
+    public Collection<ExpressionExperiment> getEEs() {
+        Collection<ExpressionExperiment> res = new ArrayList<>();
+        for ( ExpressionExperiment ee : eeMap ) {
+            if ( ee != null ) res.add( ee );
+        }
+        return res;
     }
 
     /**
@@ -408,7 +623,15 @@ public class LinkMatrix {
      * @return
      */
     public Collection<OntologyTerm> getGOTerms( Gene gene ) {
-        return this.goService.getGOTerms( gene );
+        return getGoTermCache().getTerms( gene );
+    }
+
+    /**
+     * @return the cache of GO terms and link overlaps, created on first use.
+     */
+    public synchronized GoTermCache getGoTermCache() {
+        if ( goTermCache == null ) goTermCache = new GoTermCache( goService );
+        return goTermCache;
     }
 
     /**
@@ -419,24 +642,82 @@ public class LinkMatrix {
         Gene[] pairOfGenes = getPairedGenes( id );
         assert pairOfGenes.length == 2;
         return pairOfGenes[0].getName() + "_" + pairOfGenes[1].getName() + "_"
-                + goService.calculateGoTermOverlap( pairOfGenes[0], pairOfGenes[1] ).size();
+                + getGoTermCache().linkOverlap( id, pairOfGenes[0], pairOfGenes[1] );
     }
 
     /**
-     * @param packedId A bit array storing two gene ids, with one stored in the upper bits and the other in the lower
-     *        bits (offset is defined by this.shift).
+     * @param packedId A link id, storing the row index in the upper bits and the column index in the lower bits (see
+     *        {@link LinkId}).
      * @return Array containing two genes.
      */
     public Gene[] getPairedGenes( long packedId ) {
         Gene[] pairedGene = new Gene[2];
-        int row = ( int ) ( packedId / shift );
-        int col = ( int ) ( packedId % shift );
-        pairedGene[0] = getRowGene( row );
-        pairedGene[1] = getColGene( col );
+        pairedGene[0] = getRowGene( LinkId.row( packedId ) );
+        pairedGene[1] = getColGene( LinkId.col( packedId ) );
         return pairedGene;
     }
 
-    public CompressedBitMatrix<Long, Long> getRawMatrix() {
+    /**
+     * The index is built on first use, from the links in the matrix at that time; call
+     * {@link #invalidateLinkEEIndex()} after filling in more bits.
+     *
+     * @return index of the links confirmed in each experiment.
+     */
+    public LinkEEIndex getLinkEEIndex() {
+        if ( linkEEIndex == null ) linkEEIndex = new LinkEEIndex( linkCountMatrix );
+        return linkEEIndex;
+    }
+
+    /**
+     * The counts are taken on first use, from the links in the matrix at that time; call
+     * {@link #invalidateLinkSupport()} after filling in more bits.
+     *
+     * @return the support of each link, for stringency scans.
+     */
+    public synchronized LinkSupport getLinkSupport() {
+        if ( linkSupport == null ) linkSupport = new LinkSupport( linkCountMatrix );
+        return linkSupport;
+    }
+
+    /**
+     * Discard the experiment index, so it is rebuilt by the next {@link #getLinkEEIndex()}.
+     */
+    public void invalidateLinkEEIndex() {
+        linkEEIndex = null;
+    }
+
+    /**
+     * Discard the support counts, so they are recounted by the next {@link #getLinkSupport()}.
+     */
+    public synchronized void invalidateLinkSupport() {
+        linkSupport = null;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    public boolean isSymmetric() {
+        return symmetric;
+    }
+
+    /**
+     * @return the shift of the link ids written by earlier versions for this matrix.
+     * @see LinkId#fromLegacy(long, int)
+     */
+    public int getLegacyShift() {
+        return legacyShift;
+    }
+
+    /**
+     * @return the quantized correlations of the links, or null if they are not kept.
+     * @see #setCorrelationBits(int)
+     */
+    public CorrelationPlane getCorrelationPlane() {
+        return correlationPlane;
+    }
+
+    public LinkStore getRawMatrix() {
         return this.linkCountMatrix;
     }
 
@@ -445,8 +726,7 @@ public class LinkMatrix {
      * @return
      */
     public Gene getRowGene( int i ) {
-        Object geneId = linkCountMatrix.getRowName( i );
-        return geneMap.get( geneId );
+        return rowGenes[i];
     }
 
     /**
@@ -455,32 +735,37 @@ public class LinkMatrix {
      * @param coExpressedGenes
      */
     public void init( Collection<ExpressionExperiment> ees, Collection<Gene> t, Collection<Gene> coExpressedGenes ) {
-        CompressedBitMatrix<Long, Long> linkCount = new CompressedBitMatrix<>( targetGenes.size(),
-                coExpressedGenes.size(), ees.size() );
+        this.targetGenes = t;
+        long[] rowIds = new long[targetGenes.size()];
+        int i = 0;
         for ( Gene geneIter : targetGenes ) {
-            linkCount.addRowName( geneIter.getId() );
+            rowIds[i++] = geneIter.getId();
         }
+        long[] colIds = new long[coExpressedGenes.size()];
+        i = 0;
         for ( Gene geneIter : coExpressedGenes ) {
-            linkCount.addColumnName( geneIter.getId() );
+            colIds[i++] = geneIter.getId();
         }
-        eeIndexMap = new HashMap<>();
-        eeMap = new HashMap<>();
-        int index = 0;
-        for ( ExpressionExperiment eeIter : ees ) {
-            eeIndexMap.put( eeIter.getId(), new Integer( index ) );
-            eeMap.put( new Integer( index ), eeIter );
-            index++;
+        if ( symmetric && !Arrays.equals( rowIds, colIds ) ) {
+            throw new IllegalArgumentException( "Symmetric link matrix needs the same target and coexpressed genes" );
         }
-        geneMap = new HashMap<>();
-        for ( Gene gene : targetGenes ) {
-            geneMap.put( gene.getId(), gene );
+        linkCountMatrix = newPlane( rowIds, colIds, ees.size() );
+        if ( signed ) {
+            linkCountMatrix = new SignedLinkStore( linkCountMatrix, newPlane( rowIds, colIds, ees.size() ) );
         }
-        if ( targetGenes != coExpressedGenes ) {
-            for ( Gene gene : coExpressedGenes ) {
-                geneMap.put( gene.getId(), gene );
-            }
+        correlationPlane = correlationBits > 0 ? new CorrelationPlane( rowIds.length, ees.size(), correlationBits,
+                symmetric ) : null;
+        savedBits = 0;
+        linkEEIndex = null;
+        invalidateLinkSupport();
+        eeIndexMap = new LongIntHashMap( ees.size() );
+        eeMap = new ExpressionExperiment[ees.size()];
+        int index = 0;
+        for ( ExpressionExperiment eeIter : ees ) {
+            putEE( eeIter, index++ );
         }
-        this.targetGenes = t;
+        rowGenes = targetGenes.toArray( new Gene[targetGenes.size()] );
+        colGenes = coExpressedGenes.toArray( new Gene[coExpressedGenes.size()] );
     }
 
     /**
@@ -495,61 +780,63 @@ public class LinkMatrix {
             log.info( "Gene does not exist" );
             return;
         }
-        for ( int col = 0; col < this.linkCountMatrix.columns(); col++ )
-            if ( this.linkCountMatrix.bitCount( row, col ) >= num ) {
-                System.err.println( getColGene( col ).getName() + " " + this.linkCountMatrix.bitCount( row, col ) );
-            }
+        LinkSupport support = getLinkSupport();
+        StringBuilder names = new StringBuilder();
+        for ( int col = support.nextColumn( row, 0, num ); col >= 0; col = support.nextColumn( row, col + 1, num ) ) {
+            String name = getColGene( col ).getName();
+            System.err.println( name + " " + support.get( row, col ) );
+            names.append( name ).append( '\n' );
+        }
         System.err.println( "=====================================================" );
-        for ( int col = 0; col < this.linkCountMatrix.columns(); col++ )
-            if ( this.linkCountMatrix.bitCount( row, col ) >= num ) {
-                System.err.println( getColGene( col ).getName() );
-            }
+        System.err.print( names );
     }
 
     /**
      * @param num
      */
     public void output( int num ) {
+        LinkSupport support = getLinkSupport();
         int count = 0;
         for ( int i = 0; i < this.linkCountMatrix.rows(); i++ ) {
-            for ( int j = 0; j < this.linkCountMatrix.columns(); j++ ) {
-                if ( this.linkCountMatrix.bitCount( i, j ) >= num ) {
-                    System.err.println( getRowGene( i ).getName() + "  " + getColGene( j ).getName() + " "
-                            + this.linkCountMatrix.bitCount( i, j ) );
-                    count++;
-                }
+            for ( int j = support.nextColumn( i, 0, num ); j >= 0; j = support.nextColumn( i, j + 1, num ) ) {
+                System.err.println( getRowGene( i ).getName() + "  " + getColGene( j ).getName() + " "
+                        + support.get( i, j ) );
+                count++;
             }
         }
         System.err.println( "Total Links " + count );
     }
 
     /**
-     *
+     * Print the number of links with each support; see {@link LinkStatistics} for the full statistics.
      */
     public void outputStat() {
-        int maxNum = 50;
-        Vector<Integer> count = new Vector<>( maxNum );
-        for ( int i = 0; i < maxNum; i++ )
-            count.add( 0 );
-        for ( int i = 0; i < this.linkCountMatrix.rows(); i++ ) {
-            for ( int j = i + 1; j < this.linkCountMatrix.columns(); j++ ) {
-                int num = this.linkCountMatrix.bitCount( i, j );
-                if ( num == 0 ) continue;
-                if ( num > maxNum ) {
-                    for ( ; maxNum < num; maxNum++ )
-                        count.add( 0 );
-                }
-                Integer tmpno = count.elementAt( num - 1 );
-                tmpno = tmpno + 1;
-                count.setElementAt( tmpno, num - 1 );
-            }
+        LinkStatistics stats;
+        try {
+            stats = LinkStatistics.compute( this, 1, Runtime.getRuntime().availableProcessors() );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return;
         }
-        for ( int i = 0; i < count.size(); i++ ) {
-            System.err.print( i + "[" + count.elementAt( i ) + "] " );
+        int maxNum = Math.max( 50, stats.getMaxSupport() );
+        for ( int i = 0; i < maxNum; i++ ) {
+            System.err.print( i + "[" + ( i < linkCountMatrix.getBitNum() ? stats.getSupportCount( i + 1 ) : 0 ) + "] " );
             if ( i % 10 == 0 ) System.err.println( "" );
         }
     }
 
+    /**
+     * Print the number of links confirmed in each experiment.
+     */
+    public void outputEEStat() {
+        LinkEEIndex index = getLinkEEIndex();
+        for ( int i = 0; i < index.size(); i++ ) {
+            ExpressionExperiment ee = getEE( i );
+            System.err.println( ( ee == null ? String.valueOf( i ) : ee.getShortName() ) + "\t"
+                    + index.getLinkCount( i ) );
+        }
+    }
+
     /**
      * Output is a file with the row and column indices and support for each link in the matrix (subject to the
      * stringency)
@@ -558,27 +845,28 @@ public class LinkMatrix {
      */
     public void saveLinkMatrix( String outFile ) {
         try {
-            ObjectArrayList nodes = new ObjectArrayList();
-
-            FileWriter out = new FileWriter( new File( outFile ) );
-            for ( int i = 0; i < linkCountMatrix.rows(); i++ ) {
-                if ( i % 1000 == 0 ) System.err.println( i + " -> " + linkCountMatrix.rows() );
-                for ( int j = i + 1; j < linkCountMatrix.columns(); j++ ) {
-                    if ( linkCountMatrix.bitCount( i, j ) >= stringency ) {
-                        TreeNode oneNode = new TreeNode( generateId( i, j ), linkCountMatrix.getAllBits( i, j ), null );
-                        nodes.add( oneNode );
-                    }
-                }
-            }
+            ObjectArrayList nodes = new LinkCandidateSource( this, stringency ).toNodes( Runtime.getRuntime()
+                    .availableProcessors() );
+
+            Writer out = new BufferedWriter( new FileWriter( new File( outFile ) ) );
+            /*
+             * Only look at the pairs that can reach the stringency, rather than at all of them.
+             */
+            List<long[]> masks = new ArrayList<>( nodes.size() );
+            for ( int k = 0; k < nodes.size(); k++ )
+                masks.add( ( ( TreeNode ) nodes.get( k ) ).getMask() );
+            MaskPrefixIndex candidates = new MaskPrefixIndex( masks, linkCountMatrix.getBitNum(), stringency );
             for ( int rowIndex = 0; rowIndex < nodes.size(); rowIndex++ ) {
                 TreeNode rowNode = ( TreeNode ) nodes.get( rowIndex );
-                for ( int colIndex = rowIndex + 1; colIndex < nodes.size(); colIndex++ ) {
+                int numCandidates = candidates.candidates( rowIndex );
+                int[] candidateIndices = candidates.getBuffer();
+                for ( int c = 0; c < numCandidates; c++ ) {
+                    int colIndex = candidateIndices[c];
                     TreeNode colNode = ( TreeNode ) nodes.get( colIndex );
-                    int commonBits = overlapBits( rowNode.getMask(), colNode.getMask() );
-                    if ( commonBits >= stringency ) {
-                        out.write( rowIndex + "\t" + colIndex + "\t" + commonBits + "\n" );
-                        out.write( colIndex + "\t" + rowIndex + "\t" + commonBits + "\n" );
-                    }
+                    int commonBits = overlapBits( rowNode.getMask(), colNode.getMask(), stringency );
+                    if ( commonBits < 0 ) continue;
+                    out.write( rowIndex + "\t" + colIndex + "\t" + commonBits + "\n" );
+                    out.write( colIndex + "\t" + rowIndex + "\t" + commonBits + "\n" );
                 }
 
             }
@@ -596,21 +884,127 @@ public class LinkMatrix {
         this.geneService = geneService;
     }
 
-    public void setGoService( GeneOntologyService goService ) {
+    public synchronized void setGoService( GeneOntologyService goService ) {
         this.goService = goService;
+        this.goTermCache = null;
+        this.universeTermCounts = null;
+    }
+
+    /**
+     * Store only the upper triangle of the matrix; takes effect at the next {@link #init}. Requires the target genes
+     * to be the same as the coexpressed genes.
+     *
+     * @param symmetric
+     */
+    public void setSymmetric( boolean symmetric ) {
+        this.symmetric = symmetric;
+    }
+
+    /**
+     * Keep the strength of each link in each experiment, as the absolute correlation quantized to 4 or 8 bits, in a
+     * {@link CorrelationPlane}. Any correlations kept so far are dropped; those of the links filled in from now on are
+     * kept. The clustering then breaks ties between equally supported pairs of links by their correlations.
+     *
+     * @param bits 4 or 8, or 0 for none
+     */
+    public void setCorrelationBits( int bits ) {
+        if ( bits != 0 && bits != 4 && bits != 8 ) {
+            throw new IllegalArgumentException( "Correlations are quantized to 4 or 8 bits, not " + bits );
+        }
+        this.correlationBits = bits;
+        this.correlationPlane = bits > 0 && linkCountMatrix != null ? new CorrelationPlane( linkCountMatrix.rows(),
+                linkCountMatrix.getBitNum(), bits, symmetric ) : null;
+    }
+
+    /**
+     * Keep positive and negative links apart; takes effect at the next {@link #init}. The raw matrix is then a
+     * {@link SignedLinkStore}, whose unsigned view is the union of both signs.
+     *
+     * @param signed
+     */
+    public void setSigned( boolean signed ) {
+        this.signed = signed;
+    }
+
+    /**
+     * Cut the matrix down to one of a number of disjoint blocks of rows, so a large matrix can be built by separate
+     * processes, each holding only its block, and put together again with
+     * {@link #mergeShards(String, String, int)}. The rows of shard <code>shard</code> are the
+     * <code>shard</code>-th slice of the genes ordered by id, and its columns all the genes; the experiments are
+     * ordered by id too, so that the shards of the same genes and experiments agree on the columns and bit indices
+     * whatever order they were loaded in. A shard is never symmetric. Call before filling in the bits.
+     *
+     * @param shard from 0
+     * @param numShards
+     */
+    public void restrictToShard( int shard, int numShards ) {
+        if ( shard < 0 || shard >= numShards ) {
+            throw new IllegalArgumentException( "No shard " + shard + " of " + numShards );
+        }
+        List<Gene> genes = new ArrayList<>( Arrays.asList( colGenes ) );
+        Collections.sort( genes, new Comparator<Gene>() {
+            @Override
+            public int compare( Gene o1, Gene o2 ) {
+                return o1.getId().compareTo( o2.getId() );
+            }
+        } );
+        List<ExpressionExperiment> ees = new ArrayList<>( Arrays.asList( eeMap ).subList( 0,
+                linkCountMatrix.getBitNum() ) );
+        Collections.sort( ees, new Comparator<ExpressionExperiment>() {
+            @Override
+            public int compare( ExpressionExperiment o1, ExpressionExperiment o2 ) {
+                return o1.getId().compareTo( o2.getId() );
+            }
+        } );
+        int from = ( int ) ( ( long ) genes.size() * shard / numShards );
+        int to = ( int ) ( ( long ) genes.size() * ( shard + 1 ) / numShards );
+        this.symmetric = false;
+        init( ees, new ArrayList<>( genes.subList( from, to ) ), genes );
+        log.info( "Shard " + shard + " of " + numShards + ": rows " + from + " to " + to + " of " + genes.size() );
     }
 
     public void setStringency( int stringency ) {
         this.stringency = stringency;
     }
 
+    /**
+     * Save the matrix in the binary format that can be memory-mapped when it is read back, along with the mapping of
+     * expression experiments to bit indices. Any delta files of appended experiments are folded into the new file. A
+     * signed matrix keeps its negative links in a second file, named with the {@link #NEGATIVE_SUFFIX}; a symmetric
+     * one only writes its upper triangle. The correlations, if kept, go to a file named with the
+     * {@link #CORRELATION_SUFFIX}.
+     *
+     * @param matrixFile
+     * @param eeMapFile
+     * @throws IOException
+     */
     public void toFile( String matrixFile, String eeMapFile ) throws IOException {
-        linkCountMatrix.toFile( matrixFile );
+        if ( linkCountMatrix instanceof SignedLinkStore ) {
+            SignedLinkStore planes = ( SignedLinkStore ) linkCountMatrix;
+            writePlane( planes.getPlane( Sign.POSITIVE ), matrixFile );
+            writePlane( planes.getPlane( Sign.NEGATIVE ), matrixFile + NEGATIVE_SUFFIX );
+        } else {
+            writePlane( linkCountMatrix, matrixFile );
+            writePlane( null, matrixFile + NEGATIVE_SUFFIX );
+        }
+        if ( correlationPlane != null ) {
+            correlationPlane.write( new File( matrixFile + CORRELATION_SUFFIX ) );
+        } else {
+            new File( matrixFile + CORRELATION_SUFFIX ).delete();
+        }
         FileWriter out = new FileWriter( new File( eeMapFile ) );
-        for ( Long index : this.eeIndexMap.keySet() ) {
-            out.write( index + "\t" + this.eeIndexMap.get( index ) + "\n" );
+        for ( long eeId : this.eeIndexMap.keys() ) {
+            out.write( eeId + "\t" + this.eeIndexMap.get( eeId ) + "\n" );
         }
         out.close();
+        savedBits = linkCountMatrix.getBitNum();
+    }
+
+    /**
+     * Look up the GO terms of all the genes of the matrix in one go, e.g. before exporting or viewing many links.
+     */
+    public void warmGoTermCache() {
+        getGoTermCache().warm( getMatrixGenes() );
     }
 
     /**
@@ -629,10 +1023,282 @@ public class LinkMatrix {
     }
 
     /**
-     * Ensure the shift is high enough to store genes in pairs in a single 64-bit vector.
+     * Look up the genes of the rows and columns once, so that {@link #getRowGene(int)} and {@link #getColGene(int)}
+     * are array loads.
+     *
+     * @param genes
+     */
+    private void initGenes( Collection<Gene> genes ) {
+        LongIntHashMap rowIndex = new LongIntHashMap( linkCountMatrix.rows() );
+        for ( int i = 0; i < linkCountMatrix.rows(); i++ )
+            rowIndex.put( linkCountMatrix.getRowName( i ), i );
+        LongIntHashMap colIndex = new LongIntHashMap( linkCountMatrix.columns() );
+        for ( int j = 0; j < linkCountMatrix.columns(); j++ )
+            colIndex.put( linkCountMatrix.getColName( j ), j );
+        rowGenes = new Gene[linkCountMatrix.rows()];
+        colGenes = new Gene[linkCountMatrix.columns()];
+        for ( Gene gene : genes ) {
+            int i = rowIndex.get( gene.getId() );
+            if ( i >= 0 ) rowGenes[i] = gene;
+            int j = colIndex.get( gene.getId() );
+            if ( j >= 0 ) colGenes[j] = gene;
+        }
+    }
+
+    /**
+     * @param ee
+     * @param index bit index of the experiment
      */
-    private void computeShift() {
-        shift = linkCountMatrix.rows() > linkCountMatrix.columns() ? linkCountMatrix.rows() : linkCountMatrix.columns();
+    private void putEE( ExpressionExperiment ee, int index ) {
+        eeIndexMap.put( ee.getId(), index );
+        if ( index >= eeMap.length ) eeMap = Arrays.copyOf( eeMap, Math.max( index + 1, eeMap.length * 2 ) );
+        eeMap[index] = ee;
+    }
+
+    /**
+     * @param linkIds
+     * @return the distinct genes of the links.
+     */
+    private Collection<Gene> getLinkGenes( LongOpenHashSet linkIds ) {
+        LongOpenHashSet seen = new LongOpenHashSet( linkIds.size() );
+        Collection<Gene> genes = new ArrayList<>();
+        for ( long linkId : linkIds.toArray() ) {
+            Gene rowGene = getRowGene( LinkId.row( linkId ) );
+            if ( rowGene != null && seen.add( rowGene.getId() ) ) genes.add( rowGene );
+            Gene colGene = getColGene( LinkId.col( linkId ) );
+            if ( colGene != null && seen.add( colGene.getId() ) ) genes.add( colGene );
+        }
+        return genes;
+    }
+
+    /**
+     * @return the distinct genes of the rows and columns.
+     */
+    private Collection<Gene> getMatrixGenes() {
+        LongOpenHashSet seen = new LongOpenHashSet( rowGenes.length + colGenes.length );
+        Collection<Gene> genes = new ArrayList<>();
+        for ( Gene[] geneArray : new Gene[][] { rowGenes, colGenes } ) {
+            for ( Gene gene : geneArray ) {
+                if ( gene != null && seen.add( gene.getId() ) ) genes.add( gene );
+            }
+        }
+        return genes;
+    }
+
+    private synchronized int[] getUniverseTermCounts() {
+        if ( universeTermCounts == null ) {
+            Collection<Gene> genes = getMatrixGenes();
+            universeTermCounts = getGoTermCache().countTerms( genes );
+            universeGenes = genes.size();
+        }
+        return universeTermCounts;
+    }
+
+    /**
+     * @param eeMapFile
+     * @param eeService
+     * @throws IOException
+     */
+    private void readEEMap( String eeMapFile, ExpressionExperimentService eeService ) throws IOException {
+        try (BufferedReader in = new BufferedReader( new FileReader( new File( eeMapFile ) ) );) {
+            String row = null;
+            int i;
+            this.eeIndexMap = new LongIntHashMap();
+            int vectorSize = 0;
+            while ( ( row = in.readLine() ) != null ) {
+                row = row.trim();
+                if ( StringUtils.isBlank( row ) ) continue;
+                String[] subItems = row.split( "\t" );
+                if ( subItems.length != 2 ) continue;
+                for ( i = 0; i < subItems.length; i++ )
+                    if ( StringUtils.isBlank( subItems[i] ) ) break;
+                if ( i != subItems.length ) {
+                    String mesg = "Data File Format Error for ee Map " + row;
+                    log.info( mesg );
+                    throw new IOException( mesg );
+                }
+                int index = Integer.parseInt( subItems[1].trim() );
+                this.eeIndexMap.put( Long.parseLong( subItems[0].trim() ), index );
+                if ( index > vectorSize ) vectorSize = index;
+            }
+            eeMap = new ExpressionExperiment[Math.max( vectorSize + 1, linkCountMatrix.getBitNum() )];
+            for ( long eeId : this.eeIndexMap.keys() ) {
+                eeMap[this.eeIndexMap.get( eeId )] = eeService.load( eeId );
+            }
+            log.info( "Got " + this.eeIndexMap.size() + " in EE MAP" );
+        }
+    }
+
+    /**
+     * Read the tab-delimited format written by {@link CompressedBitMatrix#toFile(String)}.
+     *
+     * @param matrixFile
+     * @return
+     * @throws IOException
+     */
+    private LinkStore readTextMatrix( File matrixFile ) throws IOException {
+        CompressedBitMatrix<Long, Long> matrix = null;
+        try (BufferedReader in = new BufferedReader( new FileReader( matrixFile ) );) {
+            String row = null;
+            int i;
+            boolean hasConfig = false, hasRowNames = false, hasColNames = false;
+            while ( ( row = in.readLine() ) != null ) {
+                row = row.trim();
+                if ( StringUtils.isBlank( row ) ) continue;
+                String[] subItems = row.split( "\t" );
+                for ( i = 0; i < subItems.length; i++ )
+                    if ( StringUtils.isBlank( subItems[i] ) ) break;
+                if ( i != subItems.length ) {
+                    String mesg = "The empty Element is not allowed: " + row;
+                    log.info( mesg );
+                    throw new IOException( mesg );
+                }
+                if ( !hasConfig ) {
+                    if ( subItems.length != 3 ) {
+                        String mesg = "Data File Format Error for configuration " + row;
+                        log.info( mesg );
+                        throw new IOException( mesg );
+                    }
+                    matrix = new CompressedBitMatrix<>( Integer.valueOf( subItems[0] ), Integer.valueOf( subItems[1] ),
+                            Integer.valueOf( subItems[2] ) );
+                    hasConfig = true;
+                } else if ( !hasRowNames ) {
+                    if ( subItems.length != matrix.rows() ) {
+                        String mesg = "Data File Format Error for Row Names " + row;
+                        log.info( mesg );
+                        throw new IOException( mesg );
+                    }
+                    for ( i = 0; i < subItems.length; i++ ) {
+                        matrix.addRowName( new Long( subItems[i].trim() ) );
+                    }
+                    hasRowNames = true;
+                } else if ( !hasColNames ) {
+                    if ( subItems.length != matrix.columns() ) {
+                        String mesg = "Data File Format Error for Col Names " + row;
+                        log.info( mesg );
+                        throw new IOException( mesg );
+                    }
+                    for ( i = 0; i < subItems.length; i++ ) {
+                        matrix.addColumnName( new Long( subItems[i].trim() ) );
+                    }
+                    hasColNames = true;
+                } else {
+                    int rowIndex = Integer.valueOf( subItems[0] );
+                    int colIndex = Integer.valueOf( subItems[1] );
+                    double values[] = new double[subItems.length - 2];
+                    for ( i = 2; i < subItems.length; i++ )
+                        values[i - 2] = Double.longBitsToDouble( Long.parseLong( subItems[i], 16 ) );
+                    matrix.set( rowIndex, colIndex, values );
+                }
+            }
+        }
+        if ( matrix == null ) {
+            throw new IOException( "No link matrix found in " + matrixFile );
+        }
+        return new DenseLinkStore( matrix );
+    }
+
+    /**
+     * @param matrixFile
+     * @return the matrix in the file, with the experiments appended to it in its delta files.
+     * @throws IOException
+     */
+    private LinkStore readStore( String matrixFile ) throws IOException {
+        File file = new File( matrixFile );
+        LinkStore store;
+        if ( ShardedLinkStore.isManifest( file ) ) {
+            store = new ShardedLinkStore( file );
+        } else if ( MappedLinkStore.isBinary( file ) ) {
+            store = new MappedLinkStore( file );
+        } else {
+            store = readTextMatrix( file );
+        }
+        for ( int n = 1;; n++ ) {
+            File delta = new File( matrixFile + DELTA_SUFFIX + n );
+            if ( !delta.exists() ) break;
+            store = new AppendedLinkStore( store, new MappedLinkStore( delta ) );
+        }
+        return store;
+    }
+
+    /**
+     * @return an empty sparse store for the genes, keeping only the upper triangle if the matrix is symmetric.
+     */
+    private LinkStore newPlane( long[] rowIds, long[] colIds, int bitNum ) {
+        if ( symmetric ) return new TriangularLinkStore( rowIds, bitNum );
+        return new SparseLinkStore( rowIds, colIds, bitNum );
+    }
+
+    /**
+     * @param plane
+     * @return the segments of the plane holding the experiments from {@link #savedBits} on, as one store whose bit
+     *         indices start at 0.
+     */
+    private LinkStore unsavedSegments( LinkStore plane ) {
+        LinkStore unsaved = null;
+        while ( plane.getBitNum() > savedBits && plane instanceof AppendedLinkStore ) {
+            AppendedLinkStore appended = ( AppendedLinkStore ) plane;
+            unsaved = unsaved == null ? appended.getSegment() : new AppendedLinkStore( appended.getSegment(),
+                    unsaved );
+            plane = appended.getBase();
+        }
+        if ( plane.getBitNum() != savedBits ) {
+            throw new IllegalStateException( "Experiments " + savedBits + " to " + plane.getBitNum()
+                    + " were never saved; write the whole matrix with toFile" );
+        }
+        if ( unsaved == null ) {
+            throw new IllegalStateException( "No experiments have been appended" );
+        }
+        return unsaved;
+    }
+
+    /**
+     * Write the segment to the next delta file of the matrix file.
+     *
+     * @param segment
+     * @param matrixFile
+     * @throws IOException
+     */
+    private void appendPlaneToFile( LinkStore segment, String matrixFile ) throws IOException {
+        int n = 1;
+        while ( new File( matrixFile + DELTA_SUFFIX + n ).exists() )
+            n++;
+        MappedLinkStore.write( segment, new File( matrixFile + DELTA_SUFFIX + n ), symmetric );
+    }
+
+    /**
+     * Write the plane to the file, and remove its delta files, whose experiments are now part of it.
+     *
+     * @param plane if null, just remove the file and its deltas
+     * @param matrixFile
+     * @throws IOException
+     */
+    private void writePlane( LinkStore plane, String matrixFile ) throws IOException {
+        if ( plane != null ) {
+            MappedLinkStore.write( plane, new File( matrixFile ), symmetric );
+        } else {
+            new File( matrixFile ).delete();
+        }
+        deleteDeltas( matrixFile );
+    }
+
+    /**
+     * Remove the delta files of a matrix file.
+     *
+     * @param matrixFile
+     */
+    private static void deleteDeltas( String matrixFile ) {
+        int n = 1;
+        while ( new File( matrixFile + DELTA_SUFFIX + n ).delete() )
+            n++;
+    }
+
+    /**
+     * The old link ids of a matrix read from a file used the larger dimension as the shift.
+     */
+    private void computeLegacyShift() {
+        legacyShift = linkCountMatrix.rows() > linkCountMatrix.columns() ? linkCountMatrix.rows()
+                : linkCountMatrix.columns();
     }
 
     /**
@@ -657,4 +1323,15 @@ public class LinkMatrix {
 
         init( ees, genes, genesInTaxon );
     }
+
+    /**
+     * @param taxon
+     */
+    private void init( Taxon taxon ) {
+        Collection<Gene> allGenes = geneService.getGenesByTaxon( taxon );
+
+        log.info( "Got " + allGenes.size() + " genes" );
+        if ( allGenes.size() == 0 ) return;
+        init( allGenes );
+    }
 }
@@ -0,0 +1,323 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import chibi.gemmaanalysis.SignedLinkStore.Sign;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+/**
+ * Fills the bits of an initialized {@link LinkMatrix} from the links of each expression experiment. Experiments are
+ * read concurrently, one task per experiment, each task setting that experiment's bit in the cells of its links.
+ * Updates are serialized per row through a fixed set of lock stripes, so tasks only contend when they touch the same
+ * rows at the same time.
+ */
+public class LinkMatrixBuilder {
+
+    /**
+     * Reads the links for a directory holding one file per experiment, named by the experiment id with a ".txt"
+     * extension. Each line holds the ids of the two linked genes, tab-delimited, optionally followed by the
+     * correlation, which gives the sign of the link and its strength. Further columns are ignored.
+     */
+    public static class LinkFileReader implements LinkReader {
+
+        private File dir;
+
+        /**
+         * @param dir
+         */
+        public LinkFileReader( String dir ) {
+            this.dir = new File( dir );
+        }
+
+        @Override
+        public void read( ExpressionExperiment ee, LinkSink sink ) throws IOException {
+            File file = new File( dir, ee.getId() + ".txt" );
+            if ( !file.canRead() ) {
+                log.warn( "No links for " + ee.getShortName() + " (" + file + ")" );
+                return;
+            }
+            try (BufferedReader in = new BufferedReader( new FileReader( file ) );) {
+                String row = null;
+                while ( ( row = in.readLine() ) != null ) {
+                    if ( StringUtils.isBlank( row ) || row.startsWith( "#" ) ) continue;
+                    String[] subItems = row.split( "\t" );
+                    if ( subItems.length < 2 ) {
+                        throw new IOException( "Link File Format Error in " + file + ": " + row );
+                    }
+                    long geneId1 = Long.parseLong( subItems[0].trim() );
+                    long geneId2 = Long.parseLong( subItems[1].trim() );
+                    double correlation = subItems.length > 2 ? parseCorrelation( subItems[2] ) : Double.NaN;
+                    if ( !Double.isNaN( correlation ) ) {
+                        sink.add( geneId1, geneId2, correlation );
+                    } else {
+                        sink.add( geneId1, geneId2, subItems.length < 3 || !subItems[2].trim().startsWith( "-" ) );
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the value, or NaN if it is not a number.
+         */
+        private static double parseCorrelation( String value ) {
+            try {
+                return Double.parseDouble( value.trim() );
+            } catch ( NumberFormatException e ) {
+                return Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Supplies the links of one expression experiment.
+     */
+    public interface LinkReader {
+        /**
+         * @param ee
+         * @param sink receives every link of the experiment
+         * @throws IOException
+         */
+        public void read( ExpressionExperiment ee, LinkSink sink ) throws IOException;
+    }
+
+    /**
+     * Receives links as pairs of gene ids.
+     */
+    public interface LinkSink {
+        /**
+         * A link of unknown sign; in a signed matrix it counts as positive.
+         */
+        public void add( long geneId1, long geneId2 );
+
+        /**
+         * @param geneId1
+         * @param geneId2
+         * @param positive the sign of the correlation, kept apart if the matrix is signed
+         */
+        public void add( long geneId1, long geneId2, boolean positive );
+
+        /**
+         * @param geneId1
+         * @param geneId2
+         * @param correlation its sign is the sign of the link; its strength is kept if the matrix keeps correlations
+         */
+        public void add( long geneId1, long geneId2, double correlation );
+    }
+
+    private static final int NUM_STRIPES = 1024;
+
+    private static Log log = LogFactory.getLog( LinkMatrixBuilder.class.getName() );
+
+    private LinkMatrix linkMatrix;
+    private LinkReader reader;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private Object[] stripes;
+
+    private AtomicInteger experimentsDone = new AtomicInteger();
+    private AtomicLong linksRead = new AtomicLong();
+    private AtomicLong linksSkipped = new AtomicLong();
+    private long startTime;
+
+    /**
+     * @param linkMatrix an initialized link matrix
+     * @param reader
+     */
+    public LinkMatrixBuilder( LinkMatrix linkMatrix, LinkReader reader ) {
+        this.linkMatrix = linkMatrix;
+        this.reader = reader;
+        /*
+         * CompressedBitMatrix makes no promises about concurrent updates, even to different rows.
+         */
+        int numStripes = linkMatrix.getRawMatrix() instanceof DenseLinkStore ? 1 : NUM_STRIPES;
+        this.stripes = new Object[numStripes];
+        for ( int i = 0; i < numStripes; i++ )
+            stripes[i] = new Object();
+    }
+
+    /**
+     * Fill in all the experiments of the matrix.
+     *
+     * @throws InterruptedException
+     * @throws IOException if one of the experiments could not be read.
+     */
+    public void build() throws InterruptedException, IOException {
+        build( linkMatrix.getEEs() );
+    }
+
+    /**
+     * @param ees experiments to fill in; each must already have a bit index in the matrix.
+     * @throws InterruptedException
+     * @throws IOException if one of the experiments could not be read.
+     */
+    public void build( Collection<ExpressionExperiment> ees ) throws InterruptedException, IOException {
+        startTime = System.currentTimeMillis();
+        experimentsDone.set( 0 );
+        linksRead.set( 0 );
+        linksSkipped.set( 0 );
+        final int total = ees.size();
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for ( final ExpressionExperiment ee : ees ) {
+                final int eeIndex = linkMatrix.getEEIndex( ee.getId() );
+                if ( eeIndex < 0 ) {
+                    throw new IllegalArgumentException( ee.getShortName() + " is not in the link matrix" );
+                }
+                futures.add( executor.submit( new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        final long[] counts = new long[2]; // read, skipped
+                        reader.read( ee, new LinkSink() {
+                            @Override
+                            public void add( long geneId1, long geneId2 ) {
+                                add( geneId1, geneId2, true );
+                            }
+
+                            @Override
+                            public void add( long geneId1, long geneId2, boolean positive ) {
+                                counts[0]++;
+                                if ( !addLink( geneId1, geneId2, eeIndex, positive ? Sign.POSITIVE
+                                        : Sign.NEGATIVE, Double.NaN ) ) counts[1]++;
+                            }
+
+                            @Override
+                            public void add( long geneId1, long geneId2, double correlation ) {
+                                counts[0]++;
+                                if ( !addLink( geneId1, geneId2, eeIndex, correlation < 0 ? Sign.NEGATIVE
+                                        : Sign.POSITIVE, correlation ) ) counts[1]++;
+                            }
+                        } );
+                        linksRead.addAndGet( counts[0] );
+                        linksSkipped.addAndGet( counts[1] );
+                        int done = experimentsDone.incrementAndGet();
+                        if ( done % 50 == 0 || done == total ) {
+                            log.info( "Read " + done + "/" + total + " experiments, " + linksRead.get() + " links ("
+                                    + getLinksPerSecond() + " links/s)" );
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Object> future : futures ) {
+                future.get();
+            }
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) throw ( IOException ) e.getCause();
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            executor.shutdownNow();
+        }
+        linkMatrix.invalidateLinkEEIndex();
+        linkMatrix.invalidateLinkSupport();
+        log.info( "Built link matrix from " + experimentsDone.get() + " experiments in "
+                + ( System.currentTimeMillis() - startTime ) / 1000 + "s: " + linksRead.get() + " links read, "
+                + linksSkipped.get() + " skipped (genes not in the matrix)" );
+    }
+
+    public int getExperimentsDone() {
+        return experimentsDone.get();
+    }
+
+    /**
+     * @return throughput of the current or last build.
+     */
+    public long getLinksPerSecond() {
+        long elapsed = Math.max( 1, System.currentTimeMillis() - startTime );
+        return linksRead.get() * 1000 / elapsed;
+    }
+
+    public long getLinksRead() {
+        return linksRead.get();
+    }
+
+    public long getLinksSkipped() {
+        return linksSkipped.get();
+    }
+
+    /**
+     * @param numThreads number of experiments read at the same time; defaults to the number of processors.
+     */
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set the experiment bit for the link in both orientations, as far as the genes are rows and columns of the
+     * matrix; in a signed matrix, in the plane of the sign, and its correlation if the matrix keeps them.
+     *
+     * @return false if neither orientation is in the matrix.
+     */
+    private boolean addLink( long geneId1, long geneId2, int eeIndex, Sign sign, double correlation ) {
+        LinkStore store = linkMatrix.getRawMatrix();
+        int row1 = store.getRowIndexByName( geneId1 );
+        int col1 = store.getColIndexByName( geneId1 );
+        int row2 = store.getRowIndexByName( geneId2 );
+        int col2 = store.getColIndexByName( geneId2 );
+        boolean added = false;
+        if ( row1 >= 0 && col2 >= 0 ) {
+            set( store, row1, col2, eeIndex, sign, correlation );
+            added = true;
+        }
+        if ( row2 >= 0 && col1 >= 0 && !linkMatrix.isSymmetric() ) {
+            set( store, row2, col1, eeIndex, sign, correlation );
+            added = true;
+        }
+        return added;
+    }
+
+    private void set( LinkStore store, int row, int col, int eeIndex, Sign sign, double correlation ) {
+        /*
+         * A symmetric store keeps (row, col) and (col, row) in the same cell, which belongs to the lower index.
+         */
+        int owner = linkMatrix.isSymmetric() ? Math.min( row, col ) : row;
+        synchronized ( stripes[owner % stripes.length] ) {
+            if ( store instanceof SignedLinkStore ) {
+                ( ( SignedLinkStore ) store ).set( sign, row, col, eeIndex );
+            } else {
+                store.set( row, col, eeIndex );
+            }
+            /*
+             * Without a correlation, a link counts as fully correlated.
+             */
+            CorrelationPlane correlations = linkMatrix.getCorrelationPlane();
+            if ( correlations != null ) {
+                correlations.set( row, col, eeIndex, Double.isNaN( correlation ) ? 1.0 : correlation );
+            }
+        }
+    }
+
+}
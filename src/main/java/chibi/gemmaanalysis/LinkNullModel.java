@@ -0,0 +1,546 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Permutation null model of link support: how many links would reach each stringency if the links of every
+ * experiment fell at random? Each permutation shuffles the links of each experiment independently, keeping the number
+ * of links of the experiment, and recomputes the support histogram; comparing the number of links observed at a
+ * stringency with the average under the permutations gives an empirical false discovery rate.
+ * <p>
+ * Two ways of shuffling are offered:
+ * <ul>
+ * <li>over all pairs of genes (the default): the links of an experiment are moved to pairs of genes drawn uniformly
+ * among all those that can hold a link, seen or not. This only needs the number of links of each experiment. Drawing
+ * only among the links seen in some experiment would make them overlap far more often than by chance, and overstate
+ * the FDR;
+ * <li>preserving gene degrees: the genes of each experiment are relabelled at random, so every experiment keeps its
+ * degree sequence, and links can land on any pair of genes.
+ * </ul>
+ * Links are counted as in {@link LinkStatistics}: once per pair of genes, see {@link LinkPairs}. When the rows and
+ * columns are the same genes, one relabelling is applied to both.
+ * The permutations are spread over threads; each has its own random stream derived from the seed, so the results do
+ * not depend on the number of threads.
+ */
+public class LinkNullModel {
+
+    public static final long DEFAULT_SEED = 0x5DEECE66DL;
+
+    /**
+     * Up to this many pairs of genes, links are moved with a counter per pair; above it, only the pairs drawn are
+     * counted, in a hash map.
+     */
+    static final long DENSE_PAIRS = 1 << 22;
+
+    private static Log log = LogFactory.getLog( LinkNullModel.class.getName() );
+
+    /**
+     * @param linkMatrix
+     * @param permutations
+     * @param preserveDegrees if true, relabel genes rather than move links, see above.
+     * @param seed
+     * @param numThreads
+     * @return
+     * @throws InterruptedException
+     */
+    public static LinkNullModel compute( LinkMatrix linkMatrix, int permutations, boolean preserveDegrees, long seed,
+            int numThreads ) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        LinkNullModel model = new LinkNullModel( linkMatrix, preserveDegrees );
+        model.permute( permutations, seed, numThreads );
+        log.info( "Ran " + permutations + " permutations of " + model.cells + " links"
+                + ( preserveDegrees ? "" : " over " + model.pairCount + " gene pairs" ) + " in "
+                + ( System.currentTimeMillis() - start ) + "ms" );
+        return model;
+    }
+
+    /**
+     * Random stream of one permutation: SplitMix64, which gives independent streams for consecutive seeds.
+     */
+    private static class Stream {
+        private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+        private static long mix( long z ) {
+            z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+            z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+            return z ^ ( z >>> 31 );
+        }
+
+        private long state;
+
+        private Stream( long seed, int permutation ) {
+            this.state = mix( seed + ( permutation + 1L ) * GAMMA );
+        }
+
+        /**
+         * @param bound
+         * @return uniform in [0, bound)
+         */
+        private int nextInt( int bound ) {
+            /*
+             * Multiply and shift rather than take a remainder; reject the few draws that would bias the result.
+             */
+            long m = ( nextLong() >>> 32 ) * bound;
+            if ( ( m & 0xFFFFFFFFL ) < bound ) {
+                long threshold = ( 1L << 32 ) % bound;
+                while ( ( m & 0xFFFFFFFFL ) < threshold )
+                    m = ( nextLong() >>> 32 ) * bound;
+            }
+            return ( int ) ( m >>> 32 );
+        }
+
+        /**
+         * @param bound
+         * @return uniform in [0, bound)
+         */
+        private long nextLong( long bound ) {
+            long bits, value;
+            do {
+                bits = nextLong() >>> 1;
+                value = bits % bound;
+            } while ( bits - value + ( bound - 1 ) < 0 );
+            return value;
+        }
+
+        private long nextLong() {
+            state += GAMMA;
+            return mix( state );
+        }
+    }
+
+    /**
+     * A random one-to-one relabelling of n genes, drawn only for the genes asked for: a partial Fisher-Yates shuffle
+     * of an array that stays a permutation between uses, so resetting costs only the genes used.
+     */
+    private static class Relabelling {
+        private int[] labels;
+        private int[] assigned;
+        private int[] used;
+        private int usedCount = 0;
+
+        private Relabelling( int n ) {
+            labels = new int[n];
+            assigned = new int[n];
+            used = new int[n];
+            for ( int i = 0; i < n; i++ ) {
+                labels[i] = i;
+                assigned[i] = -1;
+            }
+        }
+
+        private int get( int gene, Stream random ) {
+            if ( assigned[gene] >= 0 ) return assigned[gene];
+            int t = usedCount;
+            int r = t + random.nextInt( labels.length - t );
+            int label = labels[r];
+            labels[r] = labels[t];
+            labels[t] = label;
+            used[usedCount++] = gene;
+            assigned[gene] = label;
+            return label;
+        }
+
+        private void reset() {
+            for ( int k = 0; k < usedCount; k++ )
+                assigned[used[k]] = -1;
+            usedCount = 0;
+        }
+    }
+
+    private LinkStore store;
+    private LinkPairs pairs;
+    private boolean square;
+    private boolean preserveDegrees;
+
+    /**
+     * Number of pairs of genes that can hold a link, see {@link LinkPairs#countedPairs()}.
+     */
+    private long pairCount;
+
+    /**
+     * Number of links, and their row and column (only kept to preserve degrees); when square, the column is given as
+     * the row of its gene.
+     */
+    private int cells = 0;
+    private int[] cellRows;
+    private int[] cellCols;
+
+    /**
+     * Per experiment, its number of links, and (to preserve degrees) the offsets of its links in eeCells.
+     */
+    private int[] eeLinks;
+    private long[] eeStart;
+    private int[] eeCells;
+
+    private long[] observed;
+
+    private int permutations = 0;
+    private long[] nullTotals;
+    private long[] exceedances;
+
+    private LinkNullModel( LinkMatrix linkMatrix, boolean preserveDegrees ) {
+        this.store = linkMatrix.getRawMatrix();
+        this.preserveDegrees = preserveDegrees;
+        this.pairs = new LinkPairs( store );
+        this.square = pairs.isSquare();
+        this.pairCount = pairs.countedPairs();
+        int bitNum = store.getBitNum();
+        if ( bitNum > Character.MAX_VALUE ) throw new IllegalArgumentException( "Too many experiments: " + bitNum );
+        this.observed = new long[bitNum + 1];
+        this.eeLinks = new int[bitNum];
+        scan( false );
+        if ( preserveDegrees ) scan( true );
+        for ( int s = bitNum - 1; s > 0; s-- )
+            observed[s] += observed[s + 1];
+    }
+
+    /**
+     * @param stringency
+     * @return the empirical false discovery rate of the links seen in at least stringency experiments: the average
+     *         number of such links under the permutations over the number observed, at most 1.
+     */
+    public double getFdr( int stringency ) {
+        long links = getObserved( stringency );
+        if ( links == 0 ) return 1.0;
+        return Math.min( 1.0, getExpected( stringency ) / links );
+    }
+
+    /**
+     * @param stringency
+     * @return the average number of links seen in at least stringency experiments under the permutations.
+     */
+    public double getExpected( int stringency ) {
+        if ( stringency >= nullTotals.length ) return 0.0;
+        return ( double ) nullTotals[Math.max( 1, stringency )] / permutations;
+    }
+
+    /**
+     * @return the highest stringency with observed links.
+     */
+    public int getMaxStringency() {
+        for ( int s = observed.length - 1; s > 0; s-- )
+            if ( observed[s] > 0 ) return s;
+        return 0;
+    }
+
+    /**
+     * @param stringency
+     * @return the number of links seen in at least stringency experiments.
+     */
+    public long getObserved( int stringency ) {
+        if ( stringency >= observed.length ) return 0;
+        return observed[Math.max( 1, stringency )];
+    }
+
+    public int getPermutations() {
+        return permutations;
+    }
+
+    /**
+     * @param stringency
+     * @return the fraction of permutations with at least as many links at the stringency as observed, counting the
+     *         observation as one of them.
+     */
+    public double getPValue( int stringency ) {
+        long exceeding = stringency < exceedances.length ? exceedances[Math.max( 1, stringency )] : permutations;
+        return ( exceeding + 1.0 ) / ( permutations + 1.0 );
+    }
+
+    public boolean isPreserveDegrees() {
+        return preserveDegrees;
+    }
+
+    /**
+     * Write observed and expected links, FDR and p-value per stringency, tab-delimited.
+     *
+     * @param fileName
+     * @throws IOException
+     */
+    public void writeTsv( String fileName ) throws IOException {
+        try (Writer out = new BufferedWriter( new FileWriter( new File( fileName ) ) );) {
+            out.write( "#permutations\t" + permutations + "\tpreserveDegrees\t" + preserveDegrees + "\n" );
+            out.write( "#stringency\tobserved\texpected\tfdr\tpvalue\n" );
+            for ( int s = 1; s <= getMaxStringency(); s++ ) {
+                out.write( s + "\t" + getObserved( s ) + "\t" + String.format( "%.3f", getExpected( s ) ) + "\t"
+                        + String.format( "%.4g", getFdr( s ) ) + "\t" + String.format( "%.4g", getPValue( s ) )
+                        + "\n" );
+            }
+        }
+    }
+
+    /**
+     * @param counts support of each link, cleared on the way
+     * @param nullCounts adds the number of links at each exact support
+     */
+    private void addHistogram( char[] counts, long[] nullCounts ) {
+        for ( int c = 0; c < counts.length; c++ ) {
+            if ( counts[c] == 0 ) continue;
+            nullCounts[counts[c]]++;
+            counts[c] = 0;
+        }
+    }
+
+    /**
+     * Draw the links of each experiment among all pairs of genes, without repeats, with a counter per pair: by
+     * rejection, with a bit per pair to spot repeats, which stays in cache where the counters do not; or, for
+     * experiments with most of the pairs, by drawing the pairs they do not have. For at most {@link #DENSE_PAIRS} pairs.
+     *
+     * @param chosen bit per pair, all clear
+     * @param drawn room for the links of any experiment
+     * @param counts counter per pair, all clear
+     * @return the links of the permutation at each exact support.
+     */
+    private long[] moveLinks( Stream random, long[] chosen, int[] drawn, char[] counts ) {
+        int n = ( int ) pairCount;
+        for ( int e = 0; e < eeLinks.length; e++ ) {
+            boolean complement = eeLinks[e] > n / 2;
+            int k = complement ? n - eeLinks[e] : eeLinks[e];
+            for ( int t = 0; t < k; t++ ) {
+                int pair;
+                do {
+                    pair = random.nextInt( n );
+                } while ( ( chosen[pair >>> 6] & ( 1L << pair ) ) != 0 );
+                chosen[pair >>> 6] |= 1L << pair;
+                drawn[t] = pair;
+            }
+            if ( complement ) {
+                for ( int pair = 0; pair < n; pair++ )
+                    if ( ( chosen[pair >>> 6] & ( 1L << pair ) ) == 0 ) counts[pair]++;
+            } else {
+                for ( int t = 0; t < k; t++ )
+                    counts[drawn[t]]++;
+            }
+            for ( int t = 0; t < k; t++ )
+                chosen[drawn[t] >>> 6] = 0;
+        }
+        long[] histogram = new long[observed.length];
+        addHistogram( counts, histogram );
+        return histogram;
+    }
+
+    /**
+     * As {@link #moveLinks(Stream, long[], int[], char[])}, for more than {@link #DENSE_PAIRS} pairs, where the links
+     * of an experiment are a small part of them: the pairs of each experiment are drawn, sorted, and the repeats drawn
+     * again until there are none; only the pairs drawn are counted.
+     *
+     * @param drawn room for the links of any experiment
+     * @param support scratch counters, cleared here
+     * @return the links of the permutation at each exact support.
+     */
+    private long[] moveLinksSparse( Stream random, long[] drawn, LongIntHashMap support ) {
+        support.clear();
+        for ( int e = 0; e < eeLinks.length; e++ ) {
+            int k = eeLinks[e];
+            int distinct = 0;
+            while ( distinct < k ) {
+                for ( int t = distinct; t < k; t++ )
+                    drawn[t] = random.nextLong( pairCount );
+                Arrays.sort( drawn, 0, k );
+                distinct = 1;
+                for ( int t = 1; t < k; t++ )
+                    if ( drawn[t] != drawn[distinct - 1] ) drawn[distinct++] = drawn[t];
+            }
+            for ( int t = 0; t < k; t++ )
+                support.add( drawn[t], 1 );
+        }
+        long[] histogram = new long[observed.length];
+        for ( long pair : support.keys() )
+            histogram[support.get( pair )]++;
+        return histogram;
+    }
+
+    private void permute( final int numPermutations, final long seed, int numThreads ) throws InterruptedException {
+        nullTotals = new long[observed.length];
+        exceedances = new long[observed.length];
+        if ( numPermutations <= 0 ) return;
+        int workers = Math.max( 1, Math.min( numThreads, numPermutations ) );
+        ExecutorService executor = Executors.newFixedThreadPool( workers );
+        try {
+            List<Future<long[][]>> futures = new ArrayList<>();
+            for ( int w = 0; w < workers; w++ ) {
+                final int from = ( int ) ( ( long ) numPermutations * w / workers );
+                final int to = ( int ) ( ( long ) numPermutations * ( w + 1 ) / workers );
+                futures.add( executor.submit( new Callable<long[][]>() {
+                    @Override
+                    public long[][] call() {
+                        return permuteRange( from, to, seed );
+                    }
+                } ) );
+            }
+            for ( Future<long[][]> future : futures ) {
+                long[][] part = future.get();
+                for ( int s = 0; s < observed.length; s++ ) {
+                    nullTotals[s] += part[0][s];
+                    exceedances[s] += part[1][s];
+                }
+            }
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            executor.shutdownNow();
+        }
+        permutations = numPermutations;
+    }
+
+    /**
+     * Run permutations from (inclusive) to (exclusive), with scratch space of their own.
+     *
+     * @return the links at least at each stringency summed over the permutations, and the number of permutations
+     *         reaching the observed number of links at each stringency.
+     */
+    private long[][] permuteRange( int from, int to, long seed ) {
+        long[] totals = new long[observed.length];
+        long[] exceeding = new long[observed.length];
+        long[] chosen = null;
+        int[] drawn = null;
+        long[] drawnPairs = null;
+        char[] counts = null;
+        Relabelling rowLabels = null, colLabels = null;
+        LongIntHashMap support = null;
+        boolean dense = !preserveDegrees && pairCount <= DENSE_PAIRS;
+        if ( preserveDegrees ) {
+            rowLabels = new Relabelling( store.rows() );
+            colLabels = square ? rowLabels : new Relabelling( store.columns() );
+            support = new LongIntHashMap( cells );
+        } else if ( dense ) {
+            int n = ( int ) pairCount;
+            chosen = new long[( n + Long.SIZE - 1 ) / Long.SIZE];
+            int maxDrawn = 0;
+            for ( int e = 0; e < eeLinks.length; e++ )
+                maxDrawn = Math.max( maxDrawn, Math.min( eeLinks[e], n - eeLinks[e] ) );
+            drawn = new int[maxDrawn];
+            counts = new char[n];
+        } else {
+            int maxDrawn = 0;
+            for ( int e = 0; e < eeLinks.length; e++ )
+                maxDrawn = Math.max( maxDrawn, eeLinks[e] );
+            drawnPairs = new long[maxDrawn];
+            support = new LongIntHashMap( cells );
+        }
+        for ( int p = from; p < to; p++ ) {
+            Stream random = new Stream( seed, p );
+            long[] histogram;
+            if ( preserveDegrees ) {
+                histogram = relabelGenes( random, rowLabels, colLabels, support );
+            } else if ( dense ) {
+                histogram = moveLinks( random, chosen, drawn, counts );
+            } else {
+                histogram = moveLinksSparse( random, drawnPairs, support );
+            }
+            long atLeast = 0;
+            for ( int s = histogram.length - 1; s > 0; s-- ) {
+                atLeast += histogram[s];
+                totals[s] += atLeast;
+                if ( atLeast >= observed[s] ) exceeding[s]++;
+            }
+        }
+        return new long[][] { totals, exceeding };
+    }
+
+    /**
+     * @param support scratch counters, cleared here
+     * @return the links of the permutation at each exact support.
+     */
+    private long[] relabelGenes( Stream random, Relabelling rowLabels, Relabelling colLabels, LongIntHashMap support ) {
+        support.clear();
+        for ( int e = 0; e < eeLinks.length; e++ ) {
+            for ( long k = eeStart[e]; k < eeStart[e + 1]; k++ ) {
+                int cell = eeCells[( int ) k];
+                int row = rowLabels.get( cellRows[cell], random );
+                int col = colLabels.get( cellCols[cell], random );
+                long id = square && col < row ? LinkId.pack( col, row ) : LinkId.pack( row, col );
+                support.add( id, 1 );
+            }
+            rowLabels.reset();
+            colLabels.reset();
+        }
+        long[] histogram = new long[observed.length];
+        for ( long id : support.keys() )
+            histogram[support.get( id )]++;
+        return histogram;
+    }
+
+    /**
+     * Go over the links of the matrix: first to count them, per experiment and per support; then, to preserve degrees,
+     * to list the links of each experiment.
+     *
+     * @param list
+     */
+    private void scan( boolean list ) {
+        int bitNum = store.getBitNum();
+        long[] fill = null;
+        if ( list ) {
+            cellRows = new int[cells];
+            cellCols = new int[cells];
+            eeStart = new long[bitNum + 1];
+            for ( int e = 0; e < bitNum; e++ )
+                eeStart[e + 1] = eeStart[e] + eeLinks[e];
+            if ( eeStart[bitNum] > Integer.MAX_VALUE ) {
+                throw new IllegalStateException( "Too many experiment links to preserve degrees: " + eeStart[bitNum] );
+            }
+            eeCells = new int[( int ) eeStart[bitNum]];
+            fill = eeStart.clone();
+        }
+        int cell = 0;
+        for ( int i = 0; i < store.rows(); i++ ) {
+            for ( int j = store.nextColumn( i, pairs.firstColumn( i ) ); j >= 0; j = store.nextColumn( i, j + 1 ) ) {
+                if ( !pairs.isCounted( i, j ) ) continue;
+                long[] mask = store.getAllBits( i, j );
+                int support = 0;
+                for ( int w = 0; w < mask.length; w++ ) {
+                    for ( long word = mask[w]; word != 0; word &= word - 1 ) {
+                        int e = w * Long.SIZE + Long.numberOfTrailingZeros( word );
+                        if ( e >= bitNum ) continue;
+                        support++;
+                        if ( list ) {
+                            eeCells[( int ) fill[e]++] = cell;
+                        } else {
+                            eeLinks[e]++;
+                        }
+                    }
+                }
+                if ( support == 0 ) continue;
+                if ( list ) {
+                    cellRows[cell] = i;
+                    cellCols[cell] = square ? pairs.getRowOfCol( j ) : j;
+                } else {
+                    observed[support]++;
+                }
+                cell++;
+            }
+        }
+        cells = cell;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+/**
+ * Which cell of a {@link LinkStore} stands for the link between two genes. When both genes are rows and columns, the
+ * link is in two cells, (a, b) and (b, a), filled alike by {@link LinkMatrixBuilder}; only the one in the row that
+ * comes first is counted, and links of a gene with itself are not. Genes are matched by id, so the rows and columns
+ * need not be the same genes, nor in the same order. When they are the same genes in the same order, the counted cells
+ * are the ones above the diagonal.
+ */
+class LinkPairs {
+
+    /**
+     * Row of the gene of each column, and column of the gene of each row; -1 if the gene is not one.
+     */
+    private int[] rowOfCol;
+    private int[] colOfRow;
+
+    private boolean square = true;
+    private boolean aligned = true;
+
+    /**
+     * @param store
+     */
+    public LinkPairs( LinkStore store ) {
+        rowOfCol = new int[store.columns()];
+        colOfRow = new int[store.rows()];
+        for ( int j = 0; j < rowOfCol.length; j++ ) {
+            rowOfCol[j] = store.getRowIndexByName( store.getColName( j ) );
+            square &= rowOfCol[j] >= 0;
+            aligned &= rowOfCol[j] == j;
+        }
+        for ( int i = 0; i < colOfRow.length; i++ )
+            colOfRow[i] = store.getColIndexByName( store.getRowName( i ) );
+        square &= rowOfCol.length == colOfRow.length;
+        aligned &= square;
+    }
+
+    /**
+     * @param row
+     * @return the first column of the row that can hold a counted cell, for row scans.
+     */
+    public int firstColumn( int row ) {
+        return aligned ? row + 1 : 0;
+    }
+
+    /**
+     * @param col
+     * @return the row of the gene of the column, or -1 if it is not a row gene.
+     */
+    public int getRowOfCol( int col ) {
+        return rowOfCol[col];
+    }
+
+    /**
+     * @param row
+     * @param col
+     * @return true if the cell is the one counted for its pair of genes.
+     */
+    public boolean isCounted( int row, int col ) {
+        int reverseRow = rowOfCol[col];
+        return reverseRow < 0 || colOfRow[row] < 0 || row < reverseRow;
+    }
+
+    /**
+     * @return the number of cells that are counted, that is, of pairs of genes that can have a link.
+     */
+    public long countedPairs() {
+        /*
+         * All cells but those whose row and column genes are both rows and columns, with the row not coming first.
+         */
+        int[] rowsFrom = new int[colOfRow.length + 1];
+        for ( int i = colOfRow.length - 1; i >= 0; i-- )
+            rowsFrom[i] = rowsFrom[i + 1] + ( colOfRow[i] >= 0 ? 1 : 0 );
+        long pairs = ( long ) colOfRow.length * rowOfCol.length;
+        for ( int j = 0; j < rowOfCol.length; j++ )
+            if ( rowOfCol[j] >= 0 ) pairs -= rowsFrom[rowOfCol[j]];
+        return pairs;
+    }
+
+    /**
+     * @return true if the rows and columns are the same genes, in any order.
+     */
+    public boolean isSquare() {
+        return square;
+    }
+
+}
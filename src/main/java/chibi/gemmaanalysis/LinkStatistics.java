@@ -0,0 +1,254 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+
+/**
+ * Summary statistics of a link matrix, computed in one pass over its non-empty cells, with row blocks scanned in
+ * parallel:
+ * <ul>
+ * <li>the support histogram: number of links seen in exactly s experiments;
+ * <li>the number of links surviving each stringency (seen in at least s experiments);
+ * <li>per experiment, the number of links seen in it;
+ * <li>per gene, its degree at each stringency up to a maximum.
+ * </ul>
+ * A link held in both orientations is counted once, see {@link LinkPairs}, and counts towards the degree of each of
+ * its genes that is a row gene.
+ */
+public class LinkStatistics {
+
+    private static final int ROWS_PER_BLOCK = 256;
+
+    private static Log log = LogFactory.getLog( LinkStatistics.class.getName() );
+
+    /**
+     * @param linkMatrix
+     * @param maxStringency highest stringency for which gene degrees are kept
+     * @param numThreads
+     * @return
+     * @throws InterruptedException
+     */
+    public static LinkStatistics compute( LinkMatrix linkMatrix, int maxStringency, int numThreads )
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        LinkStatistics stats = new LinkStatistics( linkMatrix, maxStringency );
+        stats.scan( numThreads );
+        log.info( "Computed statistics of " + stats.getLinks( 1 ) + " links in " + ( System.currentTimeMillis() - start )
+                + "ms" );
+        return stats;
+    }
+
+    private LinkMatrix linkMatrix;
+    private LinkStore store;
+    private LinkPairs pairs;
+    private int maxStringency;
+
+    private long[] supportHistogram;
+    private long[] eeLinkCounts;
+
+    /**
+     * Per gene (row index), the number of links at each exact support, capped at maxStringency; turned into
+     * cumulative degrees at the end of the scan.
+     */
+    private int[] degrees;
+
+    private LinkStatistics( LinkMatrix linkMatrix, int maxStringency ) {
+        this.linkMatrix = linkMatrix;
+        this.store = linkMatrix.getRawMatrix();
+        this.maxStringency = Math.max( 1, maxStringency );
+        this.pairs = new LinkPairs( store );
+        this.supportHistogram = new long[store.getBitNum() + 1];
+        this.eeLinkCounts = new long[store.getBitNum()];
+    }
+
+    /**
+     * @param gene row index
+     * @param stringency 1 to {@link #getMaxStringency()}
+     * @return the number of links of the gene seen in at least stringency experiments.
+     */
+    public int getDegree( int gene, int stringency ) {
+        return degrees[gene * maxStringency + stringency - 1];
+    }
+
+    public long getEELinkCount( int eeIndex ) {
+        return eeLinkCounts[eeIndex];
+    }
+
+    /**
+     * @param stringency
+     * @return number of links seen in at least stringency experiments.
+     */
+    public long getLinks( int stringency ) {
+        long n = 0;
+        for ( int s = Math.max( 1, stringency ); s < supportHistogram.length; s++ )
+            n += supportHistogram[s];
+        return n;
+    }
+
+    public int getMaxStringency() {
+        return maxStringency;
+    }
+
+    /**
+     * @return the largest support of any link.
+     */
+    public int getMaxSupport() {
+        for ( int s = supportHistogram.length - 1; s > 0; s-- )
+            if ( supportHistogram[s] > 0 ) return s;
+        return 0;
+    }
+
+    /**
+     * @param support
+     * @return number of links seen in exactly that many experiments.
+     */
+    public long getSupportCount( int support ) {
+        return supportHistogram[support];
+    }
+
+    /**
+     * Write the statistics as tab-delimited sections, each preceded by a header line starting with '#': the support
+     * histogram with the links surviving each stringency, the links per experiment, and the gene degrees.
+     *
+     * @param fileName
+     * @throws IOException
+     */
+    public void writeTsv( String fileName ) throws IOException {
+        try (Writer out = new BufferedWriter( new FileWriter( new File( fileName ) ) );) {
+            out.write( "#support\tlinks\tlinksAtLeast\n" );
+            long atLeast = getLinks( 1 );
+            for ( int s = 1; s <= getMaxSupport(); s++ ) {
+                out.write( s + "\t" + supportHistogram[s] + "\t" + atLeast + "\n" );
+                atLeast -= supportHistogram[s];
+            }
+
+            out.write( "#eeIndex\tee\tlinks\n" );
+            for ( int e = 0; e < eeLinkCounts.length; e++ ) {
+                ExpressionExperiment ee = linkMatrix.getEE( e );
+                out.write( e + "\t" + ( ee == null ? "" : ee.getShortName() ) + "\t" + eeLinkCounts[e] + "\n" );
+            }
+
+            out.write( "#gene\tname" );
+            for ( int s = 1; s <= maxStringency; s++ )
+                out.write( "\tdegree" + s );
+            out.write( "\n" );
+            for ( int g = 0; g < store.rows(); g++ ) {
+                Gene gene = linkMatrix.getRowGene( g );
+                out.write( store.getRowName( g ) + "\t" + ( gene == null ? "" : gene.getName() ) );
+                for ( int s = 1; s <= maxStringency; s++ )
+                    out.write( "\t" + getDegree( g, s ) );
+                out.write( "\n" );
+            }
+        }
+    }
+
+    private void scan( int numThreads ) throws InterruptedException {
+        final AtomicIntegerArray degreeCounts = new AtomicIntegerArray( store.rows() * maxStringency );
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, numThreads ) );
+        try {
+            List<Future<long[][]>> futures = new ArrayList<>();
+            for ( int first = 0; first < store.rows(); first += ROWS_PER_BLOCK ) {
+                final int from = first;
+                final int to = Math.min( store.rows(), first + ROWS_PER_BLOCK );
+                futures.add( executor.submit( new Callable<long[][]>() {
+                    @Override
+                    public long[][] call() {
+                        return scanRows( from, to, degreeCounts );
+                    }
+                } ) );
+            }
+            for ( Future<long[][]> future : futures ) {
+                long[][] block = future.get();
+                for ( int s = 0; s < supportHistogram.length; s++ )
+                    supportHistogram[s] += block[0][s];
+                for ( int e = 0; e < eeLinkCounts.length; e++ )
+                    eeLinkCounts[e] += block[1][e];
+            }
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            executor.shutdownNow();
+        }
+
+        /*
+         * Exact support counts to "at least" counts.
+         */
+        degrees = new int[degreeCounts.length()];
+        for ( int g = 0; g < store.rows(); g++ ) {
+            int base = g * maxStringency;
+            int cumulative = 0;
+            for ( int s = maxStringency - 1; s >= 0; s-- ) {
+                cumulative += degreeCounts.get( base + s );
+                degrees[base + s] = cumulative;
+            }
+        }
+    }
+
+    /**
+     * @return the support histogram and per-experiment counts of the rows.
+     */
+    private long[][] scanRows( int from, int to, AtomicIntegerArray degreeCounts ) {
+        long[] histogram = new long[supportHistogram.length];
+        long[] eeCounts = new long[eeLinkCounts.length];
+        for ( int i = from; i < to; i++ ) {
+            int[] rowDegrees = new int[maxStringency];
+            for ( int j = store.nextColumn( i, pairs.firstColumn( i ) ); j >= 0; j = store.nextColumn( i, j + 1 ) ) {
+                if ( !pairs.isCounted( i, j ) ) continue;
+                long[] mask = store.getAllBits( i, j );
+                int support = 0;
+                for ( int w = 0; w < mask.length; w++ ) {
+                    for ( long word = mask[w]; word != 0; word &= word - 1 ) {
+                        int e = w * Long.SIZE + Long.numberOfTrailingZeros( word );
+                        if ( e < eeCounts.length ) {
+                            eeCounts[e]++;
+                            support++;
+                        }
+                    }
+                }
+                if ( support == 0 ) continue;
+                histogram[support]++;
+                int bucket = Math.min( support, maxStringency ) - 1;
+                rowDegrees[bucket]++;
+                int other = pairs.getRowOfCol( j );
+                if ( other >= 0 ) degreeCounts.incrementAndGet( other * maxStringency + bucket );
+            }
+            for ( int s = 0; s < maxStringency; s++ )
+                if ( rowDegrees[s] > 0 ) degreeCounts.addAndGet( i * maxStringency + s, rowDegrees[s] );
+        }
+        return new long[][] { histogram, eeCounts };
+    }
+
+}
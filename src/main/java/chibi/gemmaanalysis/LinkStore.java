@@ -0,0 +1,96 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+/**
+ * Storage for the bits of a {@link LinkMatrix}: for each (row gene, column gene) cell, one bit per expression
+ * experiment telling whether the link was seen in that experiment. Rows and columns are named by gene ids. The methods
+ * mirror those of {@link ubic.basecode.dataStructure.matrix.CompressedBitMatrix} so the implementations can be swapped
+ * without touching the code that scans the matrix.
+ *
+ * @see LinkMatrix#getRawMatrix()
+ */
+public interface LinkStore {
+
+    /**
+     * @param row
+     * @param col
+     * @return the number of experiments supporting the link.
+     */
+    public int bitCount( int row, int col );
+
+    public int columns();
+
+    /**
+     * @param row
+     * @param col
+     * @param index of the expression experiment
+     * @return true if the link was seen in the experiment.
+     */
+    public boolean get( int row, int col, int index );
+
+    /**
+     * @param row
+     * @param col
+     * @return a copy of the experiment bits for the link, of length {@link LinkMatrix#maskLength(int)}.
+     */
+    public long[] getAllBits( int row, int col );
+
+    /**
+     * @return the number of expression experiments (bits per cell).
+     */
+    public int getBitNum();
+
+    public long getColName( int i );
+
+    /**
+     * @param name gene id
+     * @return the column index, or -1 if the gene is not a column of the matrix.
+     */
+    public int getColIndexByName( long name );
+
+    public long getRowName( int i );
+
+    /**
+     * @param name gene id
+     * @return the row index, or -1 if the gene is not a row of the matrix.
+     */
+    public int getRowIndexByName( long name );
+
+    /**
+     * Row scan over the non-empty cells, e.g.
+     * <code>for ( int j = store.nextColumn( i, 0 ); j &gt;= 0; j = store.nextColumn( i, j + 1 ) )</code>.
+     *
+     * @param row
+     * @param fromCol
+     * @return the first column at or after fromCol whose cell has at least one bit set, or -1 if there is none.
+     */
+    public int nextColumn( int row, int fromCol );
+
+    public int rows();
+
+    /**
+     * Record that the link was seen in the given experiment.
+     *
+     * @param row
+     * @param col
+     * @param index of the expression experiment
+     * @throws UnsupportedOperationException if the store is read-only
+     */
+    public void set( int row, int col, int index );
+
+}
@@ -0,0 +1,260 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The support (number of experiments) of every non-empty cell of a {@link LinkStore}, counted once and kept as one
+ * byte per cell, or two when there are more than 255 experiments, in compressed row order. Stringency scans then read
+ * the counts instead of counting the bits of each cell again:
+ *
+ * <pre>
+ * for ( int j = support.nextColumn( i, i + 1, threshold ); j &gt;= 0; j = support.nextColumn( i, j + 1, threshold ) )
+ * </pre>
+ * <p>
+ * The counts are taken either with a popcount per cell, or bit-sliced: for blocks of 64 cells of a row, the 64x64 bit
+ * blocks of their masks are transposed so that each word holds one experiment's bit for all 64 cells, and the words
+ * are summed into vertical counters with carry-save adders (Harley-Seal). The masks are stored cell by cell, so the
+ * transposition is extra work; the popcount is the default, set the system property
+ * <code>gemmaanalysis.supportCounter</code> to <code>bitsliced</code> to switch.
+ * <p>
+ * The counts are a snapshot of the store; see {@link LinkMatrix#getLinkSupport()}.
+ */
+public class LinkSupport {
+
+    public static final String COUNTER_PROPERTY = "gemmaanalysis.supportCounter";
+
+    private static final int BLOCK = 64;
+
+    private static Log log = LogFactory.getLog( LinkSupport.class.getName() );
+
+    /**
+     * Full adder on 64 lanes: returns the carries, and leaves the sums in sum[0].
+     */
+    private static long csa( long[] sum, long a, long b ) {
+        long u = sum[0] ^ a;
+        long carry = ( sum[0] & a ) | ( u & b );
+        sum[0] = u ^ b;
+        return carry;
+    }
+
+    /**
+     * Add one to the vertical counters in the lanes set in x, starting at the given plane.
+     */
+    private static void increment( long[] planes, int plane, long x ) {
+        for ( int p = plane; x != 0 && p < planes.length; p++ ) {
+            long carry = planes[p] & x;
+            planes[p] ^= x;
+            x = carry;
+        }
+    }
+
+    /**
+     * In-place transpose of a 64x64 bit matrix, row k being a[k] with column c at bit c: afterwards bit k of a[c] is
+     * the old bit c of a[k].
+     */
+    private static void transpose( long[] a ) {
+        long m = 0x00000000FFFFFFFFL;
+        for ( int j = 32; j != 0; j >>>= 1, m ^= m << j ) {
+            for ( int k = 0; k < BLOCK; k = ( ( k | j ) + 1 ) & ~j ) {
+                long t = ( ( a[k] >>> j ) ^ a[k | j] ) & m;
+                a[k] ^= t << j;
+                a[k | j] ^= t;
+            }
+        }
+    }
+
+    private int bitNum;
+
+    private int[] rowStart;
+    private int[] columns;
+
+    /**
+     * One of these holds the counts.
+     */
+    private byte[] narrow;
+    private char[] wide;
+
+    /**
+     * @param store
+     */
+    public LinkSupport( LinkStore store ) {
+        this( store, "bitsliced".equalsIgnoreCase( System.getProperty( COUNTER_PROPERTY ) ) );
+    }
+
+    /**
+     * @param store
+     * @param bitSliced count with vertical counters rather than a popcount per cell
+     */
+    public LinkSupport( LinkStore store, boolean bitSliced ) {
+        if ( store.getBitNum() > Character.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Too many experiments for the support counts: " + store.getBitNum() );
+        }
+        long start = System.currentTimeMillis();
+        this.bitNum = store.getBitNum();
+        this.rowStart = new int[store.rows() + 1];
+
+        int n = 0;
+        for ( int i = 0; i < store.rows(); i++ ) {
+            for ( int j = store.nextColumn( i, 0 ); j >= 0; j = store.nextColumn( i, j + 1 ) )
+                n++;
+            rowStart[i + 1] = n;
+        }
+        this.columns = new int[n];
+        if ( bitNum <= 0xFF )
+            this.narrow = new byte[n];
+        else
+            this.wide = new char[n];
+
+        int[] counts = new int[BLOCK];
+        long[][] masks = new long[BLOCK][];
+        long[] slice = new long[BLOCK];
+        long[] planes = new long[32 - Integer.numberOfLeadingZeros( bitNum )];
+        int c = 0;
+        for ( int i = 0; i < store.rows(); i++ ) {
+            int blockStart = c;
+            for ( int j = store.nextColumn( i, 0 ); j >= 0; j = store.nextColumn( i, j + 1 ) ) {
+                columns[c] = j;
+                if ( bitSliced ) {
+                    masks[c - blockStart] = store.getAllBits( i, j );
+                    if ( c - blockStart == BLOCK - 1 ) {
+                        countSliced( masks, BLOCK, slice, planes, counts );
+                        for ( int k = 0; k < BLOCK; k++ )
+                            setCount( blockStart + k, counts[k] );
+                        blockStart = c + 1;
+                    }
+                } else {
+                    setCount( c, store.bitCount( i, j ) );
+                }
+                c++;
+            }
+            if ( bitSliced && c > blockStart ) {
+                countSliced( masks, c - blockStart, slice, planes, counts );
+                for ( int k = 0; k < c - blockStart; k++ )
+                    setCount( blockStart + k, counts[k] );
+            }
+        }
+        log.info( "Counted the support of " + n + " cells" + ( bitSliced ? " (bit-sliced)" : "" ) + " in "
+                + ( System.currentTimeMillis() - start ) + "ms" );
+    }
+
+    /**
+     * @param minSupport
+     * @return the number of cells with at least that support.
+     */
+    public int count( int minSupport ) {
+        int n = 0;
+        for ( int c = 0; c < columns.length; c++ )
+            if ( getCount( c ) >= minSupport ) n++;
+        return n;
+    }
+
+    /**
+     * @param row
+     * @param col
+     * @return the number of experiments supporting the link, 0 if the cell is empty.
+     */
+    public int get( int row, int col ) {
+        int c = Arrays.binarySearch( columns, rowStart[row], rowStart[row + 1], col );
+        return c < 0 ? 0 : getCount( c );
+    }
+
+    public int getBitNum() {
+        return bitNum;
+    }
+
+    /**
+     * @param fromRow
+     * @param toRow exclusive
+     * @return the number of non-empty cells in the rows.
+     */
+    public int cellsInRows( int fromRow, int toRow ) {
+        return rowStart[toRow] - rowStart[fromRow];
+    }
+
+    /**
+     * @return the number of non-empty cells.
+     */
+    public int getCells() {
+        return columns.length;
+    }
+
+    /**
+     * Row scan over the cells with at least minSupport, as {@link LinkStore#nextColumn(int, int)}.
+     *
+     * @param row
+     * @param fromCol
+     * @param minSupport
+     * @return the first column at or after fromCol whose cell has at least minSupport, or -1 if there is none.
+     */
+    public int nextColumn( int row, int fromCol, int minSupport ) {
+        int c = Arrays.binarySearch( columns, rowStart[row], rowStart[row + 1], fromCol );
+        if ( c < 0 ) c = -c - 1;
+        for ( int end = rowStart[row + 1]; c < end; c++ )
+            if ( getCount( c ) >= minSupport ) return columns[c];
+        return -1;
+    }
+
+    /**
+     * @return the size of the counts and their column indices.
+     */
+    public long sizeInBytes() {
+        return 4L * ( rowStart.length + columns.length ) + ( narrow != null ? narrow.length : 2L * wide.length );
+    }
+
+    /**
+     * Support of n &lt;= 64 cells: per word of the masks, transpose the cells' words so each holds one experiment, and
+     * add the experiments into the vertical counters two at a time.
+     */
+    private void countSliced( long[][] masks, int n, long[] slice, long[] planes, int[] counts ) {
+        Arrays.fill( planes, 0L );
+        long[] ones = new long[1];
+        for ( int w = 0; w < masks[0].length; w++ ) {
+            for ( int k = 0; k < BLOCK; k++ )
+                slice[k] = k < n ? masks[k][w] : 0L;
+            transpose( slice );
+            ones[0] = planes[0];
+            for ( int e = 0; e < BLOCK; e += 2 ) {
+                long twos = csa( ones, slice[e], slice[e + 1] );
+                if ( twos != 0 ) increment( planes, 1, twos );
+            }
+            planes[0] = ones[0];
+        }
+        for ( int k = 0; k < n; k++ ) {
+            int count = 0;
+            for ( int p = 0; p < planes.length; p++ )
+                count |= ( int ) ( ( planes[p] >>> k ) & 1L ) << p;
+            counts[k] = count;
+        }
+    }
+
+    private int getCount( int c ) {
+        return narrow != null ? narrow[c] & 0xFF : wide[c];
+    }
+
+    private void setCount( int c, int count ) {
+        if ( narrow != null )
+            narrow[c] = ( byte ) count;
+        else
+            wide[c] = ( char ) count;
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys (gene or experiment ids) to non-negative int values (row, column or bit indices), with open
+ * addressing and linear probing over primitive arrays, so lookups neither box nor allocate. Entries cannot be removed
+ * one by one, only all at once.
+ * <p>
+ * Not thread-safe for updates; concurrent reads are fine once filled.
+ */
+public class LongIntHashMap {
+
+    private static final int EMPTY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    public LongIntHashMap() {
+        this( 16 );
+    }
+
+    /**
+     * @param expectedSize
+     */
+    public LongIntHashMap( int expectedSize ) {
+        int capacity = Integer.highestOneBit( Math.max( 4, expectedSize * 2 ) - 1 ) << 1;
+        allocate( capacity );
+    }
+
+    /**
+     * Add to the value of a key, as a counter; an absent key counts as 0.
+     *
+     * @param key
+     * @param delta must not make the value negative.
+     * @return the new value.
+     */
+    public int add( long key, int delta ) {
+        int slot = slot( key );
+        while ( values[slot] != EMPTY && keys[slot] != key )
+            slot = ( slot + 1 ) & mask;
+        if ( values[slot] != EMPTY ) {
+            int value = values[slot] + delta;
+            if ( value < 0 ) throw new IllegalArgumentException( "Negative values are not supported: " + value );
+            values[slot] = value;
+            return value;
+        }
+        put( key, delta );
+        return delta;
+    }
+
+    /**
+     * Remove all entries, keeping the capacity.
+     */
+    public void clear() {
+        Arrays.fill( values, EMPTY );
+        size = 0;
+    }
+
+    public boolean containsKey( long key ) {
+        return get( key ) != EMPTY;
+    }
+
+    /**
+     * @param key
+     * @return the value, or -1 if the key is not in the map.
+     */
+    public int get( long key ) {
+        for ( int slot = slot( key );; slot = ( slot + 1 ) & mask ) {
+            int value = values[slot];
+            if ( value == EMPTY || keys[slot] == key ) return value;
+        }
+    }
+
+    /**
+     * @return the keys, in no particular order.
+     */
+    public long[] keys() {
+        long[] res = new long[size];
+        int n = 0;
+        for ( int slot = 0; slot < values.length; slot++ )
+            if ( values[slot] != EMPTY ) res[n++] = keys[slot];
+        return res;
+    }
+
+    /**
+     * @param key
+     * @param value must not be negative.
+     */
+    public void put( long key, int value ) {
+        if ( value < 0 ) throw new IllegalArgumentException( "Negative values are not supported: " + value );
+        int slot = slot( key );
+        while ( values[slot] != EMPTY && keys[slot] != key )
+            slot = ( slot + 1 ) & mask;
+        if ( values[slot] == EMPTY ) {
+            keys[slot] = key;
+            if ( ++size * 2 > values.length ) {
+                values[slot] = value;
+                rehash( values.length * 2 );
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void allocate( int capacity ) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill( values, EMPTY );
+        mask = capacity - 1;
+    }
+
+    private void rehash( int capacity ) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate( capacity );
+        for ( int s = 0; s < oldValues.length; s++ ) {
+            if ( oldValues[s] == EMPTY ) continue;
+            int slot = slot( oldKeys[s] );
+            while ( values[slot] != EMPTY )
+                slot = ( slot + 1 ) & mask;
+            keys[slot] = oldKeys[s];
+            values[slot] = oldValues[s];
+        }
+    }
+
+    /**
+     * Ids are often sequential, so mix the bits before taking the low ones.
+     */
+    private int slot( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return ( int ) ( h ^ ( h >>> 32 ) ) & mask;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+/**
+ * Set of longs (link or gene ids) with open addressing over a primitive array, for collections of ids that would
+ * otherwise be a <code>HashSet&lt;Long&gt;</code>. Elements cannot be removed.
+ *
+ * @see LongIntHashMap
+ */
+public class LongOpenHashSet {
+
+    private LongIntHashMap map;
+
+    public LongOpenHashSet() {
+        this.map = new LongIntHashMap();
+    }
+
+    /**
+     * @param expectedSize
+     */
+    public LongOpenHashSet( int expectedSize ) {
+        this.map = new LongIntHashMap( expectedSize );
+    }
+
+    /**
+     * @param value
+     * @return true if the value was not already in the set.
+     */
+    public boolean add( long value ) {
+        if ( map.containsKey( value ) ) return false;
+        map.put( value, 0 );
+        return true;
+    }
+
+    public boolean contains( long value ) {
+        return map.containsKey( value );
+    }
+
+    public boolean isEmpty() {
+        return map.size() == 0;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return the elements, in no particular order.
+     */
+    public long[] toArray() {
+        return map.keys();
+    }
+
+}
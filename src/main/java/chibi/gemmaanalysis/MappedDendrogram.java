@@ -0,0 +1,384 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import cern.colt.list.ObjectArrayList;
+
+/**
+ * The trees of {@link LinkGraphClustering} as flat arrays in a memory-mapped binary file, replacing Java serialization
+ * of the {@link TreeNode}s. Nodes are numbered depth-first from the roots, parents before their children. The layout
+ * (all values big-endian, every long 8-byte aligned) is:
+ *
+ * <pre>
+ * int   MAGIC
+ * int   VERSION
+ * int   LinkId.VERSION    encoding of the link ids
+ * int   maskLength        longs per mask
+ * int   nodeCount
+ * int   rootCount
+ * long[nodeCount]         link id of each leaf, 0 for merged nodes
+ * long[nodeCount * maskLength]  experiment mask of each node, node i at i * maskLength
+ * int[nodeCount]          parent, -1 for roots
+ * int[nodeCount]          level
+ * int[nodeCount]          order
+ * int[nodeCount]          experiments in common with the closest node when merged
+ * int[nodeCount + 1]      start of the children of each node in the next array
+ * int[nodeCount - rootCount]  children
+ * int[rootCount]          roots, in the order of the cluster list
+ * </pre>
+ *
+ * Nodes can be read from the arrays directly; {@link TreeNode}s are created one tree at a time, the first time a node
+ * of the tree is asked for. Not thread-safe.
+ */
+public class MappedDendrogram {
+
+    public static final int MAGIC = 0x444E4447; // "DNDG"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 6 * 4;
+
+    /**
+     * Mapped segments must stay below 2GB; a power of two keeps longs from straddling two segments.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = ( 1L << SEGMENT_SHIFT ) - 1;
+
+    private static Log log = LogFactory.getLog( MappedDendrogram.class.getName() );
+
+    /**
+     * @param file
+     * @return true if the file starts with the dendrogram marker.
+     * @throws IOException
+     */
+    public static boolean isDendrogram( File file ) throws IOException {
+        if ( file.length() < HEADER_BYTES ) return false;
+        try (DataInputStream in = new DataInputStream( new FileInputStream( file ) )) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Write the trees in the binary layout. Parents are taken from the children lists, so a root keeps no parent
+     * even if the clustering gave it one for the merge below the threshold that it did not make.
+     *
+     * @param roots
+     * @param file
+     * @throws IOException
+     */
+    public static void write( ObjectArrayList roots, File file ) throws IOException {
+        /*
+         * Number the nodes depth-first, without recursion: trees can be very deep.
+         */
+        List<TreeNode> nodes = new ArrayList<>();
+        Map<TreeNode, Integer> index = new IdentityHashMap<>();
+        int maskLength = 0;
+        Deque<TreeNode> stack = new ArrayDeque<>();
+        for ( int r = 0; r < roots.size(); r++ ) {
+            stack.push( ( TreeNode ) roots.get( r ) );
+            while ( !stack.isEmpty() ) {
+                TreeNode node = stack.pop();
+                if ( index.containsKey( node ) ) throw new IllegalArgumentException( "Node is in two trees" );
+                index.put( node, nodes.size() );
+                nodes.add( node );
+                maskLength = Math.max( maskLength, node.getMask().length );
+                ObjectArrayList children = node.getChildren();
+                if ( children == null ) continue;
+                for ( int c = children.size() - 1; c >= 0; c-- )
+                    stack.push( ( TreeNode ) children.get( c ) );
+            }
+        }
+        int n = nodes.size();
+        int[] parents = new int[n];
+        Arrays.fill( parents, -1 );
+        for ( int i = 0; i < n; i++ ) {
+            ObjectArrayList children = nodes.get( i ).getChildren();
+            for ( int c = 0; children != null && c < children.size(); c++ )
+                parents[index.get( children.get( c ) )] = i;
+        }
+
+        File tmp = new File( file.getPath() + ".tmp" );
+        try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ),
+                1 << 16 ) )) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( LinkId.VERSION );
+            out.writeInt( maskLength );
+            out.writeInt( n );
+            out.writeInt( roots.size() );
+            for ( TreeNode node : nodes )
+                out.writeLong( node.getId() );
+            for ( TreeNode node : nodes ) {
+                long[] mask = node.getMask();
+                for ( int k = 0; k < maskLength; k++ )
+                    out.writeLong( k < mask.length ? mask[k] : 0L );
+            }
+            for ( int i = 0; i < n; i++ )
+                out.writeInt( parents[i] );
+            for ( TreeNode node : nodes )
+                out.writeInt( node.getLevel() );
+            for ( TreeNode node : nodes )
+                out.writeInt( node.getOrder() );
+            for ( TreeNode node : nodes )
+                out.writeInt( node.getCommonBits() );
+            int childStart = 0;
+            for ( TreeNode node : nodes ) {
+                out.writeInt( childStart );
+                if ( node.getChildren() != null ) childStart += node.getChildren().size();
+            }
+            out.writeInt( childStart );
+            for ( TreeNode node : nodes ) {
+                ObjectArrayList children = node.getChildren();
+                if ( children == null ) continue;
+                for ( int c = 0; c < children.size(); c++ )
+                    out.writeInt( index.get( children.get( c ) ) );
+            }
+            for ( int r = 0; r < roots.size(); r++ )
+                out.writeInt( index.get( roots.get( r ) ) );
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        log.info( "Wrote " + n + " nodes of " + roots.size() + " trees to " + file );
+    }
+
+    private int maskLength;
+    private int nodeCount;
+    private int rootCount;
+
+    private long idsOffset;
+    private long masksOffset;
+    private long parentsOffset;
+    private long levelsOffset;
+    private long ordersOffset;
+    private long commonBitsOffset;
+    private long childStartOffset;
+    private long childrenOffset;
+    private long rootsOffset;
+
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Nodes created so far.
+     */
+    private TreeNode[] treeNodes;
+
+    /**
+     * @param file
+     * @throws IOException if the file is not a dendrogram or has an unsupported version.
+     */
+    public MappedDendrogram( File file ) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int numSegments = ( int ) ( ( size + SEGMENT_MASK ) >>> SEGMENT_SHIFT );
+            segments = new MappedByteBuffer[Math.max( numSegments, 1 )];
+            for ( int s = 0; s < numSegments; s++ ) {
+                long start = ( long ) s << SEGMENT_SHIFT;
+                segments[s] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( 1L << SEGMENT_SHIFT, size
+                        - start ) );
+            }
+        }
+
+        if ( readInt( 0 ) != MAGIC ) {
+            throw new IOException( "Not a dendrogram file: " + file );
+        }
+        int version = readInt( 4 );
+        if ( version > VERSION ) {
+            throw new IOException( "Unsupported dendrogram file version " + version + ": " + file );
+        }
+        int idVersion = readInt( 8 );
+        if ( idVersion != LinkId.VERSION ) {
+            throw new IOException( "Unsupported link id version " + idVersion + ": " + file );
+        }
+        this.maskLength = readInt( 12 );
+        this.nodeCount = readInt( 16 );
+        this.rootCount = readInt( 20 );
+
+        this.idsOffset = HEADER_BYTES;
+        this.masksOffset = idsOffset + 8L * nodeCount;
+        this.parentsOffset = masksOffset + 8L * nodeCount * maskLength;
+        this.levelsOffset = parentsOffset + 4L * nodeCount;
+        this.ordersOffset = levelsOffset + 4L * nodeCount;
+        this.commonBitsOffset = ordersOffset + 4L * nodeCount;
+        this.childStartOffset = commonBitsOffset + 4L * nodeCount;
+        this.childrenOffset = childStartOffset + 4L * ( nodeCount + 1 );
+        this.rootsOffset = childrenOffset + 4L * ( nodeCount - rootCount );
+        this.treeNodes = new TreeNode[nodeCount];
+        log.info( "Mapped " + nodeCount + " nodes of " + rootCount + " trees from " + file );
+    }
+
+    /**
+     * @param node
+     * @param k
+     * @return the k-th child of the node.
+     */
+    public int getChild( int node, int k ) {
+        return readInt( childrenOffset + 4L * ( readInt( childStartOffset + 4L * node ) + k ) );
+    }
+
+    /**
+     * @param node
+     * @return the number of children of the node, 0 for a leaf.
+     */
+    public int getChildCount( int node ) {
+        return readInt( childStartOffset + 4L * ( node + 1 ) ) - readInt( childStartOffset + 4L * node );
+    }
+
+    /**
+     * @param node
+     * @return experiments the node had in common with its closest node when merged.
+     */
+    public int getCommonBits( int node ) {
+        return readInt( commonBitsOffset + 4L * node );
+    }
+
+    /**
+     * @param node
+     * @return the link id of a leaf, see {@link LinkId}; 0 for a merged node.
+     */
+    public long getId( int node ) {
+        return readLong( idsOffset + 8L * node );
+    }
+
+    public int getLevel( int node ) {
+        return readInt( levelsOffset + 4L * node );
+    }
+
+    /**
+     * @param node
+     * @return the experiment mask of the node.
+     */
+    public long[] getMask( int node ) {
+        long[] mask = new long[maskLength];
+        long offset = masksOffset + 8L * node * maskLength;
+        for ( int k = 0; k < maskLength; k++, offset += 8 )
+            mask[k] = readLong( offset );
+        return mask;
+    }
+
+    /**
+     * @param node
+     * @return the node, creating the {@link TreeNode}s of its tree if needed.
+     */
+    public TreeNode getNode( int node ) {
+        if ( treeNodes[node] == null ) {
+            int root = node;
+            while ( getParent( root ) >= 0 )
+                root = getParent( root );
+            materialize( root );
+        }
+        return treeNodes[node];
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getOrder( int node ) {
+        return readInt( ordersOffset + 4L * node );
+    }
+
+    /**
+     * @param node
+     * @return the parent of the node, -1 for a root.
+     */
+    public int getParent( int node ) {
+        return readInt( parentsOffset + 4L * node );
+    }
+
+    /**
+     * @param k
+     * @return the k-th root.
+     */
+    public int getRoot( int k ) {
+        return readInt( rootsOffset + 4L * k );
+    }
+
+    public int getRootCount() {
+        return rootCount;
+    }
+
+    /**
+     * @return the roots of all the trees, creating all the {@link TreeNode}s.
+     */
+    public ObjectArrayList getRoots() {
+        ObjectArrayList roots = new ObjectArrayList( rootCount );
+        for ( int k = 0; k < rootCount; k++ )
+            roots.add( getNode( getRoot( k ) ) );
+        return roots;
+    }
+
+    /**
+     * Create the {@link TreeNode}s of a tree, linking parents and children.
+     */
+    private void materialize( int root ) {
+        treeNodes[root] = newNode( root );
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push( root );
+        while ( !stack.isEmpty() ) {
+            int node = stack.pop();
+            int childCount = getChildCount( node );
+            if ( childCount == 0 ) continue;
+            ObjectArrayList children = new ObjectArrayList( childCount );
+            for ( int k = 0; k < childCount; k++ ) {
+                int child = getChild( node, k );
+                treeNodes[child] = newNode( child );
+                treeNodes[child].setParent( treeNodes[node] );
+                children.add( treeNodes[child] );
+                stack.push( child );
+            }
+            treeNodes[node].setChildren( children );
+        }
+    }
+
+    private TreeNode newNode( int node ) {
+        TreeNode treeNode = new TreeNode( getId( node ), getMask( node ), null );
+        treeNode.setLevel( getLevel( node ) );
+        treeNode.setOrder( getOrder( node ) );
+        treeNode.setCommonBits( getCommonBits( node ) );
+        return treeNode;
+    }
+
+    private int readInt( long offset ) {
+        return segments[( int ) ( offset >>> SEGMENT_SHIFT )].getInt( ( int ) ( offset & SEGMENT_MASK ) );
+    }
+
+    private long readLong( long offset ) {
+        return segments[( int ) ( offset >>> SEGMENT_SHIFT )].getLong( ( int ) ( offset & SEGMENT_MASK ) );
+    }
+
+}
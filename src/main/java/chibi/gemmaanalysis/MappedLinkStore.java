@@ -0,0 +1,486 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Read-only {@link LinkStore} answering queries directly from a memory-mapped binary link matrix file, so a
+ * taxon-wide matrix can be opened without parsing it onto the heap. The layout (all values big-endian, every long
+ * 8-byte aligned) is:
+ *
+ * <pre>
+ * int   MAGIC
+ * int   VERSION
+ * int   rows
+ * int   columns
+ * int   bitNum            number of expression experiments
+ * int   maskLength        longs per cell
+ * long  cellCount         number of cells with at least one bit set
+ * int   flags             {@link #SYMMETRIC} (from version 2)
+ * int   unused            (from version 2)
+ * long[rows]              row gene ids
+ * long[columns]           column gene ids
+ * long[cellCount]         cell keys (row * columns + col), ascending
+ * long[cellCount * maskLength]  experiment bits of each cell, in key order
+ * </pre>
+ * A symmetric matrix, whose rows and columns are the same genes, only has the cells above the diagonal in the file.
+ * It is mapped as a symmetric view, as a {@link TriangularLinkStore}: (j, i) is answered from (i, j), and row scans
+ * also return the columns below the diagonal, from their transpose, built on the first scan that needs it.
+ */
+public class MappedLinkStore implements LinkStore {
+
+    public static final int MAGIC = 0x4C4E4B4D; // "LNKM"
+    public static final int VERSION = 2;
+
+    /**
+     * Flag of a symmetric matrix, stored as its upper triangle.
+     */
+    public static final int SYMMETRIC = 1;
+
+    private static final int HEADER_BYTES = 6 * 4 + 8;
+
+    /**
+     * Header size from version 2, with the flags.
+     */
+    private static final int HEADER_BYTES_V2 = HEADER_BYTES + 2 * 4;
+
+    /**
+     * Mapped segments must stay below 2GB; a power of two keeps longs from straddling two segments.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = ( 1L << SEGMENT_SHIFT ) - 1;
+
+    private static Log log = LogFactory.getLog( MappedLinkStore.class.getName() );
+
+    /**
+     * The dimensions and gene ids of a binary link matrix file, read without mapping the file.
+     */
+    static class Header {
+        int rows;
+        int columns;
+        int bitNum;
+        boolean symmetric;
+        long[] rowNames;
+        long[] colNames;
+    }
+
+    /**
+     * @param file
+     * @return the header of the file.
+     * @throws IOException if the file is not a binary link matrix or has an unsupported version.
+     */
+    static Header readHeader( File file ) throws IOException {
+        try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) )) {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException( "Not a binary link matrix file: " + file );
+            }
+            int version = in.readInt();
+            if ( version > VERSION ) {
+                throw new IOException( "Unsupported link matrix file version " + version + ": " + file );
+            }
+            Header header = new Header();
+            header.rows = in.readInt();
+            header.columns = in.readInt();
+            header.bitNum = in.readInt();
+            in.readInt(); // mask length
+            in.readLong(); // cell count
+            if ( version >= 2 ) {
+                header.symmetric = ( in.readInt() & SYMMETRIC ) != 0;
+                in.readInt();
+            }
+            header.rowNames = new long[header.rows];
+            for ( int i = 0; i < header.rows; i++ )
+                header.rowNames[i] = in.readLong();
+            header.colNames = new long[header.columns];
+            for ( int j = 0; j < header.columns; j++ )
+                header.colNames[j] = in.readLong();
+            return header;
+        }
+    }
+
+    /**
+     * @param file
+     * @return true if the file starts with the binary link matrix marker.
+     * @throws IOException
+     */
+    public static boolean isBinary( File file ) throws IOException {
+        if ( file.length() < HEADER_BYTES ) return false;
+        try (DataInputStream in = new DataInputStream( new FileInputStream( file ) )) {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Write the store in the binary layout. Only cells with at least one bit set are written.
+     *
+     * @param store
+     * @param file
+     * @throws IOException
+     */
+    public static void write( LinkStore store, File file ) throws IOException {
+        write( store, file, false );
+    }
+
+    /**
+     * Write the store in the binary layout. Only cells with at least one bit set are written; if the matrix is
+     * symmetric, only those above the diagonal.
+     *
+     * @param store
+     * @param file
+     * @param symmetric if true, the store must have the same genes as rows and columns, and (i, j) the same bits as (j,
+     *        i).
+     * @throws IOException
+     */
+    public static void write( LinkStore store, File file, boolean symmetric ) throws IOException {
+        int rows = store.rows();
+        int cols = store.columns();
+        int maskLength = LinkMatrix.maskLength( store.getBitNum() );
+        if ( symmetric ) {
+            if ( rows != cols ) {
+                throw new IllegalArgumentException( "Symmetric link matrix is " + rows + " x " + cols );
+            }
+            for ( int i = 0; i < rows; i++ ) {
+                if ( store.getRowName( i ) != store.getColName( i ) ) {
+                    throw new IllegalArgumentException( "Symmetric link matrix needs the same row and column genes" );
+                }
+            }
+        }
+
+        long cellCount = 0;
+        for ( int i = 0; i < rows; i++ ) {
+            for ( int j = store.nextColumn( i, symmetric ? i + 1 : 0 ); j >= 0; j = store.nextColumn( i, j + 1 ) )
+                cellCount++;
+        }
+
+        /*
+         * Write next to the target and then move it into place: the target may be the file this matrix is mapped from.
+         */
+        File tmp = new File( file.getPath() + ".tmp" );
+        try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ),
+                1 << 16 ) )) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( rows );
+            out.writeInt( cols );
+            out.writeInt( store.getBitNum() );
+            out.writeInt( maskLength );
+            out.writeLong( cellCount );
+            out.writeInt( symmetric ? SYMMETRIC : 0 );
+            out.writeInt( 0 );
+            for ( int i = 0; i < rows; i++ )
+                out.writeLong( store.getRowName( i ) );
+            for ( int j = 0; j < cols; j++ )
+                out.writeLong( store.getColName( j ) );
+            for ( int i = 0; i < rows; i++ ) {
+                for ( int j = store.nextColumn( i, symmetric ? i + 1 : 0 ); j >= 0; j = store.nextColumn( i, j + 1 ) )
+                    out.writeLong( ( long ) i * cols + j );
+            }
+            for ( int i = 0; i < rows; i++ ) {
+                for ( int j = store.nextColumn( i, symmetric ? i + 1 : 0 ); j >= 0; j = store.nextColumn( i, j + 1 ) ) {
+                    long[] mask = store.getAllBits( i, j );
+                    for ( int k = 0; k < maskLength; k++ )
+                        out.writeLong( k < mask.length ? mask[k] : 0L );
+                }
+            }
+        }
+        Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        log.info( "Wrote " + cellCount + ( symmetric ? " symmetric" : "" ) + " links to " + file );
+    }
+
+    /**
+     * @param file a binary link matrix file
+     * @return true if the file holds the upper triangle of a symmetric matrix.
+     * @throws IOException
+     */
+    public static boolean isSymmetric( File file ) throws IOException {
+        try (DataInputStream in = new DataInputStream( new FileInputStream( file ) )) {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException( "Not a binary link matrix file: " + file );
+            }
+            if ( in.readInt() < 2 ) return false;
+            in.skipBytes( HEADER_BYTES - 8 );
+            return ( in.readInt() & SYMMETRIC ) != 0;
+        }
+    }
+
+    private int rows;
+    private int cols;
+    private int bitNum;
+    private int maskLength;
+    private long cellCount;
+    private boolean symmetric;
+
+    /**
+     * For a symmetric matrix, per row, sorted indices of the rows above it that have a link to it; null until needed.
+     */
+    private volatile int[][] lowerCols = null;
+
+    private long[] rowNames;
+    private long[] colNames;
+    private LongIntHashMap rowIndex;
+    private LongIntHashMap colIndex;
+
+    /**
+     * Offsets (in bytes) of the key and mask regions.
+     */
+    private long keysOffset;
+    private long masksOffset;
+
+    private MappedByteBuffer[] segments;
+
+    /**
+     * @param file
+     * @throws IOException if the file is not a binary link matrix or has an unsupported version.
+     */
+    public MappedLinkStore( File file ) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int numSegments = ( int ) ( ( size + SEGMENT_MASK ) >>> SEGMENT_SHIFT );
+            segments = new MappedByteBuffer[Math.max( numSegments, 1 )];
+            for ( int s = 0; s < numSegments; s++ ) {
+                long start = ( long ) s << SEGMENT_SHIFT;
+                segments[s] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( 1L << SEGMENT_SHIFT, size
+                        - start ) );
+            }
+        }
+
+        if ( readInt( 0 ) != MAGIC ) {
+            throw new IOException( "Not a binary link matrix file: " + file );
+        }
+        int version = readInt( 4 );
+        if ( version > VERSION ) {
+            throw new IOException( "Unsupported link matrix file version " + version + ": " + file );
+        }
+        this.rows = readInt( 8 );
+        this.cols = readInt( 12 );
+        this.bitNum = readInt( 16 );
+        this.maskLength = readInt( 20 );
+        this.cellCount = readLong( 24 );
+        this.symmetric = version >= 2 && ( readInt( HEADER_BYTES ) & SYMMETRIC ) != 0;
+
+        long offset = version >= 2 ? HEADER_BYTES_V2 : HEADER_BYTES;
+        this.rowIndex = new LongIntHashMap( rows );
+        this.colIndex = new LongIntHashMap( cols );
+        this.rowNames = new long[rows];
+        for ( int i = 0; i < rows; i++, offset += 8 ) {
+            rowNames[i] = readLong( offset );
+            rowIndex.put( rowNames[i], i );
+        }
+        this.colNames = new long[cols];
+        for ( int j = 0; j < cols; j++, offset += 8 ) {
+            colNames[j] = readLong( offset );
+            colIndex.put( colNames[j], j );
+        }
+        this.keysOffset = offset;
+        this.masksOffset = keysOffset + cellCount * 8;
+        log.info( "Mapped " + cellCount + ( symmetric ? " symmetric" : "" ) + " links (" + rows + " x " + cols + " x "
+                + bitNum + ") from " + file );
+    }
+
+    @Override
+    public int bitCount( int row, int col ) {
+        long cell = findCell( row, col );
+        if ( cell < 0 ) return 0;
+        long offset = maskOffset( cell );
+        int bits = 0;
+        for ( int k = 0; k < maskLength; k++, offset += 8 )
+            bits += Long.bitCount( readLong( offset ) );
+        return bits;
+    }
+
+    /**
+     * @return the number of cells with at least one bit set.
+     */
+    public long cellCount() {
+        return cellCount;
+    }
+
+    @Override
+    public int columns() {
+        return cols;
+    }
+
+    @Override
+    public boolean get( int row, int col, int index ) {
+        long cell = findCell( row, col );
+        if ( cell < 0 ) return false;
+        long word = readLong( maskOffset( cell ) + 8L * ( index / Long.SIZE ) );
+        return ( word & ( 1L << ( index % Long.SIZE ) ) ) != 0;
+    }
+
+    @Override
+    public long[] getAllBits( int row, int col ) {
+        long[] mask = new long[maskLength];
+        long cell = findCell( row, col );
+        if ( cell < 0 ) return mask;
+        long offset = maskOffset( cell );
+        for ( int k = 0; k < maskLength; k++, offset += 8 )
+            mask[k] = readLong( offset );
+        return mask;
+    }
+
+    @Override
+    public int getBitNum() {
+        return bitNum;
+    }
+
+    @Override
+    public int getColIndexByName( long name ) {
+        return colIndex.get( name );
+    }
+
+    @Override
+    public long getColName( int i ) {
+        return colNames[i];
+    }
+
+    @Override
+    public int getRowIndexByName( long name ) {
+        return rowIndex.get( name );
+    }
+
+    @Override
+    public long getRowName( int i ) {
+        return rowNames[i];
+    }
+
+    /**
+     * @return true if the file holds the upper triangle of a symmetric matrix.
+     */
+    public boolean isSymmetric() {
+        return symmetric;
+    }
+
+    @Override
+    public int nextColumn( int row, int fromCol ) {
+        if ( symmetric ) {
+            if ( fromCol < row ) {
+                int[] lower = getLowerCols()[row];
+                int pos = Arrays.binarySearch( lower, fromCol );
+                if ( pos < 0 ) pos = -( pos + 1 );
+                if ( pos < lower.length ) return lower[pos];
+            }
+            fromCol = Math.max( fromCol, row + 1 );
+        }
+        if ( fromCol >= cols ) return -1;
+        long key = ( long ) row * cols + fromCol;
+        long lo = 0;
+        long hi = cellCount;
+        while ( lo < hi ) {
+            long mid = ( lo + hi ) >>> 1;
+            if ( readLong( keysOffset + mid * 8 ) < key ) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if ( lo == cellCount ) return -1;
+        long found = readLong( keysOffset + lo * 8 );
+        if ( found / cols != row ) return -1;
+        return ( int ) ( found % cols );
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public void set( int row, int col, int index ) {
+        throw new UnsupportedOperationException( "Memory-mapped link matrix is read-only" );
+    }
+
+    /**
+     * Binary search of the key region.
+     *
+     * @return the position of the cell, or -1 if it has no bits set.
+     */
+    private long findCell( int row, int col ) {
+        if ( symmetric && row > col ) return findCell( col, row );
+        long key = ( long ) row * cols + col;
+        long lo = 0;
+        long hi = cellCount - 1;
+        while ( lo <= hi ) {
+            long mid = ( lo + hi ) >>> 1;
+            long midKey = readLong( keysOffset + mid * 8 );
+            if ( midKey < key ) {
+                lo = mid + 1;
+            } else if ( midKey > key ) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return for each row, the rows above it with a link to it, building them from the key region if needed.
+     */
+    private int[][] getLowerCols() {
+        int[][] lower = lowerCols;
+        if ( lower != null ) return lower;
+        synchronized ( this ) {
+            if ( lowerCols != null ) return lowerCols;
+            int[] sizes = new int[cols];
+            for ( long c = 0; c < cellCount; c++ )
+                sizes[( int ) ( readLong( keysOffset + c * 8 ) % cols )]++;
+            lower = new int[cols][];
+            for ( int j = 0; j < cols; j++ ) {
+                lower[j] = new int[sizes[j]];
+                sizes[j] = 0;
+            }
+            for ( long c = 0; c < cellCount; c++ ) {
+                long key = readLong( keysOffset + c * 8 );
+                int j = ( int ) ( key % cols );
+                lower[j][sizes[j]++] = ( int ) ( key / cols );
+            }
+            lowerCols = lower;
+            return lower;
+        }
+    }
+
+    private long maskOffset( long cell ) {
+        return masksOffset + cell * maskLength * 8;
+    }
+
+    private int readInt( long offset ) {
+        return segments[( int ) ( offset >>> SEGMENT_SHIFT )].getInt( ( int ) ( offset & SEGMENT_MASK ) );
+    }
+
+    private long readLong( long offset ) {
+        return segments[( int ) ( offset >>> SEGMENT_SHIFT )].getLong( ( int ) ( offset & SEGMENT_MASK ) );
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+/**
+ * Kernels over the experiment bit masks of links (<code>long[]</code>, one bit per expression experiment). These run
+ * in the innermost loops of the clustering and link set finding, so none of them allocate.
+ */
+public final class MaskKernels {
+
+    /**
+     * dest = mask1 &amp; mask2. dest may be one of the inputs.
+     *
+     * @return dest
+     */
+    public static long[] and( long[] mask1, long[] mask2, long[] dest ) {
+        for ( int i = 0; i < mask1.length; i++ )
+            dest[i] = mask1[i] & mask2[i];
+        return dest;
+    }
+
+    /**
+     * @return the number of bits set.
+     */
+    public static int count( long[] mask ) {
+        int bits = 0;
+        for ( int i = 0; i < mask.length; i++ )
+            bits += Long.bitCount( mask[i] );
+        return bits;
+    }
+
+    /**
+     * dest = mask1 | mask2. dest may be one of the inputs.
+     *
+     * @return dest
+     */
+    public static long[] or( long[] mask1, long[] mask2, long[] dest ) {
+        for ( int i = 0; i < mask1.length; i++ )
+            dest[i] = mask1[i] | mask2[i];
+        return dest;
+    }
+
+    /**
+     * @return the number of bits set in both masks.
+     */
+    public static int overlap( long[] mask1, long[] mask2 ) {
+        int bits = 0;
+        for ( int i = 0; i < mask1.length; i++ )
+            bits += Long.bitCount( mask1[i] & mask2[i] );
+        return bits;
+    }
+
+    /**
+     * Stops as soon as the answer is known: when k common bits have been seen, or when the remaining words could not
+     * supply enough of them.
+     *
+     * @return true if the masks have at least k bits in common.
+     */
+    public static boolean overlapAtLeast( long[] mask1, long[] mask2, int k ) {
+        if ( k <= 0 ) return true;
+        int n = mask1.length;
+        int bits = 0;
+        for ( int i = 0; i < n; i++ ) {
+            bits += Long.bitCount( mask1[i] & mask2[i] );
+            if ( bits >= k ) return true;
+            if ( bits + ( n - i - 1 ) * Long.SIZE < k ) return false;
+        }
+        return false;
+    }
+
+    /**
+     * For pairs of masks that only matter when they have at least k bits in common: stops as soon as the remaining
+     * words could not make up k, and otherwise counts all the common bits, so the pairs that pass are not counted a
+     * second time.
+     *
+     * @return the number of bits set in both masks, or -1 if that is fewer than k.
+     */
+    public static int overlapIfAtLeast( long[] mask1, long[] mask2, int k ) {
+        int n = mask1.length;
+        int bits = 0;
+        int i = 0;
+        for ( ; i < n && bits < k; i++ ) {
+            bits += Long.bitCount( mask1[i] & mask2[i] );
+            if ( bits + ( n - i - 1 ) * Long.SIZE < k ) return -1;
+        }
+        if ( bits < k ) return -1;
+        for ( ; i < n; i++ )
+            bits += Long.bitCount( mask1[i] & mask2[i] );
+        return bits;
+    }
+
+    private MaskKernels() {
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Candidate generation for "which pairs of masks have at least k bits in common", by prefix filtering. The experiment
+ * bits are ordered from rarest to most common, and each mask is indexed under only the first
+ * <code>bits - k + 1</code> of its bits in that order (its prefix). Two masks sharing k bits must share a bit of their
+ * prefixes, so probing the prefix of a mask finds all its partners; because rare bits come first, the posting lists
+ * probed are short. Candidates still need to be checked with {@link LinkMatrix#overlapBits(long[], long[], int)}.
+ */
+public class MaskPrefixIndex {
+
+    private List<long[]> masks;
+    private int minOverlap;
+
+    /**
+     * Per experiment bit: the masks (ascending) that have it in their prefix.
+     */
+    private int[][] postings;
+
+    /**
+     * Per mask: the bits of its prefix.
+     */
+    private int[][] prefixes;
+
+    private int[] stamp;
+    private int[] buffer;
+
+    /**
+     * @param masks
+     * @param bitNum number of bits in the masks
+     * @param minOverlap
+     */
+    public MaskPrefixIndex( List<long[]> masks, int bitNum, int minOverlap ) {
+        this.masks = masks;
+        this.minOverlap = minOverlap;
+        int n = masks.size();
+
+        final int[] frequency = new int[bitNum];
+        for ( long[] mask : masks )
+            for ( int e = nextBit( mask, 0 ); e >= 0 && e < bitNum; e = nextBit( mask, e + 1 ) )
+                frequency[e]++;
+        /*
+         * rank[e] is the position of bit e in the rarest-first order.
+         */
+        Integer[] order = new Integer[bitNum];
+        for ( int e = 0; e < bitNum; e++ )
+            order[e] = e;
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer a, Integer b ) {
+                return frequency[a] != frequency[b] ? Integer.compare( frequency[a], frequency[b] ) : Integer.compare(
+                        a, b );
+            }
+        } );
+        int[] rank = new int[bitNum];
+        for ( int r = 0; r < bitNum; r++ )
+            rank[order[r]] = r;
+
+        this.prefixes = new int[n][];
+        int[] postingSizes = new int[bitNum];
+        long[] ranked = new long[bitNum];
+        for ( int i = 0; i < n; i++ ) {
+            long[] mask = masks.get( i );
+            int bits = 0;
+            for ( int e = nextBit( mask, 0 ); e >= 0 && e < bitNum; e = nextBit( mask, e + 1 ) )
+                ranked[bits++] = ( ( long ) rank[e] << 32 ) | e;
+            int prefixLength = minOverlap <= 0 ? 0 : Math.max( 0, bits - minOverlap + 1 );
+            Arrays.sort( ranked, 0, bits );
+            int[] prefix = new int[prefixLength];
+            for ( int p = 0; p < prefixLength; p++ ) {
+                prefix[p] = ( int ) ranked[p];
+                postingSizes[prefix[p]]++;
+            }
+            prefixes[i] = prefix;
+        }
+        this.postings = new int[bitNum][];
+        for ( int e = 0; e < bitNum; e++ )
+            postings[e] = new int[postingSizes[e]];
+        Arrays.fill( postingSizes, 0 );
+        for ( int i = 0; i < n; i++ ) {
+            for ( int e : prefixes[i] )
+                postings[e][postingSizes[e]++] = i;
+        }
+
+        this.stamp = new int[n];
+        Arrays.fill( stamp, -1 );
+        this.buffer = new int[n];
+    }
+
+    /**
+     * Not thread-safe: the buffer is overwritten by the next call.
+     *
+     * @param i
+     * @return the number of candidates written to {@link #getBuffer()}: the indices j &gt; i, in increasing order, of
+     *         masks that may have at least minOverlap bits in common with mask i.
+     */
+    public int candidates( int i ) {
+        int n = masks.size();
+        int count = 0;
+        if ( minOverlap <= 0 ) {
+            for ( int j = i + 1; j < n; j++ )
+                buffer[count++] = j;
+            return count;
+        }
+        for ( int e : prefixes[i] ) {
+            int[] posting = postings[e];
+            int start = Arrays.binarySearch( posting, i + 1 );
+            if ( start < 0 ) start = -start - 1;
+            for ( int p = start; p < posting.length; p++ ) {
+                int j = posting[p];
+                if ( stamp[j] == i ) continue;
+                stamp[j] = i;
+                buffer[count++] = j;
+            }
+        }
+        Arrays.sort( buffer, 0, count );
+        return count;
+    }
+
+    /**
+     * @return the candidates of the last call to {@link #candidates(int)}.
+     */
+    public int[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the index of the next set bit at or after from, or -1.
+     */
+    private static int nextBit( long[] mask, int from ) {
+        int w = from / Long.SIZE;
+        if ( w >= mask.length ) return -1;
+        long word = mask[w] & ( -1L << ( from % Long.SIZE ) );
+        while ( true ) {
+            if ( word != 0 ) return w * Long.SIZE + Long.numberOfTrailingZeros( word );
+            if ( ++w == mask.length ) return -1;
+            word = mask[w];
+        }
+    }
+
+}
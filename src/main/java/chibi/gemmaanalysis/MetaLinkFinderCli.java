@@ -20,8 +20,13 @@
 package chibi.gemmaanalysis;
 
 import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
 
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
@@ -31,7 +36,7 @@ import cern.colt.list.ObjectArrayList;
 import ubic.gemma.core.genome.gene.service.GeneService;
 import ubic.gemma.core.ontology.providers.GeneOntologyService;
 import ubic.gemma.core.util.AbstractSpringAwareCLI;
-import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
 import ubic.gemma.persistence.service.genome.taxon.TaxonService;
@@ -73,7 +78,21 @@ public class MetaLinkFinderCli extends AbstractSpringAwareCLI {
     private ExpressionExperimentService eeService = null;
     private boolean writeClusteringTree = false;
     private boolean writeLinkMatrix = false;
-    private String matrixFile = null, eeMapFile = null, treeFile = null, taxonName = null;
+    private boolean appendExperiments = false;
+    private boolean signed = false;
+    private boolean symmetric = false;
+    private int correlationBits = 0;
+    private int shard = -1, numShards = 0, mergeShards = 0;
+    private int permutations = 1000;
+    private boolean preserveDegrees = false;
+    private String queryGenesFile = null, queryOutFile = null;
+    private int topN = 50, port = -1;
+    private String matrixFile = null, eeMapFile = null, treeFile = null, taxonName = null, linkDir = null,
+            statsFile = null, nullFile = null;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private LinkGraphClustering.Engine clusteringEngine = null;
+    private boolean clusterComponents = false;
+    private String serializedTreeFile = null;
     private Taxon taxon = null;
 
     private LinkMatrix linkMatrix = null;
@@ -90,12 +109,13 @@ public class MetaLinkFinderCli extends AbstractSpringAwareCLI {
     }
 
     /**
-     *
+     * @throws InterruptedException
      */
-    void interactiveQuery() {
+    void interactiveQuery() throws InterruptedException {
         BufferedReader bfr = new BufferedReader( new InputStreamReader( System.in ) );
         String geneName;
         int count = 0;
+        GeneNeighborhoodService neighborhood = new GeneNeighborhoodService( linkMatrix, this.numThreads );
         try {
             // Hit CTRL-Z on PC's to send EOF, CTRL-D on Unix
             while ( true ) {
@@ -108,11 +128,11 @@ public class MetaLinkFinderCli extends AbstractSpringAwareCLI {
                 String tmp = bfr.readLine();
                 if ( tmp == null ) break;
                 count = Integer.valueOf( tmp.trim() ).intValue();
-                // Gene gene = geneService.load(Long.valueOf(geneName).longValue());
-                Gene gene = geneService.findByOfficialSymbol( geneName, taxon );
-                if ( gene != null ) {
+                int row = neighborhood.getRow( geneName );
+                if ( row >= 0 ) {
                     System.out.println( "Got " + geneName + " " + count );
-                    linkMatrix.output( gene, count );
+                    for ( GeneNeighborhoodService.Neighbor neighbor : neighborhood.query( row, this.topN, count ) )
+                        System.out.println( neighbor );
                 } else
                     System.out.println( "Gene doesn't exist" );
             }
@@ -166,6 +186,26 @@ public class MetaLinkFinderCli extends AbstractSpringAwareCLI {
         Option treeFileo = OptionBuilder.create( 't' );
         addOption( treeFileo );
 
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Engine" );
+        OptionBuilder
+                .withDescription( "How clusters are merged when building the tree: queue (default), scan, or nn_chain for nearest-neighbour chains" );
+        OptionBuilder.withLongOpt( "clustering" );
+        Option clusteringo = OptionBuilder.create( 'i' );
+        addOption( clusteringo );
+
+        OptionBuilder
+                .withDescription( "Split the links into groups that can never share a cluster and cluster the groups separately, in parallel" );
+        Option componentso = OptionBuilder.create( "components" );
+        addOption( componentso );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Serialized Tree File" );
+        OptionBuilder
+                .withDescription( "Convert a clustering tree saved with Java serialization by earlier versions to the tree file" );
+        Option convertTreeo = OptionBuilder.create( "converttree" );
+        addOption( convertTreeo );
+
         OptionBuilder.hasArg();
         OptionBuilder.withArgName( "The name of the species" );
         OptionBuilder.isRequired();
@@ -175,6 +215,127 @@ public class MetaLinkFinderCli extends AbstractSpringAwareCLI {
         Option specieso = OptionBuilder.create( 's' );
         addOption( specieso );
 
+        OptionBuilder
+                .withDescription(
+                        "Add the experiments of the species that are not in the link matrix yet, reading their links from the link directory" );
+        OptionBuilder
+                .withLongOpt( "append" );
+        Option appendo = OptionBuilder.create( 'a' );
+        addOption( appendo );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Link directory" );
+        OptionBuilder
+                .withDescription( "Directory with the links of each expression experiment, one file per experiment named <id>.txt, used to build the link matrix" );
+        OptionBuilder.withLongOpt( "linkdir" );
+        Option linkDiro = OptionBuilder.create( 'd' );
+        addOption( linkDiro );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Threads" );
+        OptionBuilder
+                .withDescription( "Number of threads to use (default: number of processors)" );
+        OptionBuilder.withLongOpt( "threads" );
+        Option threadso = OptionBuilder.create( 'n' );
+        addOption( threadso );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Statistics file" );
+        OptionBuilder
+                .withDescription( "Write the support histogram, links per experiment and gene degrees of the link matrix to this file" );
+        OptionBuilder.withLongOpt( "statsfile" );
+        Option statsFileo = OptionBuilder.create( 'x' );
+        addOption( statsFileo );
+
+        OptionBuilder
+                .withDescription( "Keep positive and negative links apart when generating the link matrix" );
+        OptionBuilder.withLongOpt( "signed" );
+        Option signedo = OptionBuilder.create( 'g' );
+        addOption( signedo );
+
+        OptionBuilder
+                .withDescription( "Store only the upper triangle of the link matrix when generating it, in memory and in the matrix file (not for shards)" );
+        Option symmetrico = OptionBuilder.create( "symmetric" );
+        addOption( symmetrico );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Bits" );
+        OptionBuilder
+                .withDescription( "Keep the correlation of each link in each experiment, quantized to 4 or 8 bits, when generating the link matrix" );
+        OptionBuilder.withLongOpt( "correlationbits" );
+        Option correlationBitso = OptionBuilder.create( 'q' );
+        addOption( correlationBitso );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "k/n" );
+        OptionBuilder
+                .withDescription( "Generate only shard k (from 0) of n row blocks of the link matrix, save it next to the matrix file and stop" );
+        OptionBuilder.withLongOpt( "shard" );
+        Option shardo = OptionBuilder.create( 'k' );
+        addOption( shardo );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Number of shards" );
+        OptionBuilder
+                .withDescription( "Merge the shards saved next to the matrix file into the link matrix before loading it" );
+        OptionBuilder.withLongOpt( "mergeshards" );
+        Option mergeShardso = OptionBuilder.create( 'j' );
+        addOption( mergeShardso );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Null model file" );
+        OptionBuilder
+                .withDescription( "Write the links expected by chance at each stringency, from permutations of the links of each experiment, and the resulting FDR to this file" );
+        OptionBuilder.withLongOpt( "nullfile" );
+        Option nullFileo = OptionBuilder.create( 'o' );
+        addOption( nullFileo );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Permutations" );
+        OptionBuilder
+                .withDescription( "Number of permutations for the null model (default: 1000)" );
+        OptionBuilder.withLongOpt( "permutations" );
+        Option permutationso = OptionBuilder.create( 'r' );
+        addOption( permutationso );
+
+        OptionBuilder
+                .withDescription( "Keep the gene degrees of each experiment in the permutations of the null model" );
+        OptionBuilder.withLongOpt( "preservedegrees" );
+        Option preserveDegreeso = OptionBuilder.create( 'y' );
+        addOption( preserveDegreeso );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Gene list file" );
+        OptionBuilder
+                .withDescription( "Write the most supported partners of the genes in this file (official symbols or ids, one per line) and stop" );
+        OptionBuilder.withLongOpt( "querygenes" );
+        Option queryGeneso = OptionBuilder.create( 'b' );
+        addOption( queryGeneso );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Output file" );
+        OptionBuilder
+                .withDescription( "File for the partners of the query genes (default: standard output)" );
+        OptionBuilder.withLongOpt( "queryout" );
+        Option queryOuto = OptionBuilder.create( 'f' );
+        addOption( queryOuto );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Number of partners" );
+        OptionBuilder
+                .withDescription( "Number of partners returned per query gene (default: 50)" );
+        OptionBuilder.withLongOpt( "topn" );
+        Option topNo = OptionBuilder.create( 'z' );
+        addOption( topNo );
+
+        OptionBuilder.hasArg();
+        OptionBuilder.withArgName( "Port" );
+        OptionBuilder
+                .withDescription( "Answer gene partner queries on this local port instead of clustering, until stopped" );
+        OptionBuilder.withLongOpt( "serve" );
+        Option serveo = OptionBuilder.create( 'w' );
+        addOption( serveo );
+
     }
 
     /*
@@ -202,48 +363,132 @@ public class MetaLinkFinderCli extends AbstractSpringAwareCLI {
             }
             StopWatch watch = new StopWatch();
 
+            /**
+             * FIXME make this a command line option.
+             */
+            int supportThreshold = 6;
+
             // load the link matrix
             if ( this.writeLinkMatrix ) {
                 watch.start();
-                linkMatrix = new LinkMatrix( taxon );
-                linkMatrix.setGeneService( geneService );
-                linkMatrix.setEEService( eeService );
-                linkMatrix.setGoService( goService );
+                linkMatrix = new LinkMatrix( taxon, this.symmetric, this.signed, eeService, geneService, goService );
+                if ( this.shard >= 0 ) linkMatrix.restrictToShard( this.shard, this.numShards );
+                linkMatrix.setCorrelationBits( this.correlationBits );
                 try {
-                    linkMatrix.toFile( this.matrixFile, this.eeMapFile );
+                    if ( this.linkDir != null ) {
+                        LinkMatrixBuilder builder = new LinkMatrixBuilder( linkMatrix,
+                                new LinkMatrixBuilder.LinkFileReader( this.linkDir ) );
+                        builder.setNumThreads( this.numThreads );
+                        builder.build();
+                    }
+                    if ( this.shard >= 0 ) {
+                        linkMatrix.toFile( this.matrixFile + LinkMatrix.SHARD_SUFFIX + this.shard, this.eeMapFile
+                                + LinkMatrix.SHARD_SUFFIX + this.shard );
+                    } else {
+                        linkMatrix.toFile( this.matrixFile, this.eeMapFile );
+                    }
                 } catch ( IOException e ) {
-                    log.info( "Couldn't save the results into the files " );
+                    log.info( "Couldn't build the link matrix or save the results into the files " );
                     return e;
                 }
                 log.info( "Spent " + watch.getTime() / 1000 + "s to generate link matrix" );
+                if ( this.shard >= 0 ) return null;
             } else {
                 watch.start();
                 try {
+                    if ( this.mergeShards > 0 ) {
+                        LinkMatrix.mergeShards( this.matrixFile, this.eeMapFile, this.mergeShards );
+                    }
                     linkMatrix = new LinkMatrix( this.matrixFile, this.eeMapFile, eeService, geneService, goService );
                 } catch ( IOException e ) {
                     log.info( "Couldn't load the data from the files " );
                     return e;
                 }
+                if ( this.appendExperiments ) {
+                    Collection<ExpressionExperiment> added = linkMatrix.appendExperiments( eeService
+                            .findByTaxon( taxon ) );
+                    if ( !added.isEmpty() ) {
+                        if ( this.linkDir == null ) {
+                            return new IllegalArgumentException( "Appending experiments needs the link directory" );
+                        }
+                        LinkMatrixBuilder builder = new LinkMatrixBuilder( linkMatrix,
+                                new LinkMatrixBuilder.LinkFileReader( this.linkDir ) );
+                        builder.setNumThreads( this.numThreads );
+                        try {
+                            builder.build( added );
+                            linkMatrix.appendToFile( this.matrixFile, this.eeMapFile );
+                        } catch ( IOException e ) {
+                            log.info( "Couldn't save the appended experiments into the files " );
+                            return e;
+                        }
+                    }
+                }
                 watch.stop();
                 log.info( "Spent " + watch.getTime() / 1000 + "s to load the data matrix" );
             }
             System.err.println( "Finish Loading!" );
+            if ( this.statsFile != null ) {
+                try {
+                    LinkStatistics.compute( linkMatrix, supportThreshold, this.numThreads ).writeTsv( this.statsFile );
+                } catch ( IOException e ) {
+                    log.info( "Couldn't save the link statistics into " + this.statsFile );
+                    return e;
+                }
+            }
+            if ( this.nullFile != null ) {
+                try {
+                    LinkNullModel.compute( linkMatrix, this.permutations, this.preserveDegrees,
+                            LinkNullModel.DEFAULT_SEED, this.numThreads ).writeTsv( this.nullFile );
+                } catch ( IOException e ) {
+                    log.info( "Couldn't save the link null model into " + this.nullFile );
+                    return e;
+                }
+            }
+            if ( this.queryGenesFile != null || this.port >= 0 ) {
+                GeneNeighborhoodService neighborhood = new GeneNeighborhoodService( linkMatrix, this.numThreads );
+                if ( this.queryGenesFile != null ) {
+                    try (BufferedReader genes = new BufferedReader( new FileReader( this.queryGenesFile ) );) {
+                        Writer out = this.queryOutFile == null ? new OutputStreamWriter( System.out )
+                                : new FileWriter( this.queryOutFile );
+                        int answered = neighborhood.queryBatch( genes, out, this.topN, supportThreshold );
+                        if ( this.queryOutFile != null ) out.close();
+                        log.info( "Answered " + answered + " query genes" );
+                    } catch ( IOException e ) {
+                        log.info( "Couldn't answer the query genes in " + this.queryGenesFile );
+                        return e;
+                    }
+                }
+                if ( this.port >= 0 ) {
+                    GeneNeighborhoodServer server = new GeneNeighborhoodServer( neighborhood, this.topN,
+                            supportThreshold );
+                    server.start( this.port, this.numThreads );
+                    Thread.currentThread().join();
+                }
+                return null;
+            }
             watch.reset();
             watch.start();
 
-            /**
-             * FIXME make this a command line option.
-             */
-            int supportThreshold = 6;
-
             LinkGraphClustering clustering = new LinkGraphClustering( supportThreshold, linkMatrix );
+            clustering.setNumThreads( this.numThreads );
+            if ( this.clusteringEngine != null ) clustering.setEngine( this.clusteringEngine );
+            clustering.setPartitioned( this.clusterComponents );
             // clustering.testSerilizable();
             if ( this.writeClusteringTree ) {
                 clustering.run();
                 clustering.saveToFile( this.treeFile );
+            } else if ( this.serializedTreeFile != null ) {
+                try {
+                    clustering.convertTreeFile( this.serializedTreeFile, this.treeFile );
+                } catch ( IOException e ) {
+                    log.info( "Couldn't convert the tree file " + this.serializedTreeFile );
+                    return e;
+                }
             } else {
                 clustering.readTreeFromFile( this.treeFile );
             }
+            // the tree-view export in selectClustersToSave labels every link with its GO terms
+            linkMatrix.warmGoTermCache();
             ObjectArrayList savedClusters = clustering.selectClustersToSave( 20 );
             GraphViewer gviewer = new GraphViewer( savedClusters, true, linkMatrix );
             gviewer.run();
@@ -292,6 +537,10 @@ public class MetaLinkFinderCli extends AbstractSpringAwareCLI {
             this.writeLinkMatrix = true;
         }
 
+        if ( hasOption( 'a' ) ) {
+            this.appendExperiments = true;
+        }
+
         if ( hasOption( 'c' ) ) {
             this.writeClusteringTree = true;
         }
@@ -307,9 +556,68 @@ public class MetaLinkFinderCli extends AbstractSpringAwareCLI {
         if ( hasOption( 't' ) ) {
             this.treeFile = getOptionValue( 't' );
         }
+        if ( hasOption( 'i' ) ) {
+            this.clusteringEngine = LinkGraphClustering.parseEngine( getOptionValue( 'i' ), null );
+            if ( this.clusteringEngine == null ) {
+                throw new IllegalArgumentException( "Unknown clustering engine: " + getOptionValue( 'i' ) );
+            }
+        }
+        if ( hasOption( "components" ) ) {
+            this.clusterComponents = true;
+        }
+        if ( hasOption( "converttree" ) ) {
+            this.serializedTreeFile = getOptionValue( "converttree" );
+        }
         if ( hasOption( 's' ) ) {
             this.taxonName = getOptionValue( 's' );
         }
+        if ( hasOption( 'd' ) ) {
+            this.linkDir = getOptionValue( 'd' );
+        }
+        if ( hasOption( 'n' ) ) {
+            this.numThreads = Integer.parseInt( getOptionValue( 'n' ) );
+        }
+        if ( hasOption( 'g' ) ) {
+            this.signed = true;
+        }
+        if ( hasOption( "symmetric" ) ) {
+            this.symmetric = true;
+        }
+        if ( hasOption( 'q' ) ) {
+            this.correlationBits = Integer.parseInt( getOptionValue( 'q' ) );
+        }
+        if ( hasOption( 'x' ) ) {
+            this.statsFile = getOptionValue( 'x' );
+        }
+        if ( hasOption( 'k' ) ) {
+            String[] shardOf = getOptionValue( 'k' ).split( "/" );
+            this.shard = Integer.parseInt( shardOf[0].trim() );
+            this.numShards = Integer.parseInt( shardOf[1].trim() );
+        }
+        if ( hasOption( 'j' ) ) {
+            this.mergeShards = Integer.parseInt( getOptionValue( 'j' ) );
+        }
+        if ( hasOption( 'o' ) ) {
+            this.nullFile = getOptionValue( 'o' );
+        }
+        if ( hasOption( 'r' ) ) {
+            this.permutations = Integer.parseInt( getOptionValue( 'r' ) );
+        }
+        if ( hasOption( 'y' ) ) {
+            this.preserveDegrees = true;
+        }
+        if ( hasOption( 'b' ) ) {
+            this.queryGenesFile = getOptionValue( 'b' );
+        }
+        if ( hasOption( 'f' ) ) {
+            this.queryOutFile = getOptionValue( 'f' );
+        }
+        if ( hasOption( 'z' ) ) {
+            this.topN = Integer.parseInt( getOptionValue( 'z' ) );
+        }
+        if ( hasOption( 'w' ) ) {
+            this.port = Integer.parseInt( getOptionValue( 'w' ) );
+        }
     }
 
 }
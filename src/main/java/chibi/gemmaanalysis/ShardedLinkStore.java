@@ -0,0 +1,274 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Read-only {@link LinkStore} presenting binary link matrix files built for consecutive row blocks (shards) as one
+ * matrix: the rows of the shards one after the other, against the same columns and experiments. The shards are
+ * listed in a small text manifest, written by {@link #writeManifest(File, List)}:
+ *
+ * <pre>
+ * #LinkMatrixShards	1
+ * shard file	rows
+ * ...
+ * </pre>
+ *
+ * Shard file names are relative to the directory of the manifest. Opening the manifest reads only the headers of the
+ * shards; a shard is memory-mapped the first time one of its cells is queried.
+ *
+ * @see LinkMatrix#mergeShards(String, String, int)
+ */
+public class ShardedLinkStore implements LinkStore {
+
+    public static final String MARKER = "#LinkMatrixShards";
+
+    public static final int VERSION = 1;
+
+    private static Log log = LogFactory.getLog( ShardedLinkStore.class.getName() );
+
+    /**
+     * @param file
+     * @return true if the file is a shard manifest.
+     * @throws IOException
+     */
+    public static boolean isManifest( File file ) throws IOException {
+        if ( file.length() < MARKER.length() ) return false;
+        try (BufferedReader in = new BufferedReader( new FileReader( file ) );) {
+            String line = in.readLine();
+            return line != null && line.startsWith( MARKER );
+        }
+    }
+
+    /**
+     * Check that the shards fit together (same columns and experiments, no row in two shards) and list them in a
+     * manifest, in the given order.
+     *
+     * @param manifest
+     * @param shards binary link matrix files
+     * @throws IOException if the shards cannot be read or do not fit together.
+     */
+    public static void writeManifest( File manifest, List<File> shards ) throws IOException {
+        if ( shards.isEmpty() ) throw new IllegalArgumentException( "No shards" );
+        MappedLinkStore.Header first = null;
+        LongOpenHashSet rowNames = new LongOpenHashSet();
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        try (Writer out = new FileWriter( manifest );) {
+            out.write( MARKER + "\t" + VERSION + "\n" );
+            for ( File shard : shards ) {
+                MappedLinkStore.Header header = MappedLinkStore.readHeader( shard );
+                if ( header.symmetric ) throw new IOException( shard + " is symmetric; shards hold whole rows" );
+                if ( first == null ) {
+                    first = header;
+                } else if ( header.bitNum != first.bitNum || !Arrays.equals( header.colNames, first.colNames ) ) {
+                    throw new IOException( shard + " does not have the columns and experiments of " + shards.get( 0 ) );
+                }
+                for ( long name : header.rowNames ) {
+                    if ( !rowNames.add( name ) ) throw new IOException( "Gene " + name + " is in two shards" );
+                }
+                File absolute = shard.getAbsoluteFile();
+                String name = dir.equals( absolute.getParentFile() ) ? absolute.getName() : absolute.getPath();
+                out.write( name + "\t" + header.rows + "\n" );
+            }
+        }
+        log.info( "Listed " + shards.size() + " shards with " + rowNames.size() + " rows in " + manifest );
+    }
+
+    private File[] files;
+    private AtomicReferenceArray<LinkStore> shards;
+
+    /**
+     * First row of each shard, and the total number of rows at the end.
+     */
+    private int[] rowStart;
+
+    private int bitNum;
+    private long[] rowNames;
+    private long[] colNames;
+    private LongIntHashMap rowIndex;
+    private LongIntHashMap colIndex;
+
+    /**
+     * @param manifest
+     * @throws IOException if the manifest or the headers of its shards cannot be read, or they do not fit together.
+     */
+    public ShardedLinkStore( File manifest ) throws IOException {
+        List<File> shardFiles = new ArrayList<>();
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        try (BufferedReader in = new BufferedReader( new FileReader( manifest ) );) {
+            String line = in.readLine();
+            if ( line == null || !line.startsWith( MARKER ) ) {
+                throw new IOException( "Not a link matrix shard manifest: " + manifest );
+            }
+            while ( ( line = in.readLine() ) != null ) {
+                if ( StringUtils.isBlank( line ) ) continue;
+                String name = line.split( "\t" )[0];
+                File file = new File( name );
+                shardFiles.add( file.isAbsolute() ? file : new File( dir, name ) );
+            }
+        }
+        if ( shardFiles.isEmpty() ) throw new IOException( "No shards in " + manifest );
+
+        this.files = shardFiles.toArray( new File[shardFiles.size()] );
+        this.shards = new AtomicReferenceArray<>( files.length );
+        this.rowStart = new int[files.length + 1];
+        List<long[]> shardRows = new ArrayList<>();
+        for ( int s = 0; s < files.length; s++ ) {
+            MappedLinkStore.Header header = MappedLinkStore.readHeader( files[s] );
+            if ( s == 0 ) {
+                this.bitNum = header.bitNum;
+                this.colNames = header.colNames;
+            } else if ( header.bitNum != bitNum || !Arrays.equals( header.colNames, colNames ) ) {
+                throw new IOException( files[s] + " does not have the columns and experiments of " + files[0] );
+            }
+            shardRows.add( header.rowNames );
+            rowStart[s + 1] = rowStart[s] + header.rows;
+        }
+
+        this.rowNames = new long[rowStart[files.length]];
+        this.rowIndex = new LongIntHashMap( rowNames.length );
+        for ( int s = 0; s < files.length; s++ ) {
+            long[] names = shardRows.get( s );
+            for ( int i = 0; i < names.length; i++ ) {
+                rowNames[rowStart[s] + i] = names[i];
+                rowIndex.put( names[i], rowStart[s] + i );
+            }
+        }
+        this.colIndex = new LongIntHashMap( colNames.length );
+        for ( int j = 0; j < colNames.length; j++ )
+            colIndex.put( colNames[j], j );
+        log.info( "Opened " + files.length + " shards (" + rowNames.length + " x " + colNames.length + " x " + bitNum
+                + ") from " + manifest );
+    }
+
+    @Override
+    public int bitCount( int row, int col ) {
+        int s = shardOf( row );
+        return shard( s ).bitCount( row - rowStart[s], col );
+    }
+
+    @Override
+    public int columns() {
+        return colNames.length;
+    }
+
+    @Override
+    public boolean get( int row, int col, int index ) {
+        int s = shardOf( row );
+        return shard( s ).get( row - rowStart[s], col, index );
+    }
+
+    @Override
+    public long[] getAllBits( int row, int col ) {
+        int s = shardOf( row );
+        return shard( s ).getAllBits( row - rowStart[s], col );
+    }
+
+    @Override
+    public int getBitNum() {
+        return bitNum;
+    }
+
+    @Override
+    public int getColIndexByName( long name ) {
+        return colIndex.get( name );
+    }
+
+    @Override
+    public long getColName( int i ) {
+        return colNames[i];
+    }
+
+    @Override
+    public int getRowIndexByName( long name ) {
+        return rowIndex.get( name );
+    }
+
+    @Override
+    public long getRowName( int i ) {
+        return rowNames[i];
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    public int getShardCount() {
+        return files.length;
+    }
+
+    @Override
+    public int nextColumn( int row, int fromCol ) {
+        int s = shardOf( row );
+        return shard( s ).nextColumn( row - rowStart[s], fromCol );
+    }
+
+    @Override
+    public int rows() {
+        return rowNames.length;
+    }
+
+    @Override
+    public void set( int row, int col, int index ) {
+        throw new UnsupportedOperationException( "Sharded link matrix is read-only" );
+    }
+
+    /**
+     * @return the shard, mapping it on first use.
+     */
+    private LinkStore shard( int s ) {
+        LinkStore shard = shards.get( s );
+        if ( shard != null ) return shard;
+        synchronized ( this ) {
+            shard = shards.get( s );
+            if ( shard == null ) {
+                try {
+                    shard = new MappedLinkStore( files[s] );
+                } catch ( IOException e ) {
+                    throw new RuntimeException( "Could not open shard " + files[s], e );
+                }
+                shards.set( s, shard );
+            }
+            return shard;
+        }
+    }
+
+    private int shardOf( int row ) {
+        int s = Arrays.binarySearch( rowStart, row );
+        if ( s < 0 ) return -s - 2;
+        /*
+         * Skip empty shards starting at the same row.
+         */
+        while ( rowStart[s + 1] == row )
+            s++;
+        return s;
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+/**
+ * A {@link LinkStore} keeping positive and negative coexpression in two planes with the same rows, columns and
+ * experiments, so both signs come out of one build. The queries take a {@link Sign}; {@link Sign#BOTH} is the union of
+ * the planes, computed from them on the fly. As a plain LinkStore this is the union, so the code that does not care
+ * about the sign sees every link; bits can only be set through {@link #set(Sign, int, int, int)}.
+ *
+ * @see LinkMatrix#setSigned(boolean)
+ */
+public class SignedLinkStore implements LinkStore {
+
+    public enum Sign {
+        POSITIVE, NEGATIVE, BOTH
+    }
+
+    private LinkStore positive;
+    private LinkStore negative;
+
+    /**
+     * @param positive
+     * @param negative must have the same rows, columns and experiments as the positive plane.
+     */
+    public SignedLinkStore( LinkStore positive, LinkStore negative ) {
+        if ( positive.rows() != negative.rows() || positive.columns() != negative.columns()
+                || positive.getBitNum() != negative.getBitNum() ) {
+            throw new IllegalArgumentException( "Negative plane is " + negative.rows() + " x " + negative.columns()
+                    + " x " + negative.getBitNum() + ", positive plane is " + positive.rows() + " x "
+                    + positive.columns() + " x " + positive.getBitNum() );
+        }
+        this.positive = positive;
+        this.negative = negative;
+    }
+
+    @Override
+    public int bitCount( int row, int col ) {
+        return bitCount( Sign.BOTH, row, col );
+    }
+
+    /**
+     * @param sign
+     * @param row
+     * @param col
+     * @return the number of experiments supporting the link with that sign.
+     */
+    public int bitCount( Sign sign, int row, int col ) {
+        if ( sign != Sign.BOTH ) return getPlane( sign ).bitCount( row, col );
+        if ( negative.nextColumn( row, col ) != col ) return positive.bitCount( row, col );
+        if ( positive.nextColumn( row, col ) != col ) return negative.bitCount( row, col );
+        return LinkMatrix.countBits( getAllBits( Sign.BOTH, row, col ) );
+    }
+
+    @Override
+    public int columns() {
+        return positive.columns();
+    }
+
+    @Override
+    public boolean get( int row, int col, int index ) {
+        return get( Sign.BOTH, row, col, index );
+    }
+
+    /**
+     * @param sign
+     * @param row
+     * @param col
+     * @param index of the expression experiment
+     * @return true if the link was seen with that sign in the experiment.
+     */
+    public boolean get( Sign sign, int row, int col, int index ) {
+        if ( sign != Sign.BOTH ) return getPlane( sign ).get( row, col, index );
+        return positive.get( row, col, index ) || negative.get( row, col, index );
+    }
+
+    @Override
+    public long[] getAllBits( int row, int col ) {
+        return getAllBits( Sign.BOTH, row, col );
+    }
+
+    /**
+     * @param sign
+     * @param row
+     * @param col
+     * @return a copy of the experiment bits of the link with that sign.
+     */
+    public long[] getAllBits( Sign sign, int row, int col ) {
+        if ( sign != Sign.BOTH ) return getPlane( sign ).getAllBits( row, col );
+        long[] mask = positive.getAllBits( row, col );
+        return LinkMatrix.OR( mask, negative.getAllBits( row, col ), mask );
+    }
+
+    @Override
+    public int getBitNum() {
+        return positive.getBitNum();
+    }
+
+    @Override
+    public int getColIndexByName( long name ) {
+        return positive.getColIndexByName( name );
+    }
+
+    @Override
+    public long getColName( int i ) {
+        return positive.getColName( i );
+    }
+
+    /**
+     * @param sign
+     * @return the plane of that sign; for {@link Sign#BOTH}, this store.
+     */
+    public LinkStore getPlane( Sign sign ) {
+        switch ( sign ) {
+            case POSITIVE:
+                return positive;
+            case NEGATIVE:
+                return negative;
+            default:
+                return this;
+        }
+    }
+
+    @Override
+    public int getRowIndexByName( long name ) {
+        return positive.getRowIndexByName( name );
+    }
+
+    @Override
+    public long getRowName( int i ) {
+        return positive.getRowName( i );
+    }
+
+    @Override
+    public int nextColumn( int row, int fromCol ) {
+        return nextColumn( Sign.BOTH, row, fromCol );
+    }
+
+    /**
+     * @param sign
+     * @param row
+     * @param fromCol
+     * @return the first column at or after fromCol whose cell has a link with that sign, or -1 if there is none.
+     */
+    public int nextColumn( Sign sign, int row, int fromCol ) {
+        if ( sign != Sign.BOTH ) return getPlane( sign ).nextColumn( row, fromCol );
+        int p = positive.nextColumn( row, fromCol );
+        int n = negative.nextColumn( row, fromCol );
+        if ( p < 0 ) return n;
+        if ( n < 0 ) return p;
+        return Math.min( p, n );
+    }
+
+    @Override
+    public int rows() {
+        return positive.rows();
+    }
+
+    /**
+     * @throws UnsupportedOperationException the sign is needed; see {@link #set(Sign, int, int, int)}.
+     */
+    @Override
+    public void set( int row, int col, int index ) {
+        throw new UnsupportedOperationException( "Links of a signed store are set with their sign" );
+    }
+
+    /**
+     * Record that the link was seen with the given sign in the experiment.
+     *
+     * @param sign {@link Sign#POSITIVE} or {@link Sign#NEGATIVE}
+     * @param row
+     * @param col
+     * @param index of the expression experiment
+     */
+    public void set( Sign sign, int row, int col, int index ) {
+        if ( sign == Sign.BOTH ) throw new IllegalArgumentException( "A link is seen with one sign" );
+        getPlane( sign ).set( row, col, index );
+    }
+
+}
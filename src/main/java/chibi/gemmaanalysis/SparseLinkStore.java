@@ -0,0 +1,209 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+/**
+ * A {@link LinkStore} that only holds the cells that have at least one bit set. Each row keeps its non-empty columns
+ * sorted, with the experiment masks in a parallel array (compressed sparse row layout), so memory and row scans are
+ * proportional to the number of links rather than to rows &times; columns.
+ * <p>
+ * Rows are independent of each other: concurrent updates are safe as long as no two threads modify the same row at
+ * the same time.
+ */
+public class SparseLinkStore implements LinkStore {
+
+    private static final int INITIAL_ROW_CAPACITY = 4;
+
+    private int bitNum;
+    private int maskLength;
+
+    private long[] rowNames;
+    private long[] colNames;
+    private LongIntHashMap rowIndex;
+    private LongIntHashMap colIndex;
+
+    /**
+     * Per row: sorted column indices of the non-empty cells, and their masks (maskLength longs each).
+     */
+    private int[][] rowCols;
+    private long[][] rowMasks;
+    private int[] rowSizes;
+
+    /**
+     * @param rowNames gene ids of the rows
+     * @param colNames gene ids of the columns
+     * @param bitNum number of expression experiments
+     */
+    public SparseLinkStore( long[] rowNames, long[] colNames, int bitNum ) {
+        this.rowNames = rowNames;
+        this.colNames = colNames;
+        this.bitNum = bitNum;
+        this.maskLength = LinkMatrix.maskLength( bitNum );
+        this.rowIndex = new LongIntHashMap( rowNames.length );
+        this.colIndex = new LongIntHashMap( colNames.length );
+        for ( int i = 0; i < rowNames.length; i++ )
+            rowIndex.put( rowNames[i], i );
+        for ( int j = 0; j < colNames.length; j++ )
+            colIndex.put( colNames[j], j );
+        this.rowCols = new int[rowNames.length][];
+        this.rowMasks = new long[rowNames.length][];
+        this.rowSizes = new int[rowNames.length];
+    }
+
+    @Override
+    public int bitCount( int row, int col ) {
+        int pos = find( row, col );
+        if ( pos < 0 ) return 0;
+        long[] masks = rowMasks[row];
+        int bits = 0;
+        for ( int k = pos * maskLength, end = k + maskLength; k < end; k++ )
+            bits += Long.bitCount( masks[k] );
+        return bits;
+    }
+
+    @Override
+    public int columns() {
+        return colNames.length;
+    }
+
+    @Override
+    public boolean get( int row, int col, int index ) {
+        int pos = find( row, col );
+        if ( pos < 0 ) return false;
+        return ( rowMasks[row][pos * maskLength + index / Long.SIZE] & ( 1L << ( index % Long.SIZE ) ) ) != 0;
+    }
+
+    @Override
+    public long[] getAllBits( int row, int col ) {
+        long[] mask = new long[maskLength];
+        int pos = find( row, col );
+        if ( pos >= 0 ) System.arraycopy( rowMasks[row], pos * maskLength, mask, 0, maskLength );
+        return mask;
+    }
+
+    @Override
+    public int getBitNum() {
+        return bitNum;
+    }
+
+    @Override
+    public int getColIndexByName( long name ) {
+        return colIndex.get( name );
+    }
+
+    @Override
+    public long getColName( int i ) {
+        return colNames[i];
+    }
+
+    @Override
+    public int getRowIndexByName( long name ) {
+        return rowIndex.get( name );
+    }
+
+    @Override
+    public long getRowName( int i ) {
+        return rowNames[i];
+    }
+
+    /**
+     * @return the number of cells with at least one bit set.
+     */
+    public long linkCount() {
+        long count = 0;
+        for ( int size : rowSizes )
+            count += size;
+        return count;
+    }
+
+    @Override
+    public int nextColumn( int row, int fromCol ) {
+        int size = rowSizes[row];
+        if ( size == 0 ) return -1;
+        int pos = binarySearch( rowCols[row], size, fromCol );
+        if ( pos < 0 ) pos = -( pos + 1 );
+        return pos < size ? rowCols[row][pos] : -1;
+    }
+
+    @Override
+    public int rows() {
+        return rowNames.length;
+    }
+
+    @Override
+    public void set( int row, int col, int index ) {
+        int pos = find( row, col );
+        if ( pos < 0 ) pos = insert( row, col, -( pos + 1 ) );
+        rowMasks[row][pos * maskLength + index / Long.SIZE] |= 1L << ( index % Long.SIZE );
+    }
+
+    private int binarySearch( int[] cols, int size, int col ) {
+        int lo = 0;
+        int hi = size - 1;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            if ( cols[mid] < col ) {
+                lo = mid + 1;
+            } else if ( cols[mid] > col ) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -( lo + 1 );
+    }
+
+    /**
+     * @return position of the cell within its row, or (-(insertion point) - 1) if the cell is empty.
+     */
+    private int find( int row, int col ) {
+        if ( rowSizes[row] == 0 ) return -1;
+        return binarySearch( rowCols[row], rowSizes[row], col );
+    }
+
+    /**
+     * Open up an empty cell at the given position of the row, growing the row arrays if needed.
+     *
+     * @return the position
+     */
+    private int insert( int row, int col, int pos ) {
+        int size = rowSizes[row];
+        int[] cols = rowCols[row];
+        long[] masks = rowMasks[row];
+        if ( cols == null || size == cols.length ) {
+            int capacity = cols == null ? INITIAL_ROW_CAPACITY : size + ( size >> 1 ) + 1;
+            int[] newCols = new int[capacity];
+            long[] newMasks = new long[capacity * maskLength];
+            if ( cols != null ) {
+                System.arraycopy( cols, 0, newCols, 0, size );
+                System.arraycopy( masks, 0, newMasks, 0, size * maskLength );
+            }
+            cols = newCols;
+            masks = newMasks;
+            rowCols[row] = cols;
+            rowMasks[row] = masks;
+        }
+        System.arraycopy( cols, pos, cols, pos + 1, size - pos );
+        System.arraycopy( masks, pos * maskLength, masks, ( pos + 1 ) * maskLength, ( size - pos ) * maskLength );
+        cols[pos] = col;
+        for ( int k = pos * maskLength, end = k + maskLength; k < end; k++ )
+            masks[k] = 0L;
+        rowSizes[row] = size + 1;
+        return pos;
+    }
+
+}
@@ -63,6 +63,11 @@ public class TreeNode implements Comparable<TreeNode>, Serializable {
 
     private Integer order = 0; // for tree generation
 
+    /**
+     * Packed correlation values, see {@link CorrelationPlane}; only used while clustering.
+     */
+    private transient long[] weights = null;
+
     /**
      * @param id
      * @param mask
@@ -135,6 +140,13 @@ public class TreeNode implements Comparable<TreeNode>, Serializable {
         return order;
     }
 
+    /**
+     * @return the packed correlation values, or null.
+     */
+    public long[] getWeights() {
+        return weights;
+    }
+
     public TreeNode getParent() {
         return parent;
     }
@@ -154,6 +166,22 @@ public class TreeNode implements Comparable<TreeNode>, Serializable {
         commonBits = LinkMatrix.overlapBits( mask, closestNode.mask );
     }
 
+    /**
+     * For nodes read back from a file, which do not keep their closest node.
+     *
+     * @param commonBits
+     */
+    public void setCommonBits( int commonBits ) {
+        this.commonBits = commonBits;
+    }
+
+    /**
+     * @param id
+     */
+    public void setId( long id ) {
+        this.id = id;
+    }
+
     /**
      * @param level
      */
@@ -168,6 +196,13 @@ public class TreeNode implements Comparable<TreeNode>, Serializable {
         this.mask = allBits;
     }
 
+    /**
+     * @param weights packed correlation values, see {@link CorrelationPlane}
+     */
+    public void setWeights( long[] weights ) {
+        this.weights = weights;
+    }
+
     /**
      * @param order
      */
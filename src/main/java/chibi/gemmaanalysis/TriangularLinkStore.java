@@ -0,0 +1,115 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import java.util.Arrays;
+
+/**
+ * A {@link SparseLinkStore} for a symmetric matrix whose rows and columns are the same genes. Each row only keeps its
+ * non-empty cells above the diagonal, so every link is stored once, in the row of its lower index; (j, i) is answered
+ * from (i, j) and the diagonal is always empty.
+ * <p>
+ * Row scans also return the columns below the diagonal. Those come from the transpose of the stored columns (indices
+ * only, no masks), built on the first scan that needs it and dropped when a new cell is added. {@link #linkCount()}
+ * counts each gene pair once.
+ * <p>
+ * As for the sparse store, concurrent updates are safe as long as no two threads modify the row of the lower index at
+ * the same time.
+ */
+public class TriangularLinkStore extends SparseLinkStore {
+
+    /**
+     * Per row, sorted indices of the rows above it that have a link to it; null until needed.
+     */
+    private volatile int[][] lowerCols = null;
+
+    /**
+     * @param names gene ids of the rows, which are also the columns.
+     * @param bitNum number of expression experiments
+     */
+    public TriangularLinkStore( long[] names, int bitNum ) {
+        super( names, names, bitNum );
+    }
+
+    @Override
+    public int bitCount( int row, int col ) {
+        if ( row == col ) return 0;
+        return super.bitCount( Math.min( row, col ), Math.max( row, col ) );
+    }
+
+    @Override
+    public boolean get( int row, int col, int index ) {
+        if ( row == col ) return false;
+        return super.get( Math.min( row, col ), Math.max( row, col ), index );
+    }
+
+    @Override
+    public long[] getAllBits( int row, int col ) {
+        if ( row == col ) return new long[LinkMatrix.maskLength( getBitNum() )];
+        return super.getAllBits( Math.min( row, col ), Math.max( row, col ) );
+    }
+
+    @Override
+    public int nextColumn( int row, int fromCol ) {
+        if ( fromCol < row ) {
+            int[] lower = getLowerCols()[row];
+            int pos = Arrays.binarySearch( lower, fromCol );
+            if ( pos < 0 ) pos = -( pos + 1 );
+            if ( pos < lower.length ) return lower[pos];
+        }
+        return super.nextColumn( row, Math.max( fromCol, row + 1 ) );
+    }
+
+    /**
+     * Setting (row, col) also sets (col, row). Setting a diagonal cell is ignored.
+     */
+    @Override
+    public void set( int row, int col, int index ) {
+        if ( row == col ) return;
+        int i = Math.min( row, col );
+        int j = Math.max( row, col );
+        if ( lowerCols != null && super.bitCount( i, j ) == 0 ) lowerCols = null;
+        super.set( i, j, index );
+    }
+
+    /**
+     * @return for each row, the rows above it with a link to it, building them from the stored rows if needed.
+     */
+    private int[][] getLowerCols() {
+        int[][] lower = lowerCols;
+        if ( lower != null ) return lower;
+        synchronized ( this ) {
+            if ( lowerCols != null ) return lowerCols;
+            int n = rows();
+            int[] sizes = new int[n];
+            for ( int i = 0; i < n; i++ )
+                for ( int j = super.nextColumn( i, i + 1 ); j >= 0; j = super.nextColumn( i, j + 1 ) )
+                    sizes[j]++;
+            lower = new int[n][];
+            for ( int j = 0; j < n; j++ ) {
+                lower[j] = new int[sizes[j]];
+                sizes[j] = 0;
+            }
+            for ( int i = 0; i < n; i++ )
+                for ( int j = super.nextColumn( i, i + 1 ); j >= 0; j = super.nextColumn( i, j + 1 ) )
+                    lower[j][sizes[j]++] = i;
+            lowerCols = lower;
+            return lower;
+        }
+    }
+
+}
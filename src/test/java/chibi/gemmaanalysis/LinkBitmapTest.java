@@ -0,0 +1,115 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class LinkBitmapTest {
+
+    @Test
+    public void testAtLeastMatchesCounting() {
+        Random r = new Random( 1 );
+        for ( int trial = 0; trial < 50; trial++ ) {
+            // every third trial has chunks large enough to be stored as bitmaps
+            int range = trial % 3 == 0 ? 70000 : 300;
+            int n = trial % 3 == 0 ? 20000 : 200;
+            int numBitmaps = 1 + r.nextInt( 6 );
+            List<LinkBitmap> bitmaps = new ArrayList<>();
+            List<Long> all = new ArrayList<>();
+            for ( int b = 0; b < numBitmaps; b++ ) {
+                LinkBitmap bitmap = new LinkBitmap();
+                for ( int i = 0; i < n; i++ ) {
+                    long id = LinkId.pack( r.nextInt( 4 ), r.nextInt( range ) );
+                    if ( !bitmap.contains( id ) ) all.add( id );
+                    bitmap.add( id );
+                }
+                bitmaps.add( bitmap );
+            }
+            int k = r.nextInt( numBitmaps + 1 );
+
+            long[] ids = new long[all.size()];
+            for ( int i = 0; i < ids.length; i++ )
+                ids[i] = all.get( i );
+            Arrays.sort( ids );
+            long[] expected = new long[ids.length];
+            int m = 0;
+            for ( int i = 0; i < ids.length; ) {
+                int j = i;
+                while ( j < ids.length && ids[j] == ids[i] )
+                    j++;
+                if ( j - i >= k ) expected[m++] = ids[i];
+                i = j;
+            }
+
+            assertArrayEquals( Arrays.copyOf( expected, m ), LinkBitmap.atLeast( bitmaps, k ).toArray() );
+        }
+    }
+
+    @Test
+    public void testAndOrMatchSets() {
+        Random r = new Random( 2 );
+        for ( int trial = 0; trial < 50; trial++ ) {
+            // mixes chunks stored as arrays and as bitmaps on either side
+            LinkBitmap a = new LinkBitmap();
+            LinkBitmap b = new LinkBitmap();
+            Set<Long> inA = new TreeSet<>();
+            Set<Long> inB = new TreeSet<>();
+            for ( int row = 0; row < 4; row++ ) {
+                int nA = r.nextBoolean() ? 12000 : 50;
+                int nB = r.nextBoolean() ? 12000 : 50;
+                for ( int i = 0; i < nA; i++ ) {
+                    long id = LinkId.pack( row, r.nextInt( 8000 ) );
+                    a.add( id );
+                    inA.add( id );
+                }
+                for ( int i = 0; i < nB; i++ ) {
+                    long id = LinkId.pack( row, r.nextInt( 8000 ) );
+                    b.add( id );
+                    inB.add( id );
+                }
+            }
+            Set<Long> union = new TreeSet<>( inA );
+            union.addAll( inB );
+            Set<Long> intersection = new TreeSet<>( inA );
+            intersection.retainAll( inB );
+
+            assertArrayEquals( toArray( union ), a.or( b ).toArray() );
+            assertArrayEquals( toArray( intersection ), a.and( b ).toArray() );
+            assertEquals( union.size(), a.or( b ).cardinality() );
+            assertEquals( intersection.size(), a.and( b ).cardinality() );
+        }
+    }
+
+    private static long[] toArray( Set<Long> ids ) {
+        long[] res = new long[ids.size()];
+        int i = 0;
+        for ( long id : ids )
+            res[i++] = id;
+        return res;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import cern.colt.list.ObjectArrayList;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+
+public class LinkGraphClusteringTest {
+
+    private static final int GROUPS = 3;
+    private static final int GENES_PER_GROUP = 8;
+    private static final int EES_PER_GROUP = 12;
+    private static final int THRESHOLD = 2;
+
+    @Test
+    public void testPartitionedMergesMatchQueue() {
+        checkPartitionedMerges( LinkGraphClustering.Engine.QUEUE );
+    }
+
+    @Test
+    public void testPartitionedMergesMatchScan() {
+        checkPartitionedMerges( LinkGraphClustering.Engine.SCAN );
+    }
+
+    @Test
+    public void testNearestNeighborChainsLeaveNoDanglingParents() {
+        for ( boolean partitioned : new boolean[] { false, true } ) {
+            LinkGraphClustering clustering = newClustering( LinkGraphClustering.Engine.NN_CHAIN, partitioned, 2 );
+            clustering.run();
+            merges( clustering );
+        }
+    }
+
+    private void checkPartitionedMerges( LinkGraphClustering.Engine engine ) {
+        LinkGraphClustering whole = newClustering( engine, false, 1 );
+        whole.run();
+        Set<String> expected = merges( whole );
+        assertEquals( GROUPS + 1, whole.getRoots().size() );
+
+        for ( int threads : new int[] { 1, 3 } ) {
+            LinkGraphClustering partitioned = newClustering( engine, true, threads );
+            partitioned.run();
+            assertEquals( whole.getRoots().size(), partitioned.getRoots().size() );
+            assertEquals( expected, merges( partitioned ) );
+        }
+    }
+
+    /**
+     * Groups of links among their own genes, sharing 6 experiments of their own, plus one link on its own; so every
+     * merge has at least twice the threshold experiments in common and the groups never merge with each other.
+     */
+    private LinkMatrix newMatrix() {
+        int numGenes = GROUPS * GENES_PER_GROUP + 2;
+        List<Gene> genes = new ArrayList<Gene>();
+        for ( int i = 0; i < numGenes; i++ ) {
+            Gene gene = Gene.Factory.newInstance();
+            gene.setId( 100L + i );
+            genes.add( gene );
+        }
+        List<ExpressionExperiment> ees = new ArrayList<ExpressionExperiment>();
+        for ( int e = 0; e < ( GROUPS + 1 ) * EES_PER_GROUP; e++ ) {
+            ExpressionExperiment ee = ExpressionExperiment.Factory.newInstance();
+            ee.setId( 1000L + e );
+            ees.add( ee );
+        }
+        LinkMatrix matrix = new LinkMatrix( new ArrayList<Gene>() );
+        matrix.init( ees, genes, genes );
+
+        Random random = new Random( 7 );
+        for ( int g = 0; g < GROUPS; g++ ) {
+            for ( int k = 0; k < 10; k++ ) {
+                int i = g * GENES_PER_GROUP + random.nextInt( GENES_PER_GROUP );
+                int j = g * GENES_PER_GROUP + random.nextInt( GENES_PER_GROUP );
+                if ( i == j ) continue;
+                for ( int e = 0; e < EES_PER_GROUP; e++ ) {
+                    if ( e < 6 || random.nextBoolean() ) setLink( matrix, i, j, g * EES_PER_GROUP + e );
+                }
+            }
+        }
+        for ( int e = 0; e < 6; e++ )
+            setLink( matrix, numGenes - 2, numGenes - 1, GROUPS * EES_PER_GROUP + e );
+        return matrix;
+    }
+
+    private LinkGraphClustering newClustering( LinkGraphClustering.Engine engine, boolean partitioned, int threads ) {
+        LinkGraphClustering clustering = new LinkGraphClustering( THRESHOLD, newMatrix() );
+        clustering.setEngine( engine );
+        clustering.setPartitioned( partitioned );
+        clustering.setNumThreads( threads );
+        return clustering;
+    }
+
+    private void setLink( LinkMatrix matrix, int i, int j, int ee ) {
+        matrix.getRawMatrix().set( i, j, ee );
+        matrix.getRawMatrix().set( j, i, ee );
+    }
+
+    /**
+     * Check that the trees hang together: roots have no parent, children point to their parent, and the merges are
+     * numbered from 1 without gaps.
+     *
+     * @return each merge, as the sorted link ids under it.
+     */
+    private Set<String> merges( LinkGraphClustering clustering ) {
+        Set<String> merges = new HashSet<String>();
+        Set<Integer> orders = new HashSet<Integer>();
+        ObjectArrayList roots = clustering.getRoots();
+        for ( int r = 0; r < roots.size(); r++ ) {
+            TreeNode root = ( TreeNode ) roots.get( r );
+            assertNull( root.getParent() );
+            ObjectArrayList internalNodes = new ObjectArrayList();
+            LinkGraphClustering.collectTreeNodes( new ObjectArrayList(), internalNodes, root );
+            for ( int i = 0; i < internalNodes.size(); i++ ) {
+                TreeNode node = ( TreeNode ) internalNodes.get( i );
+                assertTrue( ( ( TreeNode ) node.getChildren().getQuick( 0 ) ).getParent() == node );
+                assertTrue( ( ( TreeNode ) node.getChildren().getQuick( 1 ) ).getParent() == node );
+                assertTrue( orders.add( node.getOrder() ) );
+
+                ObjectArrayList leaves = new ObjectArrayList();
+                LinkGraphClustering.collectTreeNodes( leaves, new ObjectArrayList(), node );
+                long[] ids = new long[leaves.size()];
+                for ( int l = 0; l < ids.length; l++ )
+                    ids[l] = ( ( TreeNode ) leaves.get( l ) ).getId();
+                Arrays.sort( ids );
+                merges.add( Arrays.toString( ids ) );
+            }
+        }
+        for ( int order = 1; order <= orders.size(); order++ )
+            assertTrue( orders.contains( order ) );
+        return merges;
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * The Gemma project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package chibi.gemmaanalysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MaskKernelsTest {
+
+    @Test
+    public void testOverlapAtWordBoundary() {
+        // 64 common bits filling the first word exactly, then one more at the start of the second.
+        long[] mask1 = new long[] { -1L, 1L, 0L };
+        long[] mask2 = new long[] { -1L, 1L, -1L };
+
+        assertEquals( 65, MaskKernels.overlap( mask1, mask2 ) );
+
+        assertTrue( MaskKernels.overlapAtLeast( mask1, mask2, 64 ) );
+        assertTrue( MaskKernels.overlapAtLeast( mask1, mask2, 65 ) );
+        assertFalse( MaskKernels.overlapAtLeast( mask1, mask2, 66 ) );
+
+        assertEquals( 65, MaskKernels.overlapIfAtLeast( mask1, mask2, 64 ) );
+        assertEquals( 65, MaskKernels.overlapIfAtLeast( mask1, mask2, 65 ) );
+        assertEquals( -1, MaskKernels.overlapIfAtLeast( mask1, mask2, 66 ) );
+    }
+
+    @Test
+    public void testOverlapInLastBitOfWord() {
+        long[] mask1 = new long[] { Long.MIN_VALUE, Long.MIN_VALUE };
+        long[] mask2 = new long[] { 0L, Long.MIN_VALUE };
+
+        assertTrue( MaskKernels.overlapAtLeast( mask1, mask2, 1 ) );
+        assertFalse( MaskKernels.overlapAtLeast( mask1, mask2, 2 ) );
+        assertEquals( 1, MaskKernels.overlapIfAtLeast( mask1, mask2, 1 ) );
+        assertEquals( -1, MaskKernels.overlapIfAtLeast( mask1, mask2, 2 ) );
+    }
+
+    @Test
+    public void testOverlapMoreThanRemainingWords() {
+        // only one word left after the first, which cannot supply 65 bits on its own
+        long[] mask1 = new long[] { 0L, -1L };
+        long[] mask2 = new long[] { 0L, -1L };
+
+        assertFalse( MaskKernels.overlapAtLeast( mask1, mask2, 65 ) );
+        assertEquals( -1, MaskKernels.overlapIfAtLeast( mask1, mask2, 65 ) );
+        assertEquals( 64, MaskKernels.overlapIfAtLeast( mask1, mask2, 64 ) );
+    }
+
+    @Test
+    public void testThresholdNotPositive() {
+        long[] mask1 = new long[] { 0x5L };
+        long[] mask2 = new long[] { 0x6L };
+        long[] empty = new long[0];
+
+        assertTrue( MaskKernels.overlapAtLeast( mask1, mask2, 0 ) );
+        assertTrue( MaskKernels.overlapAtLeast( mask1, mask2, -3 ) );
+        assertTrue( MaskKernels.overlapAtLeast( empty, empty, 0 ) );
+
+        assertEquals( 1, MaskKernels.overlapIfAtLeast( mask1, mask2, 0 ) );
+        assertEquals( 1, MaskKernels.overlapIfAtLeast( mask1, mask2, -3 ) );
+        assertEquals( 0, MaskKernels.overlapIfAtLeast( new long[] { 1L }, new long[] { 2L }, 0 ) );
+        assertEquals( 0, MaskKernels.overlapIfAtLeast( empty, empty, 0 ) );
+    }
+
+    @Test
+    public void testEmptyMasks() {
+        long[] empty = new long[0];
+        assertFalse( MaskKernels.overlapAtLeast( empty, empty, 1 ) );
+        assertEquals( -1, MaskKernels.overlapIfAtLeast( empty, empty, 1 ) );
+    }
+
+}